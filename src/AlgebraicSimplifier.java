@@ -0,0 +1,348 @@
+import java.util.*;
+
+import org.specs.comp.ollir.*;
+
+/**
+ * Simplifies the operations assigned to variables with algebraic rules, until none applies:
+ * <pre>
+ *   x + 0, x - 0, x * 1, x / 1, b &amp;&amp; true   =&gt;  x, b
+ *   x * 0, x - x, b &amp;&amp; false               =&gt;  0, false
+ *   x &lt; x, x == x, ... and operations of literals  =&gt;  their value
+ *   !!b                                     =&gt;  b
+ *   (x + 1) + 2, (x * 2) * 3                =&gt;  x + 3, x * 6
+ * </pre>
+ * Literals are moved to the right of commutative operations and comparisons (mirroring them), which is where the
+ * instruction selection (the iinc of "i = 1 + i", for example) and the other passes look for them.
+ *
+ * The last two rules look through the operation that assigned an operand earlier in the same block, while none of its
+ * variables is assigned again. The variables that are no longer read after that have their assignments removed.
+ */
+public class AlgebraicSimplifier {
+    private static final Type INT_TYPE = new Type(ElementType.INT32);
+    private static final Type BOOLEAN_TYPE = new Type(ElementType.BOOLEAN);
+
+    private static final Set<OperationType> commutativeOperations = Set.of(OperationType.ADD, OperationType.MUL,
+            OperationType.ANDB, OperationType.ORB, OperationType.EQ, OperationType.NEQ);
+
+    private final ClassUnit ollirClass;
+    private int simplifiedOperations = 0;
+
+    private final Set<String> unread = new HashSet<>(); // Variables whose reads were simplified away
+
+    public AlgebraicSimplifier(ClassUnit ollirClass) {
+        this.ollirClass = ollirClass;
+    }
+
+    /**
+     * Simplifies the operations of every method. It must run before the CFGs and the tables of variables are built.
+     * @return the number of simplified operations
+     */
+    public int simplify() {
+        for (Method method : ollirClass.getMethods()) {
+            while (simplifyMethod(method)) ;
+
+            removeDeadAssignments(method);
+            unread.clear();
+        }
+
+        return simplifiedOperations;
+    }
+
+    /**
+     * @return true if some operation was simplified
+     */
+    private boolean simplifyMethod(Method method) {
+        List<Instruction> instructions = method.getInstructions();
+        Set<Instruction> labeled = Collections.newSetFromMap(new IdentityHashMap<>());
+        labeled.addAll(method.getLabels().values());
+
+        // Variable -> operation last assigned to it in the block
+        Map<String, BinaryOpInstruction> definitions = new HashMap<>();
+        boolean changed = false;
+
+        for (int i = 0; i < instructions.size(); ++i) {
+            Instruction instruction = instructions.get(i);
+            if (labeled.contains(instruction)) definitions.clear();
+            if (instruction.getInstType() != InstructionType.ASSIGN) continue;
+
+            AssignInstruction assignment = (AssignInstruction) instruction;
+            Instruction rhs = assignment.getRhs();
+
+            if (rhs.getInstType() == InstructionType.BINARYOPER) {
+                Instruction simplified = rhs;
+                for (Instruction next = rhs; next != null; ) {
+                    simplified = next;
+                    next = next.getInstType() == InstructionType.BINARYOPER
+                            ? simplify((BinaryOpInstruction) next, definitions) : null;
+                }
+
+                if (simplified != rhs) {
+                    Instruction replacement = SourceLines.copy(instruction, new AssignInstruction(
+                            assignment.getDest(), assignment.getTypeOfAssign(), simplified));
+                    method.getLabels().replaceAll((label, target) -> target == instruction ? replacement : target);
+                    instructions.set(i, replacement);
+                    rhs = simplified;
+                    ++simplifiedOperations;
+                    changed = true;
+                }
+            }
+
+            String variable = LoopUnroller.getVariable(assignment.getDest());
+            if (variable == null) continue;
+
+            definitions.remove(variable);
+            definitions.values().removeIf(definition -> reads(definition, variable));
+            if (rhs.getInstType() == InstructionType.BINARYOPER && isSimple((BinaryOpInstruction) rhs)
+                    && !reads((BinaryOpInstruction) rhs, variable)) {
+                definitions.put(variable, (BinaryOpInstruction) rhs);
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Applies the first rule that matches the operation
+     * @return the simplified instruction, or null if no rule applies
+     */
+    private Instruction simplify(BinaryOpInstruction operation, Map<String, BinaryOpInstruction> definitions) {
+        OperationType type = operation.getUnaryOperation().getOpType();
+        Element left = operation.getLeftOperand(), right = operation.getRightOperand();
+        Integer leftValue = getLiteral(left), rightValue = getLiteral(right);
+
+        // !b is "b !.bool b"
+        if (type == OperationType.NOTB) {
+            if (leftValue != null) return copy(literal(1 - leftValue, BOOLEAN_TYPE));
+
+            BinaryOpInstruction definition = definitions.get(LoopUnroller.getVariable(left));
+            if (definition == null || definition.getUnaryOperation().getOpType() != OperationType.NOTB) return null;
+
+            unread.add(LoopUnroller.getVariable(left));
+            return copy(definition.getLeftOperand());
+        }
+
+        Type resultType = BackendStage.mirroredComparisons.containsKey(type) || type == OperationType.ANDB
+                || type == OperationType.ORB ? BOOLEAN_TYPE : INT_TYPE;
+
+        if (leftValue != null && rightValue != null) {
+            Integer value = calculate(type, leftValue, rightValue);
+            return value != null ? copy(literal(value, resultType)) : null;
+        }
+
+        if (leftValue != null) {
+            if (commutativeOperations.contains(type)) return binary(right, type, left);
+            if (BackendStage.mirroredComparisons.containsKey(type)) {
+                return binary(right, BackendStage.mirroredComparisons.get(type), left);
+            }
+            return null;
+        }
+
+        if (rightValue != null) {
+            // Reading an array element may throw, so it is kept
+            boolean canDrop = !(left instanceof ArrayOperand);
+
+            switch (type) {
+                case ADD:
+                case SUB:
+                    if (rightValue == 0) return copy(left);
+                    break;
+                case MUL:
+                    if (rightValue == 1) return copy(left);
+                    if (rightValue == 0 && canDrop) return copy(literal(0, INT_TYPE), left);
+                    break;
+                case DIV:
+                    if (rightValue == 1) return copy(left);
+                    break;
+                case ANDB:
+                    if (rightValue != 0) return copy(left);
+                    if (canDrop) return copy(literal(0, BOOLEAN_TYPE), left);
+                    break;
+                case ORB:
+                    if (rightValue == 0) return copy(left);
+                    if (canDrop) return copy(literal(1, BOOLEAN_TYPE), left);
+                    break;
+                default:
+                    break;
+            }
+
+            return simplifyChain(left, type, rightValue, definitions);
+        }
+
+        // Both operands are the same variable. x / x throws when x is 0.
+        String variable = LoopUnroller.getVariable(left);
+        if (variable == null || !variable.equals(LoopUnroller.getVariable(right))) return null;
+
+        switch (type) {
+            case SUB:
+                return copy(literal(0, INT_TYPE), left);
+            case ANDB:
+            case ORB:
+                return copy(left);
+            case LTH:
+            case GTH:
+            case NEQ:
+                return copy(literal(0, BOOLEAN_TYPE), left);
+            case LTE:
+            case GTE:
+            case EQ:
+                return copy(literal(1, BOOLEAN_TYPE), left);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Reassociates (x + a) + b as x + (a + b), and (x * a) * b as x * (a * b). Both overflow the same way.
+     */
+    private Instruction simplifyChain(Element left, OperationType type, int value,
+                                      Map<String, BinaryOpInstruction> definitions) {
+        String variable = LoopUnroller.getVariable(left);
+        BinaryOpInstruction definition = definitions.get(variable);
+        if (definition == null) return null;
+
+        OperationType definitionType = definition.getUnaryOperation().getOpType();
+        Element operand = definition.getLeftOperand();
+        Integer definitionValue = getLiteral(definition.getRightOperand());
+        if (definitionValue == null || LoopUnroller.getVariable(operand) == null) return null;
+
+        boolean isSum = type == OperationType.ADD || type == OperationType.SUB;
+        if (isSum && (definitionType == OperationType.ADD || definitionType == OperationType.SUB)) {
+            int sum = (definitionType == OperationType.ADD ? definitionValue : -definitionValue)
+                    + (type == OperationType.ADD ? value : -value);
+
+            unread.add(variable);
+            if (sum == 0) return copy(operand);
+            return sum > 0 || sum == Integer.MIN_VALUE ? binary(operand, OperationType.ADD, literal(sum, INT_TYPE))
+                    : binary(operand, OperationType.SUB, literal(-sum, INT_TYPE));
+        }
+
+        if (type == OperationType.MUL && definitionType == OperationType.MUL) {
+            unread.add(variable);
+            return binary(operand, OperationType.MUL, literal(definitionValue * value, INT_TYPE));
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the value of an operation of literals, or null if it throws or isn't known
+     */
+    private static Integer calculate(OperationType type, int left, int right) {
+        switch (type) {
+            case ADD: return left + right;
+            case SUB: return left - right;
+            case MUL: return left * right;
+            case DIV: return right != 0 ? left / right : null;
+            case ANDB: return left & right;
+            case ORB: return left | right;
+            default:
+                if (!BackendStage.mirroredComparisons.containsKey(type)) return null;
+                return BackendStage.compareLiterals(type, left, right) ? 1 : 0;
+        }
+    }
+
+    /**
+     * Removes the assignments of the variables that are no longer read, if they have no other effects, and then of
+     * the variables that only they read
+     */
+    private void removeDeadAssignments(Method method) {
+        List<Instruction> instructions = method.getInstructions();
+        Deque<String> pending = new ArrayDeque<>(unread);
+
+        while (!pending.isEmpty()) {
+            String variable = pending.pop();
+
+            List<Integer> assignments = new ArrayList<>();
+            boolean isRead = false;
+            for (int i = 0; i < instructions.size() && !isRead; ++i) {
+                Instruction instruction = instructions.get(i);
+                if (instruction.getInstType() == InstructionType.ASSIGN
+                        && variable.equals(LoopUnroller.getVariable(((AssignInstruction) instruction).getDest()))) {
+                    assignments.add(i);
+                }
+                isRead = LoopUnroller.getReadVariables(instruction).contains(variable);
+            }
+
+            if (isRead) continue;
+
+            for (int i = assignments.size() - 1; i >= 0; --i) {
+                int index = assignments.get(i);
+                Instruction instruction = instructions.get(index);
+                Instruction rhs = ((AssignInstruction) instruction).getRhs();
+                if (!hasNoEffects(rhs)) continue;
+
+                // The labels of the assignment move to the next instruction, there is always one (a return, at least)
+                Instruction next = instructions.get(index + 1);
+                method.getLabels().replaceAll((label, target) -> target == instruction ? next : target);
+                instructions.remove(index);
+                pending.addAll(LoopUnroller.getReadVariables(rhs));
+            }
+        }
+    }
+
+    private static boolean hasNoEffects(Instruction instruction) {
+        if (instruction.getInstType() != InstructionType.NOPER && instruction.getInstType() != InstructionType.BINARYOPER) {
+            return false;
+        }
+        if (instruction.getInstType() == InstructionType.BINARYOPER
+                && ((BinaryOpInstruction) instruction).getUnaryOperation().getOpType() == OperationType.DIV) {
+            return false;
+        }
+
+        // Reading an array element may throw
+        return LoopUnroller.getReadElements(instruction).stream().noneMatch(element -> element instanceof ArrayOperand);
+    }
+
+    /**
+     * @return true if the operands of the operation are literals or variables, so it can be used while they aren't
+     * assigned
+     */
+    private static boolean isSimple(BinaryOpInstruction operation) {
+        for (Element element : List.of(operation.getLeftOperand(), operation.getRightOperand())) {
+            if (!element.isLiteral() && LoopUnroller.getVariable(element) == null) return false;
+        }
+        return true;
+    }
+
+    private static boolean reads(BinaryOpInstruction operation, String variable) {
+        return variable.equals(LoopUnroller.getVariable(operation.getLeftOperand()))
+                || variable.equals(LoopUnroller.getVariable(operation.getRightOperand()));
+    }
+
+    /**
+     * @return the value of an int or boolean literal, or null if the element isn't one
+     */
+    private static Integer getLiteral(Element element) {
+        if (!element.isLiteral()) return null;
+
+        ElementType type = element.getType().getTypeOfElement();
+        if (type != ElementType.INT32 && type != ElementType.BOOLEAN) return null;
+
+        try {
+            return Integer.parseInt(((LiteralElement) element).getLiteral());
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param dropped the operands that are no longer read
+     */
+    private SingleOpInstruction copy(Element element, Element... dropped) {
+        for (Element operand : dropped) {
+            String variable = LoopUnroller.getVariable(operand);
+            if (variable != null) unread.add(variable);
+        }
+
+        return new SingleOpInstruction(element);
+    }
+
+    private static BinaryOpInstruction binary(Element left, OperationType operation, Element right) {
+        return new BinaryOpInstruction(left, new Operation(operation, left.getType()), right);
+    }
+
+    private static LiteralElement literal(int value, Type type) {
+        return new LiteralElement(String.valueOf(value), type);
+    }
+}
@@ -1,7 +1,9 @@
+import java.io.File;
 import java.util.*;
 
 import org.specs.comp.ollir.*;
 
+import pt.up.fe.comp.jmm.analysis.table.Symbol;
 import pt.up.fe.comp.jmm.jasmin.JasminBackend;
 import pt.up.fe.comp.jmm.jasmin.JasminResult;
 import pt.up.fe.comp.jmm.ollir.OllirResult;
@@ -22,11 +24,37 @@ import pt.up.fe.comp.jmm.report.Stage;
  */
 
 public class BackendStage implements JasminBackend {
-    private StringBuilder jasminBuilder = new StringBuilder();
+    private StringBuilder jasminBuilder;
     private final StringBuilder tabs = new StringBuilder(); // Improves Jasmin code formatting
 
-    private static int stackSize = 0;
-    private static int maxStackSize = 0;
+    // Methods with more bytecode than this are not JIT compiled by HotSpot (-XX:-DontCompileHugeMethods)
+    public static final int METHOD_SIZE_LIMIT = 8000;
+
+    public CommandLineArgs args;
+
+    private List<JasminInstruction> code; // Instructions of the method being built
+    private int splitCount = 0; // Helper methods created by splitting methods
+    private int labelCount; // Labels created by the backend in the method being built
+    // Temporaries whose value is left on the stack: loading them builds the right-hand side of their assignment
+    private final Map<String, Runnable> stackedValues = new HashMap<>();
+
+    // Instrumentation (-instrument): counters of the blocks and call sites of the methods, by "<point> <signature>"
+    public static final String PROFILE_COUNTERS = "profile$counters", PROFILE_DUMP = "profile$dump";
+    private final Map<String, Integer> profileCounters = new LinkedHashMap<>();
+    private final Map<CallInstruction, Integer> callSites = new IdentityHashMap<>(); // Number of each call site
+
+    // Jumps taken when the comparison of two integers is true, and when the comparison of an integer with 0 is true
+    private static final Map<OperationType, String> compareBranches = Map.of(
+            OperationType.LTH, "if_icmplt", OperationType.LTE, "if_icmple", OperationType.GTH, "if_icmpgt",
+            OperationType.GTE, "if_icmpge", OperationType.EQ, "if_icmpeq", OperationType.NEQ, "if_icmpne");
+    private static final Map<OperationType, String> zeroBranches = Map.of(
+            OperationType.LTH, "iflt", OperationType.LTE, "ifle", OperationType.GTH, "ifgt",
+            OperationType.GTE, "ifge", OperationType.EQ, "ifeq", OperationType.NEQ, "ifne");
+    // a <op> b <=> b <mirrored op> a
+    static final Map<OperationType, OperationType> mirroredComparisons = Map.of(
+            OperationType.LTH, OperationType.GTH, OperationType.LTE, OperationType.GTE,
+            OperationType.GTH, OperationType.LTH, OperationType.GTE, OperationType.LTE,
+            OperationType.EQ, OperationType.EQ, OperationType.NEQ, OperationType.NEQ);
 
     @Override
     public JasminResult toJasmin(OllirResult ollirResult) {
@@ -41,14 +69,41 @@ public class BackendStage implements JasminBackend {
             ollirClass.buildVarTables(); // build the table of variables for each method
             //ollirClass.show(); // print to console main information about the input OLLIR
 
-            // Convert the OLLIR to a String containing the equivalent Jasmin code
-            buildJasminCode(ollirClass);
-            String jasminCode = jasminBuilder.toString();
+            // Generate the optimized instructions of each method, which are encoded directly into a class file
+            SourceLines.attach(ollirResult);
+            JMMSymbolTable symbolTable = (JMMSymbolTable) ollirResult.getSymbolTable();
+            List<JasminMethod> methods = new ArrayList<>();
+
+            for (int i = 0; i < ollirClass.getNumMethods(); ++i) {
+                Method method = ollirClass.getMethod(i);
+                buildMethod(ollirClass, symbolTable, method, methods);
+            }
+
+            int classVersion = args != null ? args.classVersion : ClassFileWriter.CLASS_VERSION;
+            ClassFileWriter classFileWriter = new ClassFileWriter(ollirClass.getClassName(),
+                    getSuperClassName(ollirClass), classVersion);
+            classFileWriter.setSourceFile(getSourceFile(ollirClass));
+
+            for (Field field : ollirClass.getFields()) {
+                classFileWriter.addField(field.getFieldAccessModifier().toString().toLowerCase(),
+                        Utils.escapeName(field.getFieldName()), translateType(ollirClass, field.getFieldType()));
+            }
+            if (isInstrumenting()) {
+                methods.add(buildProfileInitializer(ollirClass));
+                methods.add(buildProfileDump(ollirClass));
+                classFileWriter.addField("private static", PROFILE_COUNTERS, "[I");
+            }
+
+            for (JasminMethod method : methods) {
+                classFileWriter.addMethod(method);
+            }
 
             // More reports from this stage
             List<Report> reports = new ArrayList<>();
 
-            return new JasminResult(ollirResult, jasminCode, reports);
+            // The Jasmin code is only built if it is requested
+            return new ClassFileResult(ollirResult, classFileWriter.toByteArray(),
+                    () -> buildJasminCode(ollirClass, methods), reports);
 
         } catch (OllirErrorException e) {
             return new JasminResult(ollirClass.getClassName(), null,
@@ -71,6 +126,18 @@ public class BackendStage implements JasminBackend {
         return jasminBuilder.append(tabs);
     }
 
+    private void emit(String opcode) {
+        code.add(new JasminInstruction(opcode));
+    }
+
+    private void emit(String opcode, int operand) {
+        code.add(new JasminInstruction(opcode, operand));
+    }
+
+    private void emit(String opcode, String operand) {
+        code.add(new JasminInstruction(opcode, operand));
+    }
+
     private String getQualifiedClassName(ClassUnit ollirClass, String className) {
         for (String importName : ollirClass.getImports()) {
             if (importName.endsWith(className)) {
@@ -120,23 +187,28 @@ public class BackendStage implements JasminBackend {
         return jasminType.toString();
     }
 
-    private void buildJasminCode(ClassUnit ollirClass) {
-        jasminBuilder.append(".class public ").append(ollirClass.getClassName()).append("\n");
+    private String getSuperClassName(ClassUnit ollirClass) {
+        return ollirClass.getSuperClass() == null ? "java/lang/Object" : ollirClass.getSuperClass();
+    }
 
-        jasminBuilder.append(".super ");
-        if (ollirClass.getSuperClass() == null) {
-            jasminBuilder.append("java/lang/Object");
-        }
-        else {
-            jasminBuilder.append(ollirClass.getSuperClass());
-        }
-        jasminBuilder.append("\n\n");
+    private String getSourceFile(ClassUnit ollirClass) {
+        return args != null && args.path != null ? new File(args.path).getName() : ollirClass.getClassName() + ".jmm";
+    }
+
+    private String buildJasminCode(ClassUnit ollirClass, List<JasminMethod> methods) {
+        jasminBuilder = new StringBuilder();
+
+        jasminBuilder.append(".source ").append(getSourceFile(ollirClass)).append("\n");
+        jasminBuilder.append(".class public ").append(ollirClass.getClassName()).append("\n");
+        jasminBuilder.append(".super ").append(getSuperClassName(ollirClass)).append("\n\n");
 
         buildFields(ollirClass);
 
-        for (Method method : ollirClass.getMethods()) {
-            buildMethod(ollirClass, method);
+        for (JasminMethod method : methods) {
+            buildMethodCode(method);
         }
+
+        return jasminBuilder.toString();
     }
 
     private void buildFields(ClassUnit ollirClass) {
@@ -147,79 +219,656 @@ public class BackendStage implements JasminBackend {
                     .append(translateType(ollirClass, field.getFieldType())).append("\n");
         }
 
+        if (isInstrumenting()) {
+            jasminBuilder.append(".field private static ").append(PROFILE_COUNTERS).append(" [I\n");
+        }
+
         jasminBuilder.append("\n");
     }
 
-    private int getLocalsLimit(Method method) {
-        OptionalInt limit = method.getVarTable().values().stream().mapToInt(Descriptor::getVirtualReg).max();
-        return limit.orElse(0) + 1;
+    /**
+     * Renumbers the local variables that aren't parameters, giving the lowest registers (which have the shortest
+     * load and store instructions) to the most used ones and removing unused registers. The temporaries left on the
+     * stack (see findStackedAssignments) keep their registers until then, so this is what drops them from the locals.
+     * @param newRegisters filled with the new register of each of those local variables
+     * @return the number of registers used by the method
+     */
+    private int compactLocals(int firstLocal, Map<Integer, Integer> newRegisters) {
+        Map<Integer, Integer> uses = new HashMap<>();
+
+        for (JasminInstruction instruction : code) {
+            if (instruction.isLoad() || instruction.isStore() || instruction.is("iinc")) {
+                int register = instruction.getIntOperand();
+                if (register >= firstLocal) uses.merge(register, 1, Integer::sum);
+            }
+        }
+
+        List<Integer> registers = new ArrayList<>(uses.keySet());
+        registers.sort((a, b) -> uses.get(a).equals(uses.get(b)) ? a - b : uses.get(b) - uses.get(a));
+
+        for (int i = 0; i < registers.size(); ++i) {
+            newRegisters.put(registers.get(i), firstLocal + i);
+        }
+
+        for (int i = 0; i < code.size(); ++i) {
+            JasminInstruction instruction = code.get(i);
+            if (!instruction.isLoad() && !instruction.isStore() && !instruction.is("iinc")) continue;
+
+            int register = instruction.getIntOperand();
+            if (register < firstLocal) continue;
+
+            String operand = instruction.getOperand();
+            code.set(i, instruction.withOperand(
+                    newRegisters.get(register) + operand.substring(String.valueOf(register).length())));
+        }
+
+        return firstLocal + registers.size();
     }
 
-    private void buildMethod(ClassUnit ollirClass, Method method) {
-        Type returnType = method.getReturnType();
+    private void buildMethod(ClassUnit ollirClass, JMMSymbolTable symbolTable, Method method,
+                             List<JasminMethod> methods) {
+        code = new ArrayList<>();
+        labelCount = 0;
+
+        if (isInstrumenting()) findCallSites(ollirClass, method);
+
+        Set<Integer> stackedAssignments = findStackedAssignments(method);
+        int[] sizes = buildMethodBody(ollirClass, method, stackedAssignments, Collections.emptyList(),
+                Collections.emptyList());
+
+        List<MethodSplitter.Region> regions = Collections.emptyList();
+        List<String> helperNames = new ArrayList<>();
+        List<List<JasminInstruction>> helpers = new ArrayList<>();
+
+        int methodSizeLimit = args != null ? args.methodSizeLimit : METHOD_SIZE_LIMIT;
 
-        lineWithTabs().append(".method ");
+        if (!method.isConstructMethod() && Arrays.stream(sizes).sum() > methodSizeLimit) {
+            // Outline parts of the method into helper methods and build it again, calling them
+            regions = new MethodSplitter(method, stackedAssignments).split(sizes, methodSizeLimit);
+
+            for (MethodSplitter.Region region : regions) {
+                helperNames.add(method.getMethodName() + "$split" + ++splitCount);
+                helpers.add(buildHelperBody(ollirClass, method, stackedAssignments, region));
+            }
+
+            code = new ArrayList<>();
+            buildMethodBody(ollirClass, method, stackedAssignments, regions, helperNames);
+        }
+
+        int firstLocal = (method.isStaticMethod() ? 0 : 1) + method.getParams().size();
 
         if (method.isConstructMethod()) {
-            jasminBuilder.append("public <init>()");
+            methods.add(optimizeMethod(ollirClass, null, method, "public", "<init>", "()V", firstLocal, false));
         }
         else {
-            jasminBuilder.append(method.getMethodAccessModifier().toString().toLowerCase()).append(" ");
-            if (method.isStaticMethod()) jasminBuilder.append("static ");
-            jasminBuilder.append(method.getMethodName()).append("(");
-            buildMethodParameters(ollirClass, method);
-            jasminBuilder.append(")");
+            String accessModifiers = method.getMethodAccessModifier().toString().toLowerCase();
+            if (method.isStaticMethod()) accessModifiers += " static";
+
+            methods.add(optimizeMethod(ollirClass, symbolTable, method, accessModifiers, method.getMethodName(),
+                    getMethodDescriptor(ollirClass, method), firstLocal, true));
+        }
+
+        for (int i = 0; i < helpers.size(); ++i) {
+            code = helpers.get(i);
+
+            String descriptor = getHelperDescriptor(ollirClass, method, helperNames.get(i), regions.get(i));
+            methods.add(optimizeMethod(ollirClass, null, null, "private static", helperNames.get(i),
+                    descriptor.substring(helperNames.get(i).length()), regions.get(i).parameters.size(), true));
+        }
+    }
+
+    /**
+     * Optimizes the instructions of the method being built and computes its limits
+     * @param symbolTable used to find the variables of the source code of the method, null if it has none (the
+     *                    constructor and the helper methods created by splitting methods)
+     */
+    private JasminMethod optimizeMethod(ClassUnit ollirClass, JMMSymbolTable symbolTable, Method method,
+                                        String accessModifiers, String name, String descriptor, int firstLocal,
+                                        boolean withLimits) {
+        new PeepholeOptimizer(code).optimize();
+
+        Map<Integer, Integer> newRegisters = new HashMap<>();
+        int numLocals = compactLocals(firstLocal, newRegisters);
+
+        List<JasminMethod.Variable> variables = symbolTable == null ? Collections.emptyList()
+                : findVariables(ollirClass, symbolTable, method, firstLocal, newRegisters);
+
+        return new JasminMethod(accessModifiers, name, descriptor, code, PeepholeOptimizer.getMaxStackSize(code),
+                numLocals, withLimits, variables);
+    }
+
+    /**
+     * Finds the variables of the source code (and this) that keep the same register during the whole method. After
+     * register allocation, variables that share their register with another one are left out.
+     */
+    private List<JasminMethod.Variable> findVariables(ClassUnit ollirClass, JMMSymbolTable symbolTable,
+                                                      Method method, int firstLocal,
+                                                      Map<Integer, Integer> newRegisters) {
+        // Names in the OLLIR code of the variables of the source code
+        Map<String, String> sourceNames = new HashMap<>();
+        String signature = getMethodSignature(method);
+
+        if (symbolTable.getMethodsSymbolTable().containsKey(signature)) {
+            for (Symbol symbol : symbolTable.getParameters(signature)) {
+                sourceNames.put(Utils.escapeName(symbol.getName()), symbol.getName());
+            }
+            for (Symbol symbol : symbolTable.getLocalVariables(signature)) {
+                sourceNames.put(Utils.escapeName(symbol.getName()), symbol.getName());
+            }
+        }
+
+        Map<Integer, Integer> registerUses = new HashMap<>();
+        method.getVarTable().forEach((name, descriptor) -> {
+            if (descriptor.getScope() != VarScope.FIELD) registerUses.merge(descriptor.getVirtualReg(), 1, Integer::sum);
+        });
+
+        List<JasminMethod.Variable> variables = new ArrayList<>();
+        if (!method.isStaticMethod()) {
+            variables.add(new JasminMethod.Variable("this", "L" + ollirClass.getClassName() + ";", 0));
+        }
+
+        method.getVarTable().forEach((name, descriptor) -> {
+            int register = descriptor.getVirtualReg();
+            if (!sourceNames.containsKey(name) || descriptor.getScope() == VarScope.FIELD
+                    || registerUses.get(register) != 1) return;
+
+            if (register >= firstLocal) {
+                if (!newRegisters.containsKey(register)) return; // Never used
+                register = newRegisters.get(register);
+            }
+
+            variables.add(new JasminMethod.Variable(sourceNames.get(name),
+                    translateVariableType(ollirClass, method, name), register));
+        });
+
+        variables.sort(Comparator.comparingInt(variable -> variable.register));
+        return variables;
+    }
+
+    /**
+     * @return the signature of the method in the symbol table
+     */
+    static String getMethodSignature(Method method) {
+        if (method.getMethodName().equals("main")) return "main(String[])";
+
+        List<String> types = new ArrayList<>();
+
+        for (Element parameter : method.getParams()) {
+            Type type = parameter.getType();
+
+            switch (type.getTypeOfElement()) {
+                case INT32:
+                    types.add("int");
+                    break;
+                case BOOLEAN:
+                    types.add("boolean");
+                    break;
+                case ARRAYREF:
+                    types.add("int[]");
+                    break;
+                default:
+                    types.add(((ClassType) type).getName());
+                    break;
+            }
         }
 
-        jasminBuilder.append(translateType(ollirClass, returnType)).append("\n");
+        return method.getMethodName() + "(" + String.join(", ", types) + ")";
+    }
+
+    /**
+     * Appends a method (and its limits, if needed) to the Jasmin code, with the line of the source code of the
+     * instructions and the variables of the source code, which span the whole method
+     */
+    private void buildMethodCode(JasminMethod method) {
+        lineWithTabs().append(".method ").append(method.accessModifiers).append(" ").append(method.name)
+                .append(method.descriptor).append("\n");
         addTab();
 
-        StringBuilder savedJasminBuilder = null;
-        if (!method.isConstructMethod()) {
-            // Method should be on a different builder
-            savedJasminBuilder = jasminBuilder;
-            jasminBuilder = new StringBuilder();
-            stackSize = 0;
-            maxStackSize = 0;
+        if (method.withLimits) {
+            lineWithTabs().append(".limit stack ").append(method.maxStack).append("\n");
+            lineWithTabs().append(".limit locals ").append(method.maxLocals).append("\n");
         }
 
-        buildMethodBody(ollirClass, method);
+        for (JasminMethod.Variable variable : method.variables) {
+            lineWithTabs().append(".var ").append(variable.register).append(" is ").append(variable.name).append(" ")
+                    .append(variable.descriptor).append(" from method_start to method_end\n");
+        }
+        if (!method.variables.isEmpty()) {
+            jasminBuilder.append("method_start:\n");
+        }
+
+        int line = 0;
+
+        for (JasminInstruction instruction : method.code) {
+            if (instruction.isLabel()) {
+                jasminBuilder.append(instruction).append("\n");
+                continue;
+            }
 
-        if (!method.isConstructMethod()) {
-            // Method stored in an auxiliary builder
-            StringBuilder methodJasminBuilder = jasminBuilder;
-            jasminBuilder = savedJasminBuilder;
-            lineWithTabs().append(".limit stack ").append(maxStackSize).append("\n");
+            if (instruction.getLine() != 0 && instruction.getLine() != line) {
+                line = instruction.getLine();
+                lineWithTabs().append(".line ").append(line).append("\n");
+            }
 
-            int numLocals = getLocalsLimit(method);
-            // "this" is not explicitly present in the var table unless the function uses the keyword
-            if (!method.isStaticMethod() && !method.getVarTable().containsKey("this")) numLocals += 1;
+            lineWithTabs().append(instruction).append("\n");
+        }
 
-            lineWithTabs().append(".limit locals ").append(numLocals).append("\n");
-            jasminBuilder.append(methodJasminBuilder);
+        if (!method.variables.isEmpty()) {
+            jasminBuilder.append("method_end:\n");
         }
 
         removeTab();
         lineWithTabs().append(".end method\n\n");
     }
 
-    private void buildMethodParameters(ClassUnit ollirClass, Method method) {
+    private String getMethodDescriptor(ClassUnit ollirClass, Method method) {
+        StringBuilder descriptor = new StringBuilder("(");
+
         for (Element parameter : method.getParams()) {
-            jasminBuilder.append(translateType(ollirClass, parameter.getType()));
+            descriptor.append(translateType(ollirClass, parameter.getType()));
         }
+
+        return descriptor.append(")").append(translateType(ollirClass, method.getReturnType())).toString();
     }
 
-    private void buildMethodBody(ClassUnit ollirClass, Method method) {
-        for (Instruction instruction : method.getInstructions()) {
+    /**
+     * Builds the instructions of the method, replacing the given regions with calls to their helper methods
+     * @return the size in bytes of the code of each instruction
+     */
+    private int[] buildMethodBody(ClassUnit ollirClass, Method method, Set<Integer> stackedAssignments,
+                                  List<MethodSplitter.Region> regions, List<String> helperNames) {
+        List<Instruction> instructions = method.getInstructions();
+        int[] sizes = new int[instructions.size()];
+        int regionIndex = 0;
+
+        buildProfileCounter(method, Profile.ENTRY);
+
+        for (int i = 0; i < instructions.size(); ) {
+            if (regionIndex < regions.size() && regions.get(regionIndex).start == i) {
+                MethodSplitter.Region region = regions.get(regionIndex);
+
+                // The helper counts the block
+                buildLabels(method, i, false);
+                buildHelperCall(ollirClass, method, region, helperNames.get(regionIndex++));
+
+                i = region.end;
+                continue;
+            }
+
+            int start = code.size();
+            buildInstructionRange(ollirClass, method, stackedAssignments, i, i + 1);
+
+            for (int j = start; j < code.size(); ++j) {
+                sizes[i] += code.get(j).getSize();
+            }
+            ++i;
+        }
+
+        return sizes;
+    }
+
+    private void buildInstructionRange(ClassUnit ollirClass, Method method, Set<Integer> stackedAssignments,
+                                       int start, int end) {
+        List<Instruction> instructions = method.getInstructions();
+
+        for (int i = start; i < end; ++i) {
+            Instruction instruction = instructions.get(i);
+
+            if (stackedAssignments.contains(i)) {
+                // The value is computed when the next instruction loads the variable
+                AssignInstruction assignInstruction = (AssignInstruction) instruction;
+                buildLabels(method, i, true);
+
+                Integer line = SourceLines.get(instruction);
+                stackedValues.put(((Operand) assignInstruction.getDest()).getName(), () -> {
+                    int codeStart = code.size();
+                    buildInstruction(ollirClass, method, assignInstruction.getRhs());
+                    setSourceLine(codeStart, line);
+                });
+                continue;
+            }
+
+            int codeStart = code.size();
+            buildLabels(method, i, true);
             buildInstruction(ollirClass, method, instruction);
+            setSourceLine(codeStart, SourceLines.get(instruction));
         }
     }
 
-    private void buildInstruction(ClassUnit ollirClass, Method method, Instruction instruction) {
-        for (String label : method.getLabels(instruction)) {
-            jasminBuilder.append(label).append(":\n");
+    /**
+     * Sets the line of the instructions built from the given position on, except for the right-hand sides of
+     * assignments that were left on the stack, which keep the line of their assignment
+     */
+    private void setSourceLine(int codeStart, Integer line) {
+        if (line == null) return;
+
+        for (int i = codeStart; i < code.size(); ++i) {
+            if (code.get(i).getLine() == 0) code.get(i).setLine(line);
+        }
+    }
+
+    private String getHelperDescriptor(ClassUnit ollirClass, Method method, String helperName,
+                                       MethodSplitter.Region region) {
+        StringBuilder descriptor = new StringBuilder(helperName).append("(");
+
+        for (String name : region.parameters) {
+            descriptor.append(translateVariableType(ollirClass, method, name));
+        }
+
+        descriptor.append(")");
+        descriptor.append(region.result == null ? "V" : translateVariableType(ollirClass, method, region.result));
+
+        return descriptor.toString();
+    }
+
+    private String translateVariableType(ClassUnit ollirClass, Method method, String name) {
+        Type type = method.getVarTable().get(name).getVarType();
+
+        if (type.getTypeOfElement() == ElementType.THIS) {
+            return "L" + ollirClass.getClassName() + ";";
+        }
+        return translateType(ollirClass, type);
+    }
+
+    private boolean isIntegerVariable(Method method, String name) {
+        ElementType type = method.getVarTable().get(name).getVarType().getTypeOfElement();
+        return type == ElementType.INT32 || type == ElementType.BOOLEAN;
+    }
+
+    private void buildHelperCall(ClassUnit ollirClass, Method method, MethodSplitter.Region region, String helperName) {
+        for (String name : region.parameters) {
+            emit(isIntegerVariable(method, name) ? "iload" : "aload", method.getVarTable().get(name).getVirtualReg());
+        }
+
+        emit("invokestatic", ollirClass.getClassName() + "/" + getHelperDescriptor(ollirClass, method, helperName, region));
+
+        if (region.result != null) {
+            emit(isIntegerVariable(method, region.result) ? "istore" : "astore",
+                    method.getVarTable().get(region.result).getVirtualReg());
+        }
+    }
+
+    /**
+     * Builds the instructions of the helper method of a region. The parameters take the first registers and each
+     * other variable gets its own register (they are renumbered afterwards). Jumps to the instruction after the region
+     * return from the helper.
+     */
+    private List<JasminInstruction> buildHelperBody(ClassUnit ollirClass, Method method,
+                                                    Set<Integer> stackedAssignments, MethodSplitter.Region region) {
+        List<JasminInstruction> methodCode = code;
+        code = new ArrayList<>();
+
+        Map<String, Descriptor> varTable = method.getVarTable();
+        Map<String, Integer> savedRegisters = new HashMap<>();
+        varTable.forEach((name, descriptor) -> savedRegisters.put(name, descriptor.getVirtualReg()));
+
+        int register = 0;
+        for (String name : region.parameters) {
+            varTable.get(name).setVirtualReg(register++);
+        }
+        for (Map.Entry<String, Descriptor> entry : varTable.entrySet()) {
+            if (!region.parameters.contains(entry.getKey())) entry.getValue().setVirtualReg(register++);
+        }
+
+        buildInstructionRange(ollirClass, method, stackedAssignments, region.start, region.end);
+        buildLabels(method, region.end, false);
+
+        if (region.result != null) {
+            boolean isInteger = isIntegerVariable(method, region.result);
+            emit(isInteger ? "iload" : "aload", varTable.get(region.result).getVirtualReg());
+            emit(isInteger ? "ireturn" : "areturn");
+        }
+        else {
+            emit("return");
+        }
+
+        savedRegisters.forEach((name, savedRegister) -> varTable.get(name).setVirtualReg(savedRegister));
+
+        List<JasminInstruction> helperCode = code;
+        code = methodCode;
+        return helperCode;
+    }
+    /**
+     * Finds the assignments to local variables (usually temporaries) that are assigned once and read once, by the
+     * next instruction. Their value can stay on the operand stack instead of being stored and loaded again, as long as
+     * the next instruction can't be reached from elsewhere and only pushes plain values before loading the variable
+     * (evaluating the right-hand side of the assignment later can't change them).
+     * @return the indices of those assignments
+     */
+    private Set<Integer> findStackedAssignments(Method method) {
+        List<Instruction> instructions = method.getInstructions();
+        List<List<Element>> reads = new ArrayList<>();
+        Map<String, Integer> numReads = new HashMap<>(), numWrites = new HashMap<>();
+
+        for (Instruction instruction : instructions) {
+            List<Element> elements = new ArrayList<>();
+            addReadElements(instruction, elements);
+            reads.add(elements);
+
+            for (Element element : elements) {
+                if (element != null && !element.isLiteral()) numReads.merge(((Operand) element).getName(), 1, Integer::sum);
+            }
+
+            if (instruction.getInstType() == InstructionType.ASSIGN) {
+                numWrites.merge(((Operand) ((AssignInstruction) instruction).getDest()).getName(), 1, Integer::sum);
+            }
+        }
+
+        Set<Integer> result = new HashSet<>();
+
+        for (int i = 0; i + 1 < instructions.size(); ++i) {
+            if (instructions.get(i).getInstType() != InstructionType.ASSIGN
+                    || !method.getLabels(instructions.get(i + 1)).isEmpty()) continue;
+
+            Element destination = ((AssignInstruction) instructions.get(i)).getDest();
+            String name = ((Operand) destination).getName();
+            Descriptor descriptor = method.getVarTable().get(name);
+
+            if (destination instanceof ArrayOperand || descriptor == null || descriptor.getScope() != VarScope.LOCAL
+                    || numWrites.get(name) != 1 || numReads.getOrDefault(name, 0) != 1) continue;
+
+            for (Element element : reads.get(i + 1)) {
+                if (element == null) break; // Something that may throw or read memory is evaluated before
+
+                if (!element.isLiteral() && ((Operand) element).getName().equals(name)) {
+                    if (!(element instanceof ArrayOperand)) result.add(i);
+                    break;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Adds the elements read by an instruction, in the order they are pushed onto the stack. Array reads are followed
+     * by null, since they may throw an exception.
+     */
+    static void addReadElements(Instruction instruction, List<Element> elements) {
+        switch (instruction.getInstType()) {
+            case ASSIGN: {
+                AssignInstruction assignInstruction = (AssignInstruction) instruction;
+                if (assignInstruction.getDest() instanceof ArrayOperand) {
+                    ArrayOperand destination = (ArrayOperand) assignInstruction.getDest();
+                    elements.add(destination);
+                    elements.addAll(destination.getIndexOperands());
+                }
+                addReadElements(assignInstruction.getRhs(), elements);
+                break;
+            }
+            case BINARYOPER: {
+                BinaryOpInstruction binaryOpInstruction = (BinaryOpInstruction) instruction;
+                addReadElement(binaryOpInstruction.getLeftOperand(), elements);
+                addReadElement(binaryOpInstruction.getRightOperand(), elements);
+                break;
+            }
+            case BRANCH: {
+                CondBranchInstruction branchInstruction = (CondBranchInstruction) instruction;
+                addReadElement(branchInstruction.getLeftOperand(), elements);
+                addReadElement(branchInstruction.getRightOperand(), elements);
+                break;
+            }
+            case CALL: {
+                CallInstruction callInstruction = (CallInstruction) instruction;
+                if (callInstruction.getInvocationType() != CallType.invokestatic
+                        && callInstruction.getInvocationType() != CallType.NEW) {
+                    addReadElement(callInstruction.getFirstArg(), elements);
+                }
+                if (callInstruction.getListOfOperands() != null) {
+                    for (Element operand : callInstruction.getListOfOperands()) {
+                        addReadElement(operand, elements);
+                    }
+                }
+                break;
+            }
+            case NOPER:
+                addReadElement(((SingleOpInstruction) instruction).getSingleOperand(), elements);
+                break;
+            case RETURN:
+                addReadElement(((ReturnInstruction) instruction).getOperand(), elements);
+                break;
+            case GETFIELD:
+                addReadElement(((GetFieldInstruction) instruction).getFirstOperand(), elements);
+                break;
+            case PUTFIELD:
+                addReadElement(((PutFieldInstruction) instruction).getFirstOperand(), elements);
+                addReadElement(((PutFieldInstruction) instruction).getThirdOperand(), elements);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void addReadElement(Element element, List<Element> elements) {
+        if (element == null) return;
+
+        elements.add(element);
+
+        if (element instanceof ArrayOperand) {
+            ArrayOperand arrayOperand = (ArrayOperand) element;
+            for (Element index : arrayOperand.getIndexOperands()) {
+                addReadElement(index, elements);
+            }
+            elements.add(null);
+        }
+    }
+
+    /**
+     * Adds the labels of an instruction and, when instrumenting, increments the counters of the block starting there
+     */
+    private void buildLabels(Method method, int index, boolean counted) {
+        for (String label : method.getLabels(method.getInstructions().get(index))) {
+            code.add(JasminInstruction.label(label));
+        }
+
+        if (counted && isInstrumenting()) {
+            for (String point : Profile.getBlockPoints(method, index)) {
+                buildProfileCounter(method, point);
+            }
+        }
+    }
+
+    private boolean isInstrumenting() {
+        return args != null && args.instrument;
+    }
+
+    /**
+     * Numbers the calls of the method to the methods of its class, separately for each called method
+     */
+    private void findCallSites(ClassUnit ollirClass, Method method) {
+        Set<String> methodNames = new HashSet<>();
+        for (Method classMethod : ollirClass.getMethods()) {
+            if (!classMethod.isConstructMethod()) methodNames.add(classMethod.getMethodName());
+        }
+
+        Map<String, Integer> numCalls = new HashMap<>();
+
+        for (Instruction instruction : method.getInstructions()) {
+            if (instruction.getInstType() == InstructionType.ASSIGN) {
+                instruction = ((AssignInstruction) instruction).getRhs();
+            }
+            if (instruction.getInstType() != InstructionType.CALL) continue;
+
+            CallInstruction callInstruction = (CallInstruction) instruction;
+            Element firstArg = callInstruction.getFirstArg(), secondArg = callInstruction.getSecondArg();
+            if (secondArg == null || !secondArg.isLiteral()) continue;
+
+            String methodName = ((LiteralElement) secondArg).getLiteral().replace("\"", "");
+            boolean isClassMethod = firstArg.getType().getTypeOfElement() == ElementType.THIS
+                    || (firstArg.getType() instanceof ClassType
+                    && ((ClassType) firstArg.getType()).getName().equals(ollirClass.getClassName()))
+                    || ((Operand) firstArg).getName().equals(ollirClass.getClassName());
+
+            if (isClassMethod && methodNames.contains(methodName)) {
+                callSites.put(callInstruction, numCalls.merge(methodName, 1, Integer::sum));
+            }
+        }
+    }
+
+    /**
+     * Increments the counter of a point of the method, which is dumped to the profile when main returns
+     */
+    private void buildProfileCounter(Method method, String point) {
+        if (!isInstrumenting() || method.isConstructMethod()) return;
+
+        String key = point + " " + getMethodSignature(method);
+        int index = profileCounters.computeIfAbsent(key, k -> profileCounters.size());
+
+        emit("getstatic", method.getOllirClass().getClassName() + "/" + PROFILE_COUNTERS + " [I");
+        emit("iconst", index);
+        emit("dup2");
+        emit("iaload");
+        emit("iconst", 1);
+        emit("iadd");
+        emit("iastore");
+    }
+
+    /**
+     * Builds the static initializer that creates the counters of the instrumented class
+     */
+    private JasminMethod buildProfileInitializer(ClassUnit ollirClass) {
+        code = new ArrayList<>();
+
+        emit("iconst", profileCounters.size());
+        emit("newarray", "int");
+        emit("putstatic", ollirClass.getClassName() + "/" + PROFILE_COUNTERS + " [I");
+        emit("return");
+
+        return optimizeMethod(ollirClass, null, null, "static", "<clinit>", "()V", 0, true);
+    }
+
+    /**
+     * Builds the method that writes the counters to ClassName.profile, one "count point signature" line each
+     */
+    private JasminMethod buildProfileDump(ClassUnit ollirClass) {
+        code = new ArrayList<>();
+        String className = ollirClass.getClassName();
+
+        emit("new", "java/io/PrintStream");
+        emit("dup");
+        emit("ldc", "\"" + className + ".profile\"");
+        emit("invokespecial", "java/io/PrintStream/<init>(Ljava/lang/String;)V");
+        emit("astore", 0);
+
+        for (Map.Entry<String, Integer> counter : profileCounters.entrySet()) {
+            emit("aload", 0);
+            emit("getstatic", className + "/" + PROFILE_COUNTERS + " [I");
+            emit("iconst", counter.getValue());
+            emit("iaload");
+            emit("invokevirtual", "java/io/PrintStream/print(I)V");
+            emit("aload", 0);
+            emit("ldc", "\" " + counter.getKey() + "\"");
+            emit("invokevirtual", "java/io/PrintStream/println(Ljava/lang/String;)V");
         }
 
+        emit("aload", 0);
+        emit("invokevirtual", "java/io/PrintStream/close()V");
+        emit("return");
+
+        return optimizeMethod(ollirClass, null, null, "private static", PROFILE_DUMP, "()V", 0, true);
+    }
+
+    private void buildInstruction(ClassUnit ollirClass, Method method, Instruction instruction) {
         switch (instruction.getInstType()) {
             case ASSIGN:
                 buildAssignInstruction(ollirClass, method, (AssignInstruction) instruction);
@@ -265,7 +914,7 @@ public class BackendStage implements JasminBackend {
             if (type == ElementType.ARRAYREF && assignType == ElementType.INT32) {
                 // Assigning to an array element
                 // Push the array reference onto the stack
-                lineWithTabs().append(aloadInstruction(descriptor.getVirtualReg())).append("\n");
+                emit("aload", descriptor.getVirtualReg());
 
                 ArrayOperand destinationArray = (ArrayOperand) destination;
                 // Push the index that is being accessed onto the stack
@@ -274,22 +923,36 @@ public class BackendStage implements JasminBackend {
 
             Instruction rhs = instruction.getRhs();
 
-            // If the assignment is of type a = a + <b>, where <b> is an integer literal that fits in a signed
-            // byte, use iinc as a more efficient instruction
+            // If the assignment is of type a = a + <b>, a = <b> + a or a = a - <b>, where <b> is an integer literal
+            // and the increment fits in a signed byte, use iinc as a more efficient instruction
             if (type == ElementType.INT32 && rhs.getInstType() == InstructionType.BINARYOPER) {
                 BinaryOpInstruction binaryOpInstruction = (BinaryOpInstruction) rhs;
+                OperationType opType = binaryOpInstruction.getUnaryOperation().getOpType();
 
-                if (binaryOpInstruction.getUnaryOperation().getOpType() == OperationType.ADD
-                        && binaryOpInstruction.getRightOperand().isLiteral()
-                        && !binaryOpInstruction.getLeftOperand().isLiteral()) {
-                    Operand leftOperand = (Operand) binaryOpInstruction.getLeftOperand();
-                    LiteralElement rightElement = (LiteralElement) binaryOpInstruction.getRightOperand();
+                Element leftElement = binaryOpInstruction.getLeftOperand(),
+                        rightElement = binaryOpInstruction.getRightOperand();
 
-                    int increment = Integer.parseInt(rightElement.getLiteral());
+                // a = <b> + a is also an increment
+                if (opType == OperationType.ADD && leftElement.isLiteral()) {
+                    leftElement = rightElement;
+                    rightElement = binaryOpInstruction.getLeftOperand();
+                }
 
-                    if (increment >= -128 && increment <= 127 && leftOperand.getName().equals(destination.getName())) {
-                        lineWithTabs().append("iinc ").append(descriptor.getVirtualReg()).append(" ")
-                                .append(rightElement.getLiteral()).append("\n");
+                if ((opType == OperationType.ADD || opType == OperationType.SUB)
+                        && rightElement.isLiteral() && !leftElement.isLiteral()
+                        && !(leftElement instanceof ArrayOperand)) {
+                    Operand leftOperand = (Operand) leftElement;
+                    Descriptor leftDescriptor = method.getVarTable().get(leftOperand.getName());
+
+                    int increment = Integer.parseInt(((LiteralElement) rightElement).getLiteral());
+                    if (opType == OperationType.SUB) increment = -increment;
+
+                    // Compare registers rather than names, so parameters and variables that share a register after
+                    // register allocation are also covered
+                    if (increment >= -128 && increment <= 127 && leftDescriptor != null
+                            && leftDescriptor.getVirtualReg() == descriptor.getVirtualReg()
+                            && !stackedValues.containsKey(leftOperand.getName())) {
+                        emit("iinc", descriptor.getVirtualReg() + " " + increment);
                         return;
                     }
                 }
@@ -301,19 +964,18 @@ public class BackendStage implements JasminBackend {
             switch (type) {
                 case BOOLEAN:
                 case INT32:
-                    lineWithTabs().append(istoreInstruction(descriptor.getVirtualReg())).append("\n");
+                    emit("istore", descriptor.getVirtualReg());
                     break;
                 case ARRAYREF:
                     if (assignType == ElementType.ARRAYREF) {
-                        lineWithTabs().append(astoreInstruction(descriptor.getVirtualReg())).append("\n");
+                        emit("astore", descriptor.getVirtualReg());
                     }
                     else {
-                        lineWithTabs().append("iastore\n");
-                        updateStackSize(-3);
+                        emit("iastore");
                     }
                     break;
                 case OBJECTREF:
-                    lineWithTabs().append(astoreInstruction(descriptor.getVirtualReg())).append("\n");
+                    emit("astore", descriptor.getVirtualReg());
                     break;
                 default:
                     break;
@@ -326,6 +988,23 @@ public class BackendStage implements JasminBackend {
                 rightElement = instruction.getRightOperand();
         Operation operation = instruction.getUnaryOperation();
 
+        if (buildStrengthReducedOperation(method, operation.getOpType(), leftElement, rightElement)) {
+            return;
+        }
+
+        if (compareBranches.containsKey(operation.getOpType())) {
+            // Materialize the result of the comparison: 1 if the jump is taken, 0 otherwise
+            String trueLabel = "cmp_true" + ++labelCount, endLabel = "cmp_end" + labelCount;
+
+            buildComparisonJump(method, operation.getOpType(), leftElement, rightElement, trueLabel);
+            emit("iconst", 0);
+            emit("goto", endLabel);
+            code.add(JasminInstruction.label(trueLabel));
+            emit("iconst", 1);
+            code.add(JasminInstruction.label(endLabel));
+            return;
+        }
+
         loadElement(method, leftElement);
         if (!operation.getOpType().equals(OperationType.NOTB)) {
             loadElement(method, rightElement);
@@ -333,44 +1012,133 @@ public class BackendStage implements JasminBackend {
 
         switch (operation.getOpType()) {
             case ADD:
-                lineWithTabs().append("iadd\n");
-                updateStackSize(-1);
+                emit("iadd");
                 break;
             case SUB:
-                lineWithTabs().append("isub\n");
-                updateStackSize(-1);
+                emit("isub");
                 break;
             case MUL:
-                lineWithTabs().append("imul\n");
-                updateStackSize(-1);
+                emit("imul");
                 break;
             case DIV:
-                lineWithTabs().append("idiv\n");
-                updateStackSize(-1);
+                emit("idiv");
                 break;
             case ANDB:
-                lineWithTabs().append("iand\n");
-                updateStackSize(-1);
+                emit("iand");
                 break;
-            case LTH:
-                // a < b <=> (a - b) >>> 31 (for 32 bit integers, assuming 0 = false and 1 = true, >>> is unsigned shift right)
-                lineWithTabs().append("isub\n");
-                updateStackSize(-1);
-                lineWithTabs().append(iconstInstruction(31)).append("\n");
-                lineWithTabs().append("iushr\n");
-                updateStackSize(-1);
+            case ORB:
+                emit("ior");
                 break;
             case NOTB:
                 // !b <=> b XOR 1 (assuming 0 = false and 1 = true)
-                lineWithTabs().append(iconstInstruction(1)).append("\n");
-                lineWithTabs().append("ixor\n");
-                updateStackSize(-1);
+                emit("iconst", 1);
+                emit("ixor");
                 break;
             default:
                 break;
         }
     }
 
+    private static Integer getLiteralValue(Element element) {
+        return element.isLiteral() ? Integer.parseInt(((LiteralElement) element).getLiteral()) : null;
+    }
+
+    /**
+     * Instruction selection for arithmetic with an integer literal operand: multiplications by 0, 1, -1 and powers of
+     * two, and divisions by 1, -1 and powers of two, become constants, copies, negations or shifts.
+     * @return true if instructions were emitted, false if the operation must be built with imul or idiv
+     */
+    private boolean buildStrengthReducedOperation(Method method, OperationType opType, Element leftElement,
+                                                  Element rightElement) {
+        Integer left = getLiteralValue(leftElement), right = getLiteralValue(rightElement);
+
+        if (left != null && right != null) {
+            // Both operands are constant (the ones left by constant propagation)
+            switch (opType) {
+                case ADD: emit("iconst", left + right); return true;
+                case SUB: emit("iconst", left - right); return true;
+                case MUL: emit("iconst", left * right); return true;
+                case DIV:
+                    if (right == 0) return false; // Keep the ArithmeticException
+                    emit("iconst", left / right);
+                    return true;
+                default: return false;
+            }
+        }
+
+        if (opType == OperationType.MUL && left != null) {
+            // Multiplication is commutative, keep the literal on the right
+            Element element = leftElement;
+            leftElement = rightElement;
+            rightElement = element;
+            right = left;
+        }
+
+        // Array reads may throw, they can't be dropped
+        if (right == null || leftElement instanceof ArrayOperand) return false;
+
+        switch (opType) {
+            case ADD:
+            case SUB:
+                if (right != 0) return false;
+                loadElement(method, leftElement); // x + 0 = x - 0 = x
+                return true;
+            case MUL:
+                if (right == 0) {
+                    // The operand is still evaluated, in case it is a stacked value (the pop is removed otherwise)
+                    loadElement(method, leftElement);
+                    emit("pop");
+                    emit("iconst", 0);
+                }
+                else if (right == -1) {
+                    loadElement(method, leftElement);
+                    emit("ineg");
+                }
+                else if (right > 0 && Integer.bitCount(right) == 1) {
+                    // x * 2^k = x << k (and x * 1 = x)
+                    loadElement(method, leftElement);
+                    if (right != 1) {
+                        emit("iconst", Integer.numberOfTrailingZeros(right));
+                        emit("ishl");
+                    }
+                }
+                else {
+                    return false;
+                }
+                return true;
+            case DIV:
+                if (right == -1) {
+                    loadElement(method, leftElement);
+                    emit("ineg");
+                }
+                else if (right > 0 && Integer.bitCount(right) == 1) {
+                    // x / 2^k = (x + ((x >> 31) >>> (32 - k))) >> k, the added bias rounds negative values towards
+                    // zero like idiv does (and x / 1 = x)
+                    int shift = Integer.numberOfTrailingZeros(right);
+
+                    loadElement(method, leftElement);
+                    if (shift != 0) {
+                        emit("dup");
+                        if (shift != 1) {
+                            emit("iconst", 31);
+                            emit("ishr");
+                        }
+                        emit("iconst", 32 - shift);
+                        emit("iushr");
+                        emit("iadd");
+                        emit("iconst", shift);
+                        emit("ishr");
+                    }
+                }
+                else {
+                    return false;
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
     private void buildBranchInstruction(Method method, CondBranchInstruction instruction) {
         Element leftOperand = instruction.getLeftOperand(),
                 rightOperand = instruction.getRightOperand();
@@ -378,39 +1146,87 @@ public class BackendStage implements JasminBackend {
         Operation operation = instruction.getCondOperation();
 
         switch (operation.getOpType()) {
-            case LTH:    // i32 < i32
+            case ANDB:      // bool && bool
                 loadElement(method, leftOperand);
                 loadElement(method, rightOperand);
-                lineWithTabs().append("if_icmplt ").append(instruction.getLabel()).append("\n");
-                updateStackSize(-2);
+                emit("iand");
+                emit("ifne", instruction.getLabel());
                 break;
-            case ANDB:      // bool && bool
+            case ORB:       // bool || bool
                 loadElement(method, leftOperand);
                 loadElement(method, rightOperand);
-                lineWithTabs().append("iand\n");
-                updateStackSize(-1);
-                lineWithTabs().append("ifne ").append(instruction.getLabel()).append("\n");
-                updateStackSize(-1);
+                emit("ior");
+                emit("ifne", instruction.getLabel());
                 break;
-            case NOTB:
+            case NOTB:      // !bool
                 loadElement(method, leftOperand);
-                lineWithTabs().append(iconstInstruction(1)).append("\n");
-                lineWithTabs().append("ixor\n");
-                updateStackSize(-1);
-                lineWithTabs().append("ifne ").append(instruction.getLabel()).append("\n");
-                updateStackSize(-1);
+                emit("ifeq", instruction.getLabel());
                 break;
-            default:
+            default:        // i32 <op> i32 and bool ==/!= bool
+                buildComparisonJump(method, operation.getOpType(), leftOperand, rightOperand, instruction.getLabel());
                 break;
         }
     }
 
+    /**
+     * Jumps to the label if the comparison is true. Comparisons with 0 use the single operand jumps (ifeq, iflt, ...)
+     * and comparisons between two literals become either an unconditional jump or nothing.
+     */
+    private void buildComparisonJump(Method method, OperationType opType, Element leftElement, Element rightElement,
+                                     String label) {
+        if (!compareBranches.containsKey(opType)) return;
+
+        Integer left = getLiteralValue(leftElement), right = getLiteralValue(rightElement);
+
+        if (left != null && right != null) {
+            if (compareLiterals(opType, left, right)) {
+                emit("goto", label);
+            }
+            return;
+        }
+
+        if (left != null && left == 0) {
+            // 0 <op> b <=> b <mirrored op> 0
+            leftElement = rightElement;
+            rightElement = null;
+            opType = mirroredComparisons.get(opType);
+        }
+        else if (right != null && right == 0) {
+            rightElement = null;
+        }
+
+        loadElement(method, leftElement);
+        if (rightElement == null) {
+            emit(zeroBranches.get(opType), label);
+        }
+        else {
+            loadElement(method, rightElement);
+            emit(compareBranches.get(opType), label);
+        }
+    }
+
+    static boolean compareLiterals(OperationType opType, int left, int right) {
+        switch (opType) {
+            case LTH: return left < right;
+            case LTE: return left <= right;
+            case GTH: return left > right;
+            case GTE: return left >= right;
+            case EQ: return left == right;
+            default: return left != right;
+        }
+    }
+
     private void buildCallInstruction(ClassUnit ollirClass, Method method, CallInstruction instruction) {
         Element firstArg = instruction.getFirstArg(),
                 secondArg = instruction.getSecondArg();
 
         ElementType firstArgType = firstArg.getType().getTypeOfElement();
 
+        if (callSites.containsKey(instruction)) {
+            String methodName = ((LiteralElement) secondArg).getLiteral().replace("\"", "");
+            buildProfileCounter(method, Profile.callSite(methodName, callSites.get(instruction)));
+        }
+
         StringBuilder invocationJasmin = new StringBuilder();
 
         if (instruction.getInvocationType() == CallType.NEW) {
@@ -418,14 +1234,13 @@ public class BackendStage implements JasminBackend {
                 case OBJECTREF:
                 case CLASS: {
                     ClassType classType = (ClassType) firstArg.getType();
-                    updateStackSize(1);
-                    lineWithTabs().append("new ").append(getQualifiedClassName(ollirClass, classType.getName())).append("\n");
+                    emit("new", getQualifiedClassName(ollirClass, classType.getName()));
                     return;
                 }
                 case ARRAYREF: {
                     Element sizeOperand = instruction.getListOfOperands().get(0);
                     loadElement(method, sizeOperand);
-                    lineWithTabs().append("newarray int\n"); // New arrays in J-- can only be one-dimensional int arrays
+                    emit("newarray", "int"); // New arrays in J-- can only be one-dimensional int arrays
                     return;
                 }
                 default:
@@ -434,14 +1249,11 @@ public class BackendStage implements JasminBackend {
         }
         else if (instruction.getInvocationType() == CallType.arraylength) {
             loadElement(method, firstArg);
-            lineWithTabs().append("arraylength\n");
+            emit("arraylength");
             return;
         }
-        else {
-            if (instruction.getInvocationType() != CallType.invokestatic) {
-                loadElement(method, firstArg);
-            }
-            invocationJasmin.append(instruction.getInvocationType()).append(" ");
+        else if (instruction.getInvocationType() != CallType.invokestatic) {
+            loadElement(method, firstArg);
         }
 
         if (secondArg != null && secondArg.isLiteral()) {
@@ -461,7 +1273,7 @@ public class BackendStage implements JasminBackend {
                     ClassType classType = (ClassType) firstOperand.getType();
                     invocationJasmin.append(getQualifiedClassName(ollirClass, classType.getName()));
                 }
-                invocationJasmin.append("/<init>()V\n");
+                invocationJasmin.append("/<init>()V");
             }
             else {
                 String literal = literalElement.getLiteral(),
@@ -490,36 +1302,15 @@ public class BackendStage implements JasminBackend {
                     invocationJasmin.append(translateType(ollirClass, methodArg.getType()));
                 }
 
-                invocationJasmin.append(")").append(translateType(ollirClass, instruction.getReturnType()))
-                        .append("\n");
+                invocationJasmin.append(")").append(translateType(ollirClass, instruction.getReturnType()));
             }
         }
 
-        int numArguments = instruction.getListOfOperands().size();
-
-        switch (instruction.getInvocationType()) {
-            case invokespecial:
-            case invokevirtual:
-                updateStackSize(-1 - numArguments);
-                break;
-            case invokestatic:
-                updateStackSize(-numArguments);
-                break;
-            default:
-                break;
-        }
-
-        lineWithTabs().append(invocationJasmin);
-
-        // If function call returns a value, increment stack size
-        if (instruction.getReturnType().getTypeOfElement() != ElementType.VOID) {
-            updateStackSize(1);
+        emit(instruction.getInvocationType().toString(), invocationJasmin.toString());
 
-            if (!instruction.getPred().isEmpty()) {
-                // Value of the instruction isn't being used, pop return value from the stack
-                lineWithTabs().append("pop\n");
-                updateStackSize(-1);
-            }
+        if (instruction.getReturnType().getTypeOfElement() != ElementType.VOID && !instruction.getPred().isEmpty()) {
+            // Value of the instruction isn't being used, pop return value from the stack
+            emit("pop");
         }
     }
 
@@ -528,12 +1319,16 @@ public class BackendStage implements JasminBackend {
     }
 
     private void buildGotoInstruction(GotoInstruction instruction) {
-        lineWithTabs().append("goto ").append(instruction.getLabel()).append("\n");
+        emit("goto", instruction.getLabel());
     }
 
     private void buildReturnInstruction(Method method, ReturnInstruction instruction) {
         Element operand = instruction.getOperand();
 
+        if (isInstrumenting() && method.getMethodName().equals("main") && method.isStaticMethod()) {
+            emit("invokestatic", method.getOllirClass().getClassName() + "/" + PROFILE_DUMP + "()V");
+        }
+
         if (operand != null) {
             loadElement(method, operand);
 
@@ -542,20 +1337,20 @@ public class BackendStage implements JasminBackend {
             switch (type) {
                 case INT32:
                 case BOOLEAN:
-                    lineWithTabs().append("ireturn\n");
+                    emit("ireturn");
                     break;
                 case OBJECTREF:
                 case ARRAYREF:
                 case STRING:
                 case THIS:
-                    lineWithTabs().append("areturn\n");
+                    emit("areturn");
                     break;
                 default:
                     break;
             }
         }
         else {
-            lineWithTabs().append("return\n");
+            emit("return");
         }
     }
 
@@ -565,8 +1360,8 @@ public class BackendStage implements JasminBackend {
         
         Operand field = (Operand) instruction.getSecondOperand();
 
-        lineWithTabs().append("getfield ").append(ollirClass.getClassName()).append("/").append(field.getName())
-                .append(" ").append(translateType(ollirClass, field.getType())).append("\n");
+        emit("getfield", ollirClass.getClassName() + "/" + field.getName() + " "
+                + translateType(ollirClass, field.getType()));
     }
 
     private void buildPutFieldInstruction(ClassUnit ollirClass, Method method, PutFieldInstruction instruction) {
@@ -577,19 +1372,25 @@ public class BackendStage implements JasminBackend {
 
         Operand field = (Operand) instruction.getSecondOperand();
 
-        lineWithTabs().append("putfield ").append(ollirClass.getClassName()).append("/").append(field.getName())
-                .append(" ").append(translateType(ollirClass, field.getType())).append("\n");
+        emit("putfield", ollirClass.getClassName() + "/" + field.getName() + " "
+                + translateType(ollirClass, field.getType()));
     }
 
     private void loadElement(Method method, Element element) {
         if (element.isLiteral()) {
             LiteralElement literal = (LiteralElement) element;
-            lineWithTabs().append(iconstInstruction(Integer.parseInt(literal.getLiteral()))).append("\n");
+            emit("iconst", Integer.parseInt(literal.getLiteral()));
         }
         else {
             Operand operand = (Operand) element;
             Descriptor descriptor = method.getVarTable().get(operand.getName());
 
+            Runnable stackedValue = stackedValues.remove(operand.getName());
+            if (stackedValue != null) {
+                stackedValue.run();
+                return;
+            }
+
             if (descriptor != null) {
                 ElementType type = descriptor.getVarType().getTypeOfElement();
 
@@ -597,28 +1398,27 @@ public class BackendStage implements JasminBackend {
                 switch (type) {
                     case INT32:
                     case BOOLEAN:
-                        lineWithTabs().append(iloadInstruction(descriptor.getVirtualReg())).append("\n");
+                        emit("iload", descriptor.getVirtualReg());
                         break;
                     case OBJECTREF:
                     case THIS:
-                        lineWithTabs().append(aloadInstruction(descriptor.getVirtualReg())).append("\n");
+                        emit("aload", descriptor.getVirtualReg());
                         break;
                     case ARRAYREF: {
                         try {
                             // Indexing the array
                             ArrayOperand arrayOperand = (ArrayOperand) operand;
 
-                            lineWithTabs().append(aloadInstruction(descriptor.getVirtualReg())).append("\n");
+                            emit("aload", descriptor.getVirtualReg());
 
                             Element index = arrayOperand.getIndexOperands().get(0);
                             loadElement(method, index);
 
-                            lineWithTabs().append("iaload\n");
-                            updateStackSize(-1);
+                            emit("iaload");
                         }
                         catch (ClassCastException ex) {
                             // Getting the array reference
-                            lineWithTabs().append(aloadInstruction(descriptor.getVirtualReg())).append("\n");
+                            emit("aload", descriptor.getVirtualReg());
                         }
 
                         break;
@@ -627,60 +1427,4 @@ public class BackendStage implements JasminBackend {
             }
         }
     }
-
-    // Instructions
-    private String aloadInstruction(int index) {
-        updateStackSize(1);
-        if (index <= 3) {
-            return "aload_" + index;
-        }
-        return "aload " + index;
-    }
-
-    private String astoreInstruction(int index) {
-        updateStackSize(-1);
-        if (index <= 3) {
-            return "astore_" + index;
-        }
-        return "astore " + index;
-    }
-
-    private String iloadInstruction(int index) {
-        updateStackSize(1);
-        if (index <= 3) {
-            return "iload_" + index;
-        }
-        return "iload " + index;
-    }
-
-    private String istoreInstruction(int index) {
-        updateStackSize(-1);
-        if (index <= 3) {
-            return "istore_" + index;
-        }
-        return "istore " + index;
-    }
-
-    private String iconstInstruction(int constant) {
-        updateStackSize(1);
-        if (constant == -1) return "iconst_m1";
-        if (constant >= 0 && constant <= 5) {
-            return "iconst_" + constant;
-        }
-
-        if (constant >= -128 && constant <= 127) {
-            return "bipush " + constant;
-        }
-
-        if (constant >= -32768 && constant <= 32767) {
-            return "sipush " + constant;
-        }
-
-        return "ldc " + constant;
-    }
-
-    private static void updateStackSize(int increment) {
-        stackSize += increment;
-        maxStackSize = Math.max(maxStackSize, stackSize);
-    }
 }
@@ -0,0 +1,42 @@
+/**
+ * Symmetric boolean matrix without its diagonal, stored as a lower triangle of bits.
+ */
+public class BitMatrix {
+    private final long[] bits;
+
+    public BitMatrix(int size) {
+        long numBits = (long) size * (size - 1) / 2;
+        bits = new long[(int) ((numBits + 63) / 64)];
+    }
+
+    private static long index(int row, int col) {
+        if (row < col) {
+            int temp = row;
+            row = col;
+            col = temp;
+        }
+        return (long) row * (row - 1) / 2 + col;
+    }
+
+    public boolean get(int row, int col) {
+        long index = index(row, col);
+        return (bits[(int) (index >>> 6)] & (1L << index)) != 0;
+    }
+
+    /**
+     * Sets the entry (row, col), which must not be on the diagonal.
+     * @return true if the entry was previously unset
+     */
+    public boolean set(int row, int col) {
+        long index = index(row, col);
+        int word = (int) (index >>> 6);
+        long mask = 1L << index;
+
+        if ((bits[word] & mask) != 0) {
+            return false;
+        }
+
+        bits[word] |= mask;
+        return true;
+    }
+}
@@ -0,0 +1,63 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Supplier;
+
+import pt.up.fe.comp.jmm.jasmin.JasminResult;
+import pt.up.fe.comp.jmm.ollir.OllirResult;
+import pt.up.fe.comp.jmm.report.Report;
+
+/**
+ * Result of the backend that already holds the class file, so compiling it only writes the file instead of
+ * assembling the Jasmin code. The Jasmin code is only generated if it is requested.
+ */
+public class ClassFileResult extends JasminResult {
+    private final byte[] classFile;
+    private Supplier<String> jasminCodeBuilder;
+    private String jasminCode;
+
+    public ClassFileResult(OllirResult ollirResult, byte[] classFile, Supplier<String> jasminCodeBuilder,
+                           List<Report> reports) {
+        super(ollirResult, null, reports);
+        this.classFile = classFile;
+        this.jasminCodeBuilder = jasminCodeBuilder;
+    }
+
+    public byte[] getClassFile() {
+        return classFile;
+    }
+
+    @Override
+    public String getJasminCode() {
+        if (jasminCodeBuilder != null) {
+            jasminCode = jasminCodeBuilder.get();
+            jasminCodeBuilder = null;
+        }
+
+        return jasminCode;
+    }
+
+    /**
+     * Writes the class file
+     * @param outputDir the folder where the class file will written
+     * @return a reference to the .class file
+     */
+    @Override
+    public File compile(File outputDir) {
+        if (!outputDir.exists()) {
+            outputDir.mkdirs();
+        }
+
+        File outputFile = new File(outputDir, getClassName() + ".class");
+
+        try (FileOutputStream outputStream = new FileOutputStream(outputFile)) {
+            outputStream.write(classFile);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Class could not be created: " + e.getMessage(), e);
+        }
+
+        return outputFile;
+    }
+}
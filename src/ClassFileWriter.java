@@ -0,0 +1,596 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Encodes a class file directly from the fields and the Jasmin instructions of the methods of a class, without
+ * writing Jasmin code and assembling it. The constant pool entries are shared by all the uses of the same constant,
+ * branches that don't fit in a 16-bit offset are widened and the limits of each method come from the backend.
+ * From version 50 on, methods have stack map frames so they can be checked by the faster type checking verifier.
+ */
+public class ClassFileWriter {
+    // Java 8, the first version whose class files must have stack map frames
+    public static final int CLASS_VERSION = 52;
+    // Version written by Jasmin (45.3)
+    public static final int MIN_CLASS_VERSION = 45;
+    private static final int STACK_MAP_VERSION = 50;
+    private static final int MAX_CODE_LENGTH = 65535;
+
+    private static final int ACC_SUPER = 0x20;
+    private static final Map<String, Integer> accessFlags = Map.of(
+            "public", 0x1, "private", 0x2, "protected", 0x4, "static", 0x8, "final", 0x10);
+
+    // Instructions without operands
+    private static final Map<String, Integer> simpleOpcodes = Map.ofEntries(
+            Map.entry("nop", 0x00), Map.entry("iaload", 0x2e), Map.entry("iastore", 0x4f),
+            Map.entry("pop", 0x57), Map.entry("pop2", 0x58), Map.entry("dup", 0x59), Map.entry("dup2", 0x5c),
+            Map.entry("swap", 0x5f), Map.entry("iadd", 0x60), Map.entry("isub", 0x64), Map.entry("imul", 0x68),
+            Map.entry("idiv", 0x6c), Map.entry("irem", 0x70), Map.entry("ineg", 0x74), Map.entry("ishl", 0x78),
+            Map.entry("ishr", 0x7a), Map.entry("iushr", 0x7c), Map.entry("iand", 0x7e), Map.entry("ior", 0x80),
+            Map.entry("ixor", 0x82), Map.entry("ireturn", 0xac), Map.entry("areturn", 0xb0),
+            Map.entry("return", 0xb1), Map.entry("arraylength", 0xbe), Map.entry("athrow", 0xbf));
+    private static final Map<String, Integer> branchOpcodes = Map.ofEntries(
+            Map.entry("ifeq", 0x99), Map.entry("ifne", 0x9a), Map.entry("iflt", 0x9b), Map.entry("ifge", 0x9c),
+            Map.entry("ifgt", 0x9d), Map.entry("ifle", 0x9e), Map.entry("if_icmpeq", 0x9f),
+            Map.entry("if_icmpne", 0xa0), Map.entry("if_icmplt", 0xa1), Map.entry("if_icmpge", 0xa2),
+            Map.entry("if_icmpgt", 0xa3), Map.entry("if_icmple", 0xa4), Map.entry("if_acmpeq", 0xa5),
+            Map.entry("if_acmpne", 0xa6), Map.entry("goto", 0xa7), Map.entry("ifnull", 0xc6),
+            Map.entry("ifnonnull", 0xc7));
+    private static final Map<String, Integer> memberOpcodes = Map.of(
+            "getstatic", 0xb2, "putstatic", 0xb3, "getfield", 0xb4, "putfield", 0xb5,
+            "invokevirtual", 0xb6, "invokespecial", 0xb7, "invokestatic", 0xb8);
+    private static final int GOTO_W = 0xc8, WIDE = 0xc4, IINC = 0x84, NEWARRAY = 0xbc, NEW = 0xbb;
+    private static final int BIPUSH = 0x10, SIPUSH = 0x11, LDC = 0x12, LDC_W = 0x13, ICONST_0 = 0x03;
+    private static final int T_INT = 10;
+
+    private static class Bytes extends ByteArrayOutputStream {
+        void u1(int value) {
+            write(value);
+        }
+
+        void u2(int value) {
+            write(value >>> 8);
+            write(value);
+        }
+
+        void u4(int value) {
+            u2(value >>> 16);
+            u2(value);
+        }
+
+        void bytes(byte[] value) {
+            write(value, 0, value.length);
+        }
+    }
+
+    /**
+     * Constant pool that returns the index of an existing entry when the same constant is added again
+     */
+    private static class ConstantPool {
+        private final Bytes bytes = new Bytes();
+        private final Map<String, Integer> indices = new HashMap<>();
+        private int count = 1; // Index 0 isn't used
+
+        private Integer find(String key) {
+            return indices.get(key);
+        }
+
+        private int add(String key) {
+            indices.put(key, count);
+            return count++;
+        }
+
+        int utf8(String value) {
+            Integer index = find("Utf8 " + value);
+            if (index != null) return index;
+
+            // Names and descriptors in J-- are ASCII, which is encoded the same way in modified UTF-8
+            byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            bytes.u1(1);
+            bytes.u2(encoded.length);
+            bytes.bytes(encoded);
+            return add("Utf8 " + value);
+        }
+
+        int integer(int value) {
+            Integer index = find("Integer " + value);
+            if (index != null) return index;
+
+            bytes.u1(3);
+            bytes.u4(value);
+            return add("Integer " + value);
+        }
+
+        int string(String value) {
+            Integer index = find("String " + value);
+            if (index != null) return index;
+
+            int valueIndex = utf8(value);
+            bytes.u1(8);
+            bytes.u2(valueIndex);
+            return add("String " + value);
+        }
+
+        int classReference(String name) {
+            Integer index = find("Class " + name);
+            if (index != null) return index;
+
+            int nameIndex = utf8(name);
+            bytes.u1(7);
+            bytes.u2(nameIndex);
+            return add("Class " + name);
+        }
+
+        private int nameAndType(String name, String descriptor) {
+            String key = "NameAndType " + name + " " + descriptor;
+            Integer index = find(key);
+            if (index != null) return index;
+
+            int nameIndex = utf8(name), descriptorIndex = utf8(descriptor);
+            bytes.u1(12);
+            bytes.u2(nameIndex);
+            bytes.u2(descriptorIndex);
+            return add(key);
+        }
+
+        int memberReference(boolean isMethod, String owner, String name, String descriptor) {
+            String key = (isMethod ? "Methodref " : "Fieldref ") + owner + " " + name + " " + descriptor;
+            Integer index = find(key);
+            if (index != null) return index;
+
+            int classIndex = classReference(owner), nameAndTypeIndex = nameAndType(name, descriptor);
+            bytes.u1(isMethod ? 10 : 9);
+            bytes.u2(classIndex);
+            bytes.u2(nameAndTypeIndex);
+            return add(key);
+        }
+    }
+
+    private final ConstantPool constantPool = new ConstantPool();
+    private final String className;
+    private final int version, thisClass, superClass;
+    private final Bytes fields = new Bytes(), methods = new Bytes();
+    private int fieldCount = 0, methodCount = 0;
+    private String sourceFile;
+
+    /**
+     * @param version major version of the class file
+     */
+    public ClassFileWriter(String className, String superClassName, int version) {
+        this.className = className;
+        this.version = version;
+        thisClass = constantPool.classReference(className);
+        superClass = constantPool.classReference(superClassName);
+    }
+
+    /**
+     * Sets the name of the source file, shown in stack traces
+     */
+    public void setSourceFile(String sourceFile) {
+        this.sourceFile = sourceFile;
+    }
+
+    private static int getAccessFlags(String accessModifiers) {
+        int flags = 0;
+
+        for (String modifier : accessModifiers.split(" ")) {
+            flags |= accessFlags.getOrDefault(modifier, 0);
+        }
+
+        return flags;
+    }
+
+    public void addField(String accessModifiers, String name, String descriptor) {
+        fields.u2(getAccessFlags(accessModifiers));
+        fields.u2(constantPool.utf8(name));
+        fields.u2(constantPool.utf8(descriptor));
+        fields.u2(0); // Attributes
+
+        ++fieldCount;
+    }
+
+    public void addMethod(JasminMethod method) {
+        int[] positions = new int[method.code.size() + 1];
+        boolean[] wideBranches = new boolean[method.code.size()];
+        byte[] code = encodeCode(method.name, method.code, positions, wideBranches);
+
+        byte[] stackMapTable = null;
+        if (version >= STACK_MAP_VERSION) {
+            StackMapBuilder stackMapBuilder = new StackMapBuilder(className, method.name, method.descriptor,
+                    method.accessModifiers.contains("static"), method.code, positions, wideBranches);
+            List<StackMapBuilder.Frame> frames = stackMapBuilder.build();
+
+            if (!frames.isEmpty()) stackMapTable = encodeStackMapTable(stackMapBuilder.getInitialLocals(), frames);
+        }
+
+        // Attributes of the code
+        Bytes attributes = new Bytes();
+        int numAttributes = 0;
+
+        if (stackMapTable != null) {
+            addAttribute(attributes, "StackMapTable", stackMapTable);
+            ++numAttributes;
+        }
+
+        byte[] lineNumberTable = encodeLineNumberTable(method.code, positions);
+        if (lineNumberTable != null) {
+            addAttribute(attributes, "LineNumberTable", lineNumberTable);
+            ++numAttributes;
+        }
+
+        if (!method.variables.isEmpty()) {
+            addAttribute(attributes, "LocalVariableTable", encodeLocalVariableTable(method.variables, code.length));
+            ++numAttributes;
+        }
+
+        methods.u2(getAccessFlags(method.accessModifiers));
+        methods.u2(constantPool.utf8(method.name));
+        methods.u2(constantPool.utf8(method.descriptor));
+        methods.u2(1); // Attributes
+
+        methods.u2(constantPool.utf8("Code"));
+        methods.u4(12 + code.length + attributes.size());
+        methods.u2(method.maxStack);
+        methods.u2(method.maxLocals);
+        methods.u4(code.length);
+        methods.bytes(code);
+        methods.u2(0); // Exception table
+        methods.u2(numAttributes);
+        methods.bytes(attributes.toByteArray());
+
+        ++methodCount;
+    }
+
+    private void addAttribute(Bytes bytes, String name, byte[] attribute) {
+        bytes.u2(constantPool.utf8(name));
+        bytes.u4(attribute.length);
+        bytes.bytes(attribute);
+    }
+
+    /**
+     * Maps the start of each sequence of instructions from the same line of the source code to that line
+     * @return null if the line of no instruction is known
+     */
+    private byte[] encodeLineNumberTable(List<JasminInstruction> code, int[] positions) {
+        Bytes entries = new Bytes();
+        int numEntries = 0, line = 0;
+
+        for (int i = 0; i < code.size(); ++i) {
+            JasminInstruction instruction = code.get(i);
+            if (instruction.isLabel() || instruction.getLine() == 0 || instruction.getLine() == line) continue;
+
+            line = instruction.getLine();
+            entries.u2(positions[i]);
+            entries.u2(line);
+            ++numEntries;
+        }
+
+        if (numEntries == 0) return null;
+
+        Bytes bytes = new Bytes();
+        bytes.u2(numEntries);
+        bytes.bytes(entries.toByteArray());
+        return bytes.toByteArray();
+    }
+
+    private byte[] encodeLocalVariableTable(List<JasminMethod.Variable> variables, int codeLength) {
+        Bytes bytes = new Bytes();
+        bytes.u2(variables.size());
+
+        for (JasminMethod.Variable variable : variables) {
+            bytes.u2(0);
+            bytes.u2(codeLength);
+            bytes.u2(constantPool.utf8(variable.name));
+            bytes.u2(constantPool.utf8(variable.descriptor));
+            bytes.u2(variable.register);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encodes the frames, each one relative to the previous one. Frames with the same locals as the previous one use
+     * the shorter formats when their stack has at most one value.
+     */
+    private byte[] encodeStackMapTable(List<String> initialLocals, List<StackMapBuilder.Frame> frames) {
+        Bytes bytes = new Bytes();
+        bytes.u2(frames.size());
+
+        List<String> previousLocals = initialLocals;
+        int previousOffset = -1;
+
+        for (StackMapBuilder.Frame frame : frames) {
+            int offsetDelta = frame.offset - previousOffset - 1;
+            boolean sameLocals = frame.locals.equals(previousLocals);
+
+            if (sameLocals && frame.stack.isEmpty() && offsetDelta <= 63) {
+                bytes.u1(offsetDelta); // same_frame
+            }
+            else if (sameLocals && frame.stack.size() == 1 && offsetDelta <= 63) {
+                bytes.u1(64 + offsetDelta); // same_locals_1_stack_item_frame
+                encodeVerificationType(bytes, frame.stack.get(0));
+            }
+            else {
+                bytes.u1(255); // full_frame
+                bytes.u2(offsetDelta);
+                bytes.u2(frame.locals.size());
+                for (String type : frame.locals) encodeVerificationType(bytes, type);
+                bytes.u2(frame.stack.size());
+                for (String type : frame.stack) encodeVerificationType(bytes, type);
+            }
+
+            previousLocals = frame.locals;
+            previousOffset = frame.offset;
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private void encodeVerificationType(Bytes bytes, String type) {
+        switch (type) {
+            case StackMapBuilder.TOP:
+                bytes.u1(0);
+                break;
+            case StackMapBuilder.INT:
+                bytes.u1(1);
+                break;
+            case StackMapBuilder.UNINITIALIZED_THIS:
+                bytes.u1(6);
+                break;
+            default:
+                if (type.startsWith(StackMapBuilder.UNINITIALIZED)) {
+                    bytes.u1(8);
+                    bytes.u2(Integer.parseInt(type.substring(StackMapBuilder.UNINITIALIZED.length())));
+                }
+                else {
+                    bytes.u1(7);
+                    bytes.u2(constantPool.classReference(type));
+                }
+                break;
+        }
+    }
+
+    public byte[] toByteArray() {
+        // The constant pool must be complete before it is written
+        int sourceFileAttribute = 0, sourceFileName = 0;
+        if (sourceFile != null) {
+            sourceFileAttribute = constantPool.utf8("SourceFile");
+            sourceFileName = constantPool.utf8(sourceFile);
+        }
+
+        Bytes classFile = new Bytes();
+
+        classFile.u4(0xCAFEBABE);
+        classFile.u2(version == MIN_CLASS_VERSION ? 3 : 0); // 45.0 to 45.2 have a different code attribute
+        classFile.u2(version);
+
+        classFile.u2(constantPool.count);
+        classFile.bytes(constantPool.bytes.toByteArray());
+
+        classFile.u2(getAccessFlags("public") | ACC_SUPER);
+        classFile.u2(thisClass);
+        classFile.u2(superClass);
+        classFile.u2(0); // Interfaces
+
+        classFile.u2(fieldCount);
+        classFile.bytes(fields.toByteArray());
+
+        classFile.u2(methodCount);
+        classFile.bytes(methods.toByteArray());
+
+        if (sourceFile == null) {
+            classFile.u2(0); // Attributes
+        }
+        else {
+            classFile.u2(1);
+            classFile.u2(sourceFileAttribute);
+            classFile.u4(2);
+            classFile.u2(sourceFileName);
+        }
+
+        return classFile.toByteArray();
+    }
+
+    /**
+     * Encodes the instructions of a method. The jumps start with a 16-bit offset and the ones whose offset doesn't fit
+     * are widened (goto_w, or a conditional branch over a goto_w) until the position of every label is stable.
+     * @param positions filled with the offset of each instruction
+     * @param wideBranches filled with the jumps that were widened
+     */
+    private byte[] encodeCode(String methodName, List<JasminInstruction> code, int[] positions,
+                              boolean[] wideBranches) {
+        // Everything but the jumps has the same encoding wherever it is placed
+        List<byte[]> encodings = new ArrayList<>();
+        for (JasminInstruction instruction : code) {
+            encodings.add(instruction.isLabel() || instruction.isJump() ? null : encode(instruction));
+        }
+
+        Map<String, Integer> labelPositions = new HashMap<>();
+        boolean changed = true;
+
+        while (changed) {
+            for (int i = 0; i < code.size(); ++i) {
+                JasminInstruction instruction = code.get(i);
+                int size;
+
+                if (instruction.isLabel()) {
+                    labelPositions.put(instruction.getOperand(), positions[i]);
+                    size = 0;
+                }
+                else if (instruction.isJump()) {
+                    size = !wideBranches[i] ? 3 : instruction.is("goto") ? 5 : 8;
+                }
+                else {
+                    size = encodings.get(i).length;
+                }
+
+                positions[i + 1] = positions[i] + size;
+            }
+
+            changed = false;
+            for (int i = 0; i < code.size(); ++i) {
+                if (!code.get(i).isJump() || wideBranches[i]) continue;
+
+                int offset = labelPositions.get(code.get(i).getOperand()) - positions[i];
+                if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                    wideBranches[i] = true;
+                    changed = true;
+                }
+            }
+        }
+
+        if (positions[code.size()] > MAX_CODE_LENGTH) {
+            throw new IllegalStateException("Code of method " + methodName + " is too large ("
+                    + positions[code.size()] + " bytes)");
+        }
+
+        Bytes bytes = new Bytes();
+
+        for (int i = 0; i < code.size(); ++i) {
+            JasminInstruction instruction = code.get(i);
+            if (instruction.isLabel()) continue;
+
+            if (!instruction.isJump()) {
+                bytes.bytes(encodings.get(i));
+                continue;
+            }
+
+            int offset = labelPositions.get(instruction.getOperand()) - positions[i];
+
+            if (!wideBranches[i]) {
+                bytes.u1(branchOpcodes.get(instruction.getOpcode()));
+                bytes.u2(offset);
+            }
+            else if (instruction.is("goto")) {
+                bytes.u1(GOTO_W);
+                bytes.u4(offset);
+            }
+            else {
+                // if<!cond> skip; goto_w target; skip:
+                bytes.u1(branchOpcodes.get(JasminInstruction.invertBranch(instruction.getOpcode())));
+                bytes.u2(8);
+                bytes.u1(GOTO_W);
+                bytes.u4(offset - 3);
+            }
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private byte[] encode(JasminInstruction instruction) {
+        Bytes bytes = new Bytes();
+        String opcode = instruction.getOpcode();
+
+        if (simpleOpcodes.containsKey(opcode)) {
+            bytes.u1(simpleOpcodes.get(opcode));
+            return bytes.toByteArray();
+        }
+
+        if (memberOpcodes.containsKey(opcode)) {
+            // Owner/name(descriptor) for methods, Owner/name descriptor for fields
+            String operand = instruction.getOperand();
+            boolean isMethod = opcode.startsWith("invoke");
+            int end = isMethod ? operand.indexOf('(') : operand.indexOf(' ');
+            int slash = operand.lastIndexOf('/', end);
+
+            bytes.u1(memberOpcodes.get(opcode));
+            bytes.u2(constantPool.memberReference(isMethod, operand.substring(0, slash),
+                    operand.substring(slash + 1, end), operand.substring(isMethod ? end : end + 1)));
+            return bytes.toByteArray();
+        }
+
+        switch (opcode) {
+            case "iload": case "aload": case "istore": case "astore": {
+                int register = instruction.getIntOperand();
+                boolean isLoad = instruction.isLoad(), isInteger = opcode.charAt(0) == 'i';
+                // iload_0, aload_0, istore_0, astore_0 and iload, aload, istore, astore
+                int shortOpcode = isLoad ? (isInteger ? 0x1a : 0x2a) : (isInteger ? 0x3b : 0x4b);
+                int longOpcode = isLoad ? (isInteger ? 0x15 : 0x19) : (isInteger ? 0x36 : 0x3a);
+
+                if (register <= 3) {
+                    bytes.u1(shortOpcode + register);
+                }
+                else if (register <= 255) {
+                    bytes.u1(longOpcode);
+                    bytes.u1(register);
+                }
+                else {
+                    bytes.u1(WIDE);
+                    bytes.u1(longOpcode);
+                    bytes.u2(register);
+                }
+                break;
+            }
+            case "iinc": {
+                String[] operands = instruction.getOperand().split(" ");
+                int register = Integer.parseInt(operands[0]), increment = Integer.parseInt(operands[1]);
+
+                if (register <= 255 && increment >= Byte.MIN_VALUE && increment <= Byte.MAX_VALUE) {
+                    bytes.u1(IINC);
+                    bytes.u1(register);
+                    bytes.u1(increment);
+                }
+                else {
+                    bytes.u1(WIDE);
+                    bytes.u1(IINC);
+                    bytes.u2(register);
+                    bytes.u2(increment);
+                }
+                break;
+            }
+            case "iconst": {
+                int constant = instruction.getIntOperand();
+
+                if (constant >= -1 && constant <= 5) {
+                    bytes.u1(ICONST_0 + constant);
+                }
+                else if (constant >= Byte.MIN_VALUE && constant <= Byte.MAX_VALUE) {
+                    bytes.u1(BIPUSH);
+                    bytes.u1(constant);
+                }
+                else if (constant >= Short.MIN_VALUE && constant <= Short.MAX_VALUE) {
+                    bytes.u1(SIPUSH);
+                    bytes.u2(constant);
+                }
+                else {
+                    encodeLdc(bytes, constantPool.integer(constant));
+                }
+                break;
+            }
+            case "ldc": {
+                // String constants, written between quotes
+                String operand = instruction.getOperand();
+                encodeLdc(bytes, constantPool.string(operand.substring(1, operand.length() - 1)));
+                break;
+            }
+            case "new":
+                bytes.u1(NEW);
+                bytes.u2(constantPool.classReference(instruction.getOperand()));
+                break;
+            case "newarray":
+                // New arrays in J-- can only be int arrays
+                if (!instruction.getOperand().equals("int")) {
+                    throw new IllegalArgumentException("Unsupported array type: " + instruction.getOperand());
+                }
+
+                bytes.u1(NEWARRAY);
+                bytes.u1(T_INT);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported instruction: " + instruction);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static void encodeLdc(Bytes bytes, int index) {
+        if (index <= 255) {
+            bytes.u1(LDC);
+            bytes.u1(index);
+        }
+        else {
+            bytes.u1(LDC_W);
+            bytes.u2(index);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.util.*;
+
+import org.specs.comp.ollir.*;
+
+/**
+ * Removes the methods that can't be reached from main and the fields that are never read, together with the
+ * instructions that write them. Methods are only reached through the calls of the class, so a method called from
+ * another class or through reflection is removed too, which is why the shrinking is optional.
+ *
+ * A class without main, or that extends another class (whose methods may call the ones it overrides), keeps all its
+ * methods.
+ */
+public class ClassShrinker {
+    private final ClassUnit ollirClass;
+
+    public ClassShrinker(ClassUnit ollirClass) {
+        this.ollirClass = ollirClass;
+    }
+
+    /**
+     * Removes the unreachable methods and the fields that are never read. It must run before the CFGs and the tables
+     * of variables are built.
+     * @return the number of methods and fields removed
+     */
+    public int shrink() {
+        Set<Method> reachable = findReachableMethods();
+        int removed = ollirClass.getNumMethods() - reachable.size();
+        ollirClass.getMethods().removeIf(method -> !reachable.contains(method));
+
+        Set<String> readFields = new HashSet<>();
+        for (Method method : ollirClass.getMethods()) {
+            for (Instruction instruction : method.getInstructions()) {
+                if (instruction.getInstType() == InstructionType.ASSIGN) {
+                    instruction = ((AssignInstruction) instruction).getRhs();
+                }
+                if (instruction.getInstType() == InstructionType.GETFIELD) {
+                    readFields.add(((Operand) ((GetFieldInstruction) instruction).getSecondOperand()).getName());
+                }
+            }
+        }
+
+        Set<String> deadFields = new HashSet<>();
+        for (Field field : ollirClass.getFields()) {
+            if (!field.isStaticField() && !readFields.contains(field.getFieldName())) {
+                deadFields.add(field.getFieldName());
+            }
+        }
+
+        if (deadFields.isEmpty()) return removed;
+
+        ollirClass.getFields().removeIf(field -> deadFields.contains(field.getFieldName()));
+        for (Method method : ollirClass.getMethods()) {
+            removeFieldWrites(method, deadFields);
+        }
+
+        return removed + deadFields.size();
+    }
+
+    private Set<Method> findReachableMethods() {
+        Set<Method> reachable = new HashSet<>();
+        Deque<Method> pending = new ArrayDeque<>();
+
+        boolean hasMain = false;
+        for (Method method : ollirClass.getMethods()) {
+            boolean isMain = method.isStaticMethod() && method.getMethodName().equals("main");
+            if (method.isConstructMethod() || isMain) pending.add(method);
+            hasMain |= isMain;
+        }
+
+        if (!hasMain || ollirClass.getSuperClass() != null) return new HashSet<>(ollirClass.getMethods());
+
+        while (!pending.isEmpty()) {
+            Method method = pending.pop();
+            if (!reachable.add(method)) continue;
+
+            for (Instruction instruction : method.getInstructions()) {
+                CallInstruction call = Inliner.getCall(instruction);
+                if (call != null && isClassCall(call)) pending.addAll(findCallees(call));
+            }
+        }
+
+        return reachable;
+    }
+
+    /**
+     * @return true if the call may run a method of the class, on an instance or statically
+     */
+    private boolean isClassCall(CallInstruction call) {
+        if (call.getInvocationType() == CallType.invokestatic) {
+            return call.getFirstArg() instanceof Operand
+                    && ((Operand) call.getFirstArg()).getName().equals(ollirClass.getClassName());
+        }
+
+        return Inliner.isClassCall(ollirClass, call);
+    }
+
+    /**
+     * @return the method with the name and the parameter types of the call, or all the methods with its name if none
+     * matches exactly
+     */
+    private List<Method> findCallees(CallInstruction call) {
+        Method callee = Inliner.findCallee(ollirClass, call);
+        if (callee != null) return List.of(callee);
+
+        List<Method> callees = new ArrayList<>();
+        for (Method method : ollirClass.getMethods()) {
+            if (method.getMethodName().equals(Inliner.getMethodName(call))) callees.add(method);
+        }
+        return callees;
+    }
+
+    private static void removeFieldWrites(Method method, Set<String> deadFields) {
+        List<Instruction> instructions = method.getInstructions();
+
+        // The value written is an element, so the instruction has no other effects. The labels of a removed
+        // instruction move to the next one, there is always one (a return, at least).
+        for (int i = instructions.size() - 1; i >= 0; --i) {
+            Instruction instruction = instructions.get(i);
+            if (instruction.getInstType() != InstructionType.PUTFIELD || !deadFields.contains(
+                    ((Operand) ((PutFieldInstruction) instruction).getSecondOperand()).getName())) continue;
+
+            Instruction next = instructions.get(i + 1);
+            method.getLabels().replaceAll((label, target) -> target == instruction ? next : target);
+            instructions.remove(i);
+        }
+    }
+}
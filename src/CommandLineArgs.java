@@ -1,8 +1,21 @@
 
 public class CommandLineArgs {
+    public enum Allocator {
+        AUTO, GRAPH_COLORING, LINEAR_SCAN
+    }
+
     public String path;
     public boolean optimize;
     public Integer maxRegisters;
+    public Allocator allocator = Allocator.AUTO;
+    public int methodSizeLimit = BackendStage.METHOD_SIZE_LIMIT; // Bytes of bytecode, larger methods are split
+    public int unrollFactor = LoopUnroller.UNROLL_FACTOR; // Copies of the body of unrolled loops, 1 disables unrolling
+    public int classVersion = ClassFileWriter.CLASS_VERSION; // Major version of the generated class file
+    public boolean memoize; // Remember the results of recursive pure methods in a table of the object
+    public boolean shrink; // Remove the methods that main can't reach and the fields that are never read
+    public boolean emitJasmin; // Write the Jasmin code, which isn't needed to generate the class file
+    public boolean instrument; // Count the executions of blocks and call sites and write them to ClassName.profile
+    public Profile profile; // Counts of a previous execution of the instrumented class, null if there is none
 
     public CommandLineArgs(String path, boolean optimize, Integer maxRegisters) {
         this.path = path;
@@ -13,6 +13,7 @@ import java.util.Map;
 public class ConstantVisitor extends AJmmVisitor<List<Report>, Object> {
     private final Map<Symbol, Object> constantTable = new HashMap<>(); // Store all local variables and keep their constant value
     private final JMMSymbolTable symbolTable;
+    private MethodEvaluator methodEvaluator; // Calls to pure methods of the class with constant arguments
 
     private static class ConstantPropagationInformation {
         public final JmmNode parent;
@@ -31,6 +32,7 @@ public class ConstantVisitor extends AJmmVisitor<List<Report>, Object> {
     public ConstantVisitor(SymbolTable symbolTable) {
         this.symbolTable = (JMMSymbolTable) symbolTable;
 
+        addVisit("Class", this::visitClass);
         addVisit("Method", this::visitMethod);
         addVisit("Expression", this::visitExpression);
         addVisit("If", this::visitIf);
@@ -170,11 +172,46 @@ public class ConstantVisitor extends AJmmVisitor<List<Report>, Object> {
                 return true;
             case "Var":
                 return getVariableValue(getVariableSymbol(node.get("name")));
+            case "Dot":
+                return getCallValue(node);
             default:
                 return null;
         }
     }
 
+    /**
+     * Get the value returned by a call to a pure method of this class with constant arguments, or null if impossible
+     * @param node
+     * @return
+     */
+    public Object getCallValue(JmmNode node) {
+        JmmNode object = node.getChildren().get(0), func = node.getChildren().get(1);
+        if (methodEvaluator == null || !func.getKind().equals("Func")) return null;
+
+        // The object must be this or a variable of this class, which are read without other effects
+        if (!object.getKind().equals("This")) {
+            if (!object.getKind().equals("Var")) return null;
+
+            Symbol symbol = getVariableSymbol(object.get("name"));
+            if (symbol == null) {
+                symbol = symbolTable.getField(object.get("name"));
+            }
+            if (symbol == null || symbol.getType().isArray()
+                    || !symbol.getType().getName().equals(symbolTable.getClassName())) return null;
+        }
+
+        List<Object> arguments = new ArrayList<>();
+        if (func.getNumChildren() > 0) {
+            for (JmmNode argument : func.getChildren().get(0).getChildren()) {
+                Object value = getValue(argument);
+                if (value == null) return null;
+                arguments.add(value);
+            }
+        }
+
+        return methodEvaluator.evaluate(func.get("name"), arguments);
+    }
+
     /**
      * Get the type of this node, or null if impossible
      *
@@ -196,6 +233,10 @@ public class ConstantVisitor extends AJmmVisitor<List<Report>, Object> {
 
             case "Var":
                 return getVariableSymbol(node.get("name")).getType().getName();
+            case "Dot": {
+                Object value = getCallValue(node);
+                return value instanceof Integer ? "int" : value instanceof Boolean ? "boolean" : null;
+            }
             default:
                 return null;
         }
@@ -212,6 +253,12 @@ public class ConstantVisitor extends AJmmVisitor<List<Report>, Object> {
         return null;
     }
 
+    private Object visitClass(JmmNode node, List<Report> reports) {
+        methodEvaluator = new MethodEvaluator(symbolTable, node);
+
+        return defaultVisit(node, reports);
+    }
+
     private Object visitMethod(JmmNode node, List<Report> reports) {
         // When entering a new method clear the constant table
         constantTable.clear();
@@ -275,8 +322,8 @@ public class ConstantVisitor extends AJmmVisitor<List<Report>, Object> {
             node = node.getChildren().get(1); // Func
             if (node.getNumChildren() > 0) {
                 node = node.getChildren().get(0); // Args
-                // Constant Propagation
-                constantPropagation(node);
+                // Constant Propagation and Folding, which includes calls to pure methods
+                constantPropagationAndFolding(node);
             }
         }
 
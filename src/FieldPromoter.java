@@ -0,0 +1,154 @@
+import java.util.*;
+
+import org.specs.comp.ollir.*;
+
+/**
+ * Keeps the fields accessed in a loop without calls in local variables, which are loaded before the loop and stored
+ * back into the fields after it:
+ * <pre>
+ *                                      count#promote1 := getfield(this, count)
+ *   body:                            body:
+ *     t1 := getfield(this, count)      t1 := count#promote1
+ *     t2 := t1 + 1                     t2 := t1 + 1
+ *     putfield(this, count, t2)        count#promote1 := t2
+ *     if (...) goto body               if (...) goto body
+ *                                      putfield(this, count, count#promote1)
+ * </pre>
+ * Fields can only be accessed through this, so only a call can observe them while the loop runs. An exception thrown
+ * by the loop loses the stores, but J-- can't catch it.
+ */
+public class FieldPromoter {
+    private final ClassUnit ollirClass;
+    private int promotedFields = 0;
+
+    public FieldPromoter(ClassUnit ollirClass) {
+        this.ollirClass = ollirClass;
+    }
+
+    /**
+     * Promotes the fields of the loops of every method. It must run before the CFGs and the tables of variables are
+     * built.
+     * @return the number of fields promoted to local variables, counted once for each loop
+     */
+    public int promote() {
+        for (Method method : ollirClass.getMethods()) {
+            if (!method.isConstructMethod() && !method.isStaticMethod()) promoteLoops(method);
+        }
+
+        return promotedFields;
+    }
+
+    private void promoteLoops(Method method) {
+        List<Instruction> instructions = method.getInstructions();
+        List<int[]> loops = new ArrayList<>();
+
+        for (int i = 0; i < instructions.size(); ++i) {
+            Instruction instruction = instructions.get(i);
+            if (instruction.getInstType() != InstructionType.BRANCH) continue;
+
+            int start = LoopUnroller.indexOf(instructions,
+                    method.getLabels().get(((CondBranchInstruction) instruction).getLabel()));
+            if (start > i || !LoopUnroller.isSingleEntryLoop(method, start, i) || !isPromotable(method, start, i)) {
+                continue;
+            }
+
+            // An inner loop comes before the loops that contain it, which replace it
+            int end = i;
+            loops.removeIf(loop -> loop[0] >= start && loop[1] <= end);
+            loops.add(new int[]{start, end});
+        }
+
+        // The loops don't overlap, the last ones are changed first so that the indexes of the others stay the same
+        for (int i = loops.size() - 1; i >= 0; --i) {
+            promoteLoop(method, loops.get(i)[0], loops.get(i)[1]);
+        }
+    }
+
+    /**
+     * @return true if the loop only leaves through its last instruction and makes no calls
+     */
+    private static boolean isPromotable(Method method, int start, int end) {
+        for (int i = start; i <= end; ++i) {
+            Instruction instruction = method.getInstructions().get(i);
+            if (instruction.getInstType() == InstructionType.RETURN) return false;
+
+            CallInstruction call = Inliner.getCall(instruction);
+            if (call != null && call.getInvocationType() != CallType.NEW
+                    && call.getInvocationType() != CallType.arraylength) return false;
+        }
+
+        return true;
+    }
+
+    private void promoteLoop(Method method, int start, int end) {
+        List<Instruction> instructions = method.getInstructions();
+
+        // Field -> the variable that replaces it, in the order of their first access
+        Map<String, Operand> variables = new LinkedHashMap<>();
+        Map<String, Element> fields = new HashMap<>();
+        Set<String> writtenFields = new HashSet<>();
+        Element object = null;
+
+        for (int i = start; i < end; ++i) {
+            Instruction instruction = instructions.get(i);
+            Instruction replacement;
+            Element field;
+
+            if (instruction.getInstType() == InstructionType.PUTFIELD) {
+                PutFieldInstruction putFieldInstruction = (PutFieldInstruction) instruction;
+                object = putFieldInstruction.getFirstOperand();
+                field = putFieldInstruction.getSecondOperand();
+
+                Operand variable = getVariable(variables, fields, field);
+                replacement = new AssignInstruction(variable, field.getType(),
+                        new SingleOpInstruction(putFieldInstruction.getThirdOperand()));
+                writtenFields.add(variable.getName());
+            }
+            else if (instruction.getInstType() == InstructionType.ASSIGN
+                    && ((AssignInstruction) instruction).getRhs().getInstType() == InstructionType.GETFIELD) {
+                AssignInstruction assignInstruction = (AssignInstruction) instruction;
+                GetFieldInstruction getFieldInstruction = (GetFieldInstruction) assignInstruction.getRhs();
+                object = getFieldInstruction.getFirstOperand();
+                field = getFieldInstruction.getSecondOperand();
+
+                replacement = new AssignInstruction(assignInstruction.getDest(), assignInstruction.getTypeOfAssign(),
+                        new SingleOpInstruction(getVariable(variables, fields, field)));
+            }
+            else {
+                continue;
+            }
+
+            SourceLines.copy(instruction, replacement);
+            instructions.set(i, replacement);
+            method.getLabels().replaceAll((label, target) -> target == instruction ? replacement : target);
+        }
+
+        if (variables.isEmpty()) return;
+
+        // The stores follow the branch of the loop, so the jump that skips the loop also skips them. Both take the
+        // line of the loop.
+        List<Instruction> loads = new ArrayList<>(), stores = new ArrayList<>();
+        for (Map.Entry<String, Operand> entry : variables.entrySet()) {
+            Element field = fields.get(entry.getKey());
+            Operand variable = entry.getValue();
+
+            loads.add(SourceLines.copy(instructions.get(start), new AssignInstruction(variable, field.getType(),
+                    new GetFieldInstruction(object, field, field.getType()))));
+            if (writtenFields.contains(variable.getName())) {
+                stores.add(SourceLines.copy(instructions.get(end),
+                        new PutFieldInstruction(object, field, variable, field.getType())));
+            }
+        }
+
+        instructions.addAll(end + 1, stores);
+        instructions.addAll(start, loads);
+        promotedFields += variables.size();
+    }
+
+    private Operand getVariable(Map<String, Operand> variables, Map<String, Element> fields, Element field) {
+        String name = ((Operand) field).getName();
+        fields.putIfAbsent(name, field);
+        return variables.computeIfAbsent(name,
+                key -> new Operand(name + "#promote" + (promotedFields + variables.size() + 1), field.getType()));
+    }
+}
@@ -1,63 +1,277 @@
-
 import java.util.*;
 
+/**
+ * Directed graph whose vertices are identified by dense indices. The generic methods map vertices to their indices, while
+ * the index based methods (getIndex, getVertex, getDegree, getNeighbour, ...) are meant for algorithms that need to
+ * run on large graphs, such as register allocation. Each vertex keeps its outgoing and incoming edges, so removing a
+ * vertex only touches its neighbours, and its degree (number of outgoing edges to vertices that weren't removed).
+ */
 public class Graph<T> {
-    private final Map<T, Set<T>> map = new HashMap<>();
+    private static final int[] NO_EDGES = new int[0];
 
-    public Graph() {
+    private final Map<T, Integer> indices;
+    private final List<T> vertices;
+
+    private int[][] successors, predecessors;
+    private int[] numSuccessors, numPredecessors, degrees;
+    private boolean[] removed;
+    private int numVertices = 0;
 
+    public Graph() {
+        indices = new HashMap<>();
+        vertices = new ArrayList<>();
+        successors = new int[8][];
+        predecessors = new int[8][];
+        numSuccessors = new int[8];
+        numPredecessors = new int[8];
+        degrees = new int[8];
+        removed = new boolean[8];
     }
 
     public Graph(Graph<T> other) {
-        for (T source : other.getVertices()) {
-            addVertex(source);
-            for (T destination : other.getEdges(source)) {
-                addEdge(source, destination, false);
-            }
+        int size = other.vertices.size();
+
+        indices = new HashMap<>(other.indices);
+        vertices = new ArrayList<>(other.vertices);
+        successors = copyEdges(other.successors, other.numSuccessors, size);
+        predecessors = copyEdges(other.predecessors, other.numPredecessors, size);
+        numSuccessors = Arrays.copyOf(other.numSuccessors, Math.max(size, 8));
+        numPredecessors = Arrays.copyOf(other.numPredecessors, Math.max(size, 8));
+        degrees = Arrays.copyOf(other.degrees, Math.max(size, 8));
+        removed = Arrays.copyOf(other.removed, Math.max(size, 8));
+        numVertices = other.numVertices;
+    }
+
+    /**
+     * Builds an undirected graph from a list of vertices and, for each vertex, the indices of its neighbours.
+     * The adjacency arrays are used directly, they must not contain duplicates.
+     */
+    public Graph(List<T> vertices, int[][] adjacency) {
+        int size = vertices.size();
+
+        this.indices = new HashMap<>();
+        this.vertices = new ArrayList<>(vertices);
+        for (int i = 0; i < size; ++i) {
+            indices.put(vertices.get(i), i);
         }
+
+        successors = Arrays.copyOf(adjacency, Math.max(size, 8));
+        predecessors = new int[Math.max(size, 8)][];
+        numSuccessors = new int[Math.max(size, 8)];
+        degrees = new int[Math.max(size, 8)];
+        removed = new boolean[Math.max(size, 8)];
+
+        for (int i = 0; i < size; ++i) {
+            predecessors[i] = adjacency[i].clone();
+            numSuccessors[i] = adjacency[i].length;
+            degrees[i] = adjacency[i].length;
+        }
+
+        numPredecessors = Arrays.copyOf(numSuccessors, numSuccessors.length);
+        numVertices = size;
+    }
+
+    private static int[][] copyEdges(int[][] edges, int[] numEdges, int size) {
+        int[][] copy = new int[Math.max(size, 8)][];
+        for (int i = 0; i < size; ++i) {
+            copy[i] = Arrays.copyOf(edges[i], numEdges[i]);
+        }
+        return copy;
     }
 
     public void addVertex(T vertex) {
-        map.put(vertex, new HashSet<>());
+        Integer index = indices.get(vertex);
+
+        if (index != null) {
+            // Adding an existing vertex clears its outgoing edges
+            for (int i = numSuccessors[index] - 1; i >= 0; --i) {
+                removeEdge(index, successors[index][i]);
+            }
+
+            if (removed[index]) {
+                removed[index] = false;
+                ++numVertices;
+
+                for (int i = 0; i < numPredecessors[index]; ++i) {
+                    degrees[predecessors[index][i]]++;
+                }
+            }
+            return;
+        }
+
+        index = vertices.size();
+
+        if (index == removed.length) {
+            int capacity = index * 2;
+            successors = Arrays.copyOf(successors, capacity);
+            predecessors = Arrays.copyOf(predecessors, capacity);
+            numSuccessors = Arrays.copyOf(numSuccessors, capacity);
+            numPredecessors = Arrays.copyOf(numPredecessors, capacity);
+            degrees = Arrays.copyOf(degrees, capacity);
+            removed = Arrays.copyOf(removed, capacity);
+        }
+
+        indices.put(vertex, index);
+        vertices.add(vertex);
+        successors[index] = NO_EDGES;
+        predecessors[index] = NO_EDGES;
+        ++numVertices;
     }
 
     public void addEdge(T source, T destination, boolean bidirectional) {
-        if (!map.containsKey(source)) addVertex(source);
-        if (!map.containsKey(destination)) addVertex(destination);
+        if (!indices.containsKey(source)) addVertex(source);
+        if (!indices.containsKey(destination)) addVertex(destination);
+
+        int sourceIndex = indices.get(source), destinationIndex = indices.get(destination);
 
-        map.get(source).add(destination);
+        addEdge(sourceIndex, destinationIndex);
         if (bidirectional) {
-            map.get(destination).add(source);
+            addEdge(destinationIndex, sourceIndex);
+        }
+    }
+
+    private void addEdge(int source, int destination) {
+        if (indexOf(successors[source], numSuccessors[source], destination) != -1) {
+            return;
+        }
+
+        successors[source] = append(successors[source], numSuccessors[source]++, destination);
+        predecessors[destination] = append(predecessors[destination], numPredecessors[destination]++, source);
+
+        if (!removed[destination]) {
+            degrees[source]++;
+        }
+    }
+
+    private static int[] append(int[] edges, int size, int vertex) {
+        if (size == edges.length) {
+            edges = Arrays.copyOf(edges, Math.max(4, size * 2));
         }
+        edges[size] = vertex;
+        return edges;
+    }
+
+    private static int indexOf(int[] edges, int size, int vertex) {
+        for (int i = 0; i < size; ++i) {
+            if (edges[i] == vertex) return i;
+        }
+        return -1;
+    }
+
+    private static int removeFrom(int[] edges, int size, int vertex) {
+        int i = indexOf(edges, size, vertex);
+        if (i == -1) return size;
+
+        edges[i] = edges[size - 1];
+        return size - 1;
     }
 
     public void removeVertex(T vertex) {
-        map.remove(vertex);
-        for (T other : map.keySet()) {
-            removeEdge(other, vertex);
+        Integer index = indices.get(vertex);
+        if (index != null) {
+            removeVertexAt(index);
+        }
+    }
+
+    /**
+     * Removes a vertex, keeping its index. Its edges are kept as well, but they are no longer reported and don't count
+     * towards the degree of its neighbours.
+     */
+    public void removeVertexAt(int index) {
+        if (removed[index]) return;
+
+        removed[index] = true;
+        --numVertices;
+
+        for (int i = 0; i < numPredecessors[index]; ++i) {
+            degrees[predecessors[index][i]]--;
         }
     }
 
     public void removeEdge(T source, T destination) {
-        if (map.containsKey(source)) {
-            map.get(source).remove(destination);
+        Integer sourceIndex = indices.get(source), destinationIndex = indices.get(destination);
+        if (sourceIndex != null && destinationIndex != null) {
+            removeEdge(sourceIndex, (int) destinationIndex);
+        }
+    }
+
+    private void removeEdge(int source, int destination) {
+        int size = numSuccessors[source];
+        numSuccessors[source] = removeFrom(successors[source], size, destination);
+
+        if (numSuccessors[source] != size) {
+            numPredecessors[destination] = removeFrom(predecessors[destination], numPredecessors[destination], source);
+
+            if (!removed[destination]) {
+                degrees[source]--;
+            }
         }
     }
 
     public Set<T> getVertices() {
-        return map.keySet();
+        Set<T> result = new LinkedHashSet<>();
+        for (int i = 0; i < vertices.size(); ++i) {
+            if (!removed[i]) result.add(vertices.get(i));
+        }
+        return result;
     }
 
     public Set<T> getEdges(T vertex) {
-        return map.get(vertex);
+        Integer index = indices.get(vertex);
+        if (index == null || removed[index]) return null;
+
+        Set<T> result = new LinkedHashSet<>();
+        for (int i = 0; i < numSuccessors[index]; ++i) {
+            int successor = successors[index][i];
+            if (!removed[successor]) result.add(vertices.get(successor));
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of indices in use, including the ones of removed vertices
+     */
+    public int getIndexCount() {
+        return vertices.size();
+    }
+
+    public int getNumVertices() {
+        return numVertices;
+    }
+
+    public Integer getIndex(T vertex) {
+        return indices.get(vertex);
+    }
+
+    public T getVertex(int index) {
+        return vertices.get(index);
+    }
+
+    public boolean isRemoved(int index) {
+        return removed[index];
+    }
+
+    public int getDegree(int index) {
+        return degrees[index];
+    }
+
+    /**
+     * @return the number of vertices adjacent to the given one, including removed ones
+     */
+    public int getNumNeighbours(int index) {
+        return numSuccessors[index];
+    }
+
+    public int getNeighbour(int index, int i) {
+        return successors[index][i];
     }
 
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
 
-        for (Map.Entry<T, Set<T>> entry : map.entrySet()) {
-            builder.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        for (T vertex : getVertices()) {
+            builder.append(vertex).append(": ").append(getEdges(vertex)).append("\n");
         }
 
         return builder.toString();
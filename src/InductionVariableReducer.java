@@ -0,0 +1,231 @@
+import java.util.*;
+
+import org.specs.comp.ollir.*;
+
+/**
+ * Replaces the products of an induction variable of a loop (incremented by a constant exactly once per iteration) and
+ * a value that doesn't change in the loop with a new variable, which is initialized before the loop and incremented
+ * together with the induction variable:
+ * <pre>
+ *                                      v#reduce1 := i * w
+ *   body:                            body:
+ *     t := i * w                       t := v#reduce1
+ *     i := i + 2                       i := i + 2
+ *                                      v#reduce1 := v#reduce1 + 2 * w
+ * </pre>
+ * Products of ints wrap around like sums, so the new variable always has the value of the product. Induction variables
+ * that are no longer read other than by their own assignments are removed.
+ */
+public class InductionVariableReducer {
+    private static final Type INT_TYPE = new Type(ElementType.INT32);
+
+    private final ClassUnit ollirClass;
+    private int reducedVariables = 0;
+
+    public InductionVariableReducer(ClassUnit ollirClass) {
+        this.ollirClass = ollirClass;
+    }
+
+    /**
+     * Reduces the products of the loops of every method. It must run before the CFGs and the tables of variables are
+     * built.
+     * @return the number of variables that replace products
+     */
+    public int reduce() {
+        for (Method method : ollirClass.getMethods()) {
+            if (!method.isConstructMethod()) reduceLoops(method);
+        }
+
+        return reducedVariables;
+    }
+
+    private void reduceLoops(Method method) {
+        List<Instruction> instructions = method.getInstructions();
+        Set<String> inductionVariables = new HashSet<>();
+
+        // Inner loops come first, their products of the induction variables of outer loops are reduced by those
+        for (int i = 0; i < instructions.size(); ++i) {
+            Instruction instruction = instructions.get(i);
+            if (instruction.getInstType() != InstructionType.BRANCH) continue;
+
+            int start = LoopUnroller.indexOf(instructions,
+                    method.getLabels().get(((CondBranchInstruction) instruction).getLabel()));
+            if (start > i || !LoopUnroller.isSingleEntryLoop(method, start, i)) continue;
+
+            i += reduceLoop(method, start, i, inductionVariables);
+        }
+
+        for (String variable : inductionVariables) {
+            removeIfDead(method, variable);
+        }
+    }
+
+    /**
+     * @return the number of instructions added before the end of the loop
+     */
+    private int reduceLoop(Method method, int start, int end, Set<String> inductionVariables) {
+        List<Instruction> instructions = method.getInstructions();
+        Map<String, List<Integer>> assignments = LoopUnroller.findAssignments(method, start, end);
+
+        // Induction variable -> index of its increment
+        Map<String, Integer> increments = new HashMap<>();
+        assignments.forEach((variable, indexes) -> {
+            int index = indexes.get(0);
+            if (indexes.size() == 1 && LoopUnroller.getInductionStep(variable, instructions.get(index)) != null
+                    && LoopUnroller.runsOncePerIteration(method, start, end, index)) {
+                increments.put(variable, index);
+            }
+        });
+
+        // Products with the same factor share the new variable: "variable * factor" -> its assignments
+        Map<String, List<AssignInstruction>> products = new LinkedHashMap<>();
+        Map<String, Element[]> operands = new HashMap<>(); // Induction variable and factor of each product
+
+        for (int i = start; i < end; ++i) {
+            Instruction instruction = instructions.get(i);
+            if (instruction.getInstType() != InstructionType.ASSIGN) continue;
+
+            AssignInstruction assignInstruction = (AssignInstruction) instruction;
+            if (assignInstruction.getRhs().getInstType() != InstructionType.BINARYOPER
+                    || LoopUnroller.getVariable(assignInstruction.getDest()) == null) continue;
+
+            BinaryOpInstruction operation = (BinaryOpInstruction) assignInstruction.getRhs();
+            if (operation.getUnaryOperation().getOpType() != OperationType.MUL) continue;
+
+            for (Element[] pair : List.of(new Element[]{operation.getLeftOperand(), operation.getRightOperand()},
+                    new Element[]{operation.getRightOperand(), operation.getLeftOperand()})) {
+                String variable = LoopUnroller.getVariable(pair[0]);
+                if (variable == null || !increments.containsKey(variable) || !isInvariant(pair[1], assignments)) {
+                    continue;
+                }
+
+                String key = variable + "*" + (pair[1].isLiteral()
+                        ? ((LiteralElement) pair[1]).getLiteral() : ((Operand) pair[1]).getName());
+                products.computeIfAbsent(key, k -> new ArrayList<>()).add(assignInstruction);
+                operands.put(key, pair);
+                break;
+            }
+        }
+
+        if (products.isEmpty()) return 0;
+
+        List<Instruction> preheader = new ArrayList<>();
+        Map<Integer, List<Instruction>> updates = new TreeMap<>(Comparator.reverseOrder());
+
+        for (Map.Entry<String, List<AssignInstruction>> entry : products.entrySet()) {
+            Element variable = operands.get(entry.getKey())[0], factor = operands.get(entry.getKey())[1];
+            String name = ((Operand) variable).getName();
+            int increment = increments.get(name);
+            int step = LoopUnroller.getInductionStep(name, instructions.get(increment));
+
+            // The initial value of the product doesn't read the induction variable if it is known, so that it can be
+            // removed when the products were its only use
+            Operand product = new Operand(name + "#reduce" + ++reducedVariables, INT_TYPE);
+            Integer initialValue = LoopUnroller.getInitialValue(method, start, name);
+            Element first = initialValue != null ? new LiteralElement(initialValue.toString(), INT_TYPE) : variable;
+
+            if (initialValue != null && factor.isLiteral()) {
+                int value = initialValue * Integer.parseInt(((LiteralElement) factor).getLiteral());
+                preheader.add(new AssignInstruction(product, INT_TYPE,
+                        new SingleOpInstruction(new LiteralElement(String.valueOf(value), INT_TYPE))));
+            }
+            else {
+                preheader.add(new AssignInstruction(product, INT_TYPE,
+                        new BinaryOpInstruction(first, new Operation(OperationType.MUL, INT_TYPE), factor)));
+            }
+
+            // The product changes by step * factor in each iteration
+            Element productStep;
+            if (factor.isLiteral()) {
+                int value = step * Integer.parseInt(((LiteralElement) factor).getLiteral());
+                productStep = new LiteralElement(String.valueOf(value), INT_TYPE);
+            }
+            else if (step == 1) {
+                productStep = factor;
+            }
+            else {
+                productStep = new Operand(product.getName() + "#step", INT_TYPE);
+                preheader.add(new AssignInstruction(productStep, INT_TYPE, new BinaryOpInstruction(factor,
+                        new Operation(OperationType.MUL, INT_TYPE), new LiteralElement(String.valueOf(step), INT_TYPE))));
+            }
+
+            updates.computeIfAbsent(increment, key -> new ArrayList<>()).add(new AssignInstruction(product, INT_TYPE,
+                    new BinaryOpInstruction(product, new Operation(OperationType.ADD, INT_TYPE), productStep)));
+
+            for (AssignInstruction assignInstruction : entry.getValue()) {
+                int index = LoopUnroller.indexOf(instructions, assignInstruction);
+                replaceInstruction(method, index, new AssignInstruction(assignInstruction.getDest(),
+                        assignInstruction.getTypeOfAssign(), new SingleOpInstruction(product)));
+            }
+
+            inductionVariables.add(name);
+        }
+
+        // The updates follow the increments, the labels of the next instructions stay with them. They take the line of
+        // their increment, and the preheader the line of the loop.
+        updates.forEach((index, instructionUpdates) -> {
+            instructionUpdates.forEach(update -> SourceLines.copy(instructions.get(index), update));
+            instructions.addAll(index + 1, instructionUpdates);
+        });
+        preheader.forEach(instruction -> SourceLines.copy(instructions.get(start), instruction));
+        instructions.addAll(start, preheader);
+
+        return preheader.size() + updates.values().stream().mapToInt(List::size).sum();
+    }
+
+    /**
+     * @return true if the element is a literal or a variable that isn't assigned in the loop
+     */
+    private static boolean isInvariant(Element element, Map<String, List<Integer>> assignments) {
+        if (element.getType().getTypeOfElement() != ElementType.INT32) return false;
+        if (element.isLiteral()) return true;
+
+        String variable = LoopUnroller.getVariable(element);
+        return variable != null && !assignments.containsKey(variable);
+    }
+
+    /**
+     * Removes the assignments to the variable if it is only read by them, which must have no other effects
+     */
+    private static void removeIfDead(Method method, String variable) {
+        List<Instruction> instructions = method.getInstructions();
+        List<Integer> assignments = new ArrayList<>();
+
+        for (int i = 0; i < instructions.size(); ++i) {
+            Instruction instruction = instructions.get(i);
+            boolean isAssignment = instruction.getInstType() == InstructionType.ASSIGN
+                    && variable.equals(LoopUnroller.getVariable(((AssignInstruction) instruction).getDest()));
+
+            if (isAssignment) {
+                InstructionType rhsType = ((AssignInstruction) instruction).getRhs().getInstType();
+                if (rhsType != InstructionType.NOPER && LoopUnroller.getInductionStep(variable, instruction) == null) {
+                    return;
+                }
+                assignments.add(i);
+            }
+            else if (LoopUnroller.getReadVariables(instruction).contains(variable)) {
+                return;
+            }
+        }
+
+        for (int i = assignments.size() - 1; i >= 0; --i) {
+            int index = assignments.get(i);
+            Instruction instruction = instructions.get(index);
+            if (((AssignInstruction) instruction).getRhs().getInstType() == InstructionType.NOPER
+                    && LoopUnroller.getReadElements(instruction).stream().anyMatch(e -> e instanceof ArrayOperand)) {
+                continue;
+            }
+
+            // The labels of the assignment move to the next instruction, there is always one (a return, at least)
+            Instruction next = instructions.get(index + 1);
+            method.getLabels().replaceAll((label, target) -> target == instruction ? next : target);
+            instructions.remove(index);
+        }
+    }
+
+    private static void replaceInstruction(Method method, int index, Instruction replacement) {
+        Instruction instruction = method.getInstructions().get(index);
+        method.getInstructions().set(index, SourceLines.copy(instruction, replacement));
+        method.getLabels().replaceAll((label, target) -> target == instruction ? replacement : target);
+    }
+}
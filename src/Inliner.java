@@ -0,0 +1,275 @@
+import java.util.*;
+
+import org.specs.comp.ollir.*;
+
+/**
+ * Replaces calls to small methods of the class with a copy of their instructions. The callee is called on this or on
+ * another instance of the class, which is the only class in the program, so none of its methods can be overridden.
+ * The variables of the copy are renamed (parameters that are never assigned use the argument directly), its labels
+ * are prefixed and its returns assign the result of the call and jump to the instruction after it. A receiver other
+ * than this is no longer dereferenced if the callee doesn't use it, which only matters for object fields that were
+ * never assigned (J-- has no null).
+ *
+ * With a profile, call sites that never ran aren't inlined and the ones that ran often inline larger methods.
+ */
+public class Inliner {
+    // Callees with more instructions than this aren't inlined
+    private static final int MAX_CALLEE_SIZE = 8;
+    // Limit for call sites that ran at least HOT_CALL_COUNT times in the profile
+    private static final int MAX_HOT_CALLEE_SIZE = 32;
+    private static final long HOT_CALL_COUNT = 1000;
+    // Callers stop inlining once they have this many instructions
+    private static final int MAX_CALLER_SIZE = 2000;
+
+    private static final Set<InstructionType> supportedInstructions = EnumSet.of(
+            InstructionType.ASSIGN, InstructionType.CALL, InstructionType.GOTO, InstructionType.BRANCH,
+            InstructionType.RETURN, InstructionType.NOPER, InstructionType.BINARYOPER, InstructionType.UNARYOPER,
+            InstructionType.GETFIELD, InstructionType.PUTFIELD);
+
+    private final ClassUnit ollirClass;
+    private final Profile profile;
+    private int inlinedCalls = 0;
+
+    // State of the call being inlined
+    private final Map<String, String> names = new HashMap<>(); // Variable of the callee -> variable in the caller
+    private Element receiver; // Replaces this, null if the receiver is this
+
+    public Inliner(ClassUnit ollirClass, Profile profile) {
+        this.ollirClass = ollirClass;
+        this.profile = profile;
+    }
+
+    /**
+     * Inlines the calls of every method. It must run before the CFGs and the tables of variables are built.
+     * @return the number of inlined calls
+     */
+    public int inline() {
+        for (Method caller : ollirClass.getMethods()) {
+            if (!caller.isConstructMethod()) inlineCalls(caller);
+        }
+
+        return inlinedCalls;
+    }
+
+    private void inlineCalls(Method caller) {
+        List<Instruction> instructions = caller.getInstructions();
+        String signature = BackendStage.getMethodSignature(caller);
+
+        // Calls are numbered like the call sites counted by an instrumented build
+        Map<String, Integer> numCalls = new HashMap<>();
+
+        for (Instruction instruction : new ArrayList<>(instructions)) {
+            CallInstruction call = getCall(instruction);
+            if (call == null || !isClassCall(ollirClass, call)) continue;
+
+            String methodName = getMethodName(call);
+            int callSite = numCalls.merge(methodName, 1, Integer::sum);
+
+            Method callee = findCallee(ollirClass, call);
+            if (callee == null || callee == caller || !isInlinable(callee)) continue;
+
+            int size = callee.getInstructions().size();
+            if (size > getSizeLimit(signature, methodName, callSite)
+                    || instructions.size() + size > MAX_CALLER_SIZE) continue;
+
+            int index = instructions.indexOf(instruction);
+            if (index + 1 < instructions.size()) inlineCall(caller, index, call, callee);
+        }
+    }
+
+    private int getSizeLimit(String signature, String methodName, int callSite) {
+        Long count = profile != null ? profile.getCount(signature, Profile.callSite(methodName, callSite)) : null;
+
+        if (count == null) return MAX_CALLEE_SIZE;
+        if (count == 0) return 0;
+        return count >= HOT_CALL_COUNT ? MAX_HOT_CALLEE_SIZE : MAX_CALLEE_SIZE;
+    }
+
+    static CallInstruction getCall(Instruction instruction) {
+        if (instruction.getInstType() == InstructionType.ASSIGN) {
+            instruction = ((AssignInstruction) instruction).getRhs();
+        }
+
+        return instruction.getInstType() == InstructionType.CALL ? (CallInstruction) instruction : null;
+    }
+
+    static String getMethodName(CallInstruction call) {
+        return ((LiteralElement) call.getSecondArg()).getLiteral().replace("\"", "");
+    }
+
+    /**
+     * @return true if the call is a method call on this or on another instance of the class
+     */
+    static boolean isClassCall(ClassUnit ollirClass, CallInstruction call) {
+        if (call.getInvocationType() != CallType.invokevirtual || call.getSecondArg() == null
+                || !call.getSecondArg().isLiteral()) return false;
+
+        Type type = call.getFirstArg().getType();
+        return type.getTypeOfElement() == ElementType.THIS
+                || (type instanceof ClassType && ((ClassType) type).getName().equals(ollirClass.getClassName()));
+    }
+
+    /**
+     * @return the method of the class with the name and the parameter types of the call, or null if there is none
+     */
+    static Method findCallee(ClassUnit ollirClass, CallInstruction call) {
+        String methodName = getMethodName(call);
+        List<Element> arguments = call.getListOfOperands();
+
+        for (Method method : ollirClass.getMethods()) {
+            if (method.isConstructMethod() || !method.getMethodName().equals(methodName)
+                    || method.getParams().size() != arguments.size()) continue;
+
+            boolean matches = true;
+            for (int i = 0; i < arguments.size(); ++i) {
+                matches &= method.getParams().get(i).getType().getTypeOfElement()
+                        == arguments.get(i).getType().getTypeOfElement();
+            }
+
+            if (matches) return method;
+        }
+
+        return null;
+    }
+
+    private static boolean isInlinable(Method callee) {
+        if (callee.isStaticMethod()) return false;
+
+        for (Instruction instruction : callee.getInstructions()) {
+            if (!supportedInstructions.contains(instruction.getInstType())) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the labels of each instruction of the method (Method.getLabels(Instruction) caches them)
+     */
+    static Map<Instruction, List<String>> getLabels(Method method) {
+        Map<Instruction, List<String>> labels = new IdentityHashMap<>();
+        method.getLabels().forEach((label, instruction) ->
+                labels.computeIfAbsent(instruction, key -> new ArrayList<>()).add(label));
+        return labels;
+    }
+
+    /**
+     * Replaces the call at the given index of the caller with the instructions of the callee
+     */
+    private void inlineCall(Method caller, int index, CallInstruction call, Method callee) {
+        List<Instruction> instructions = caller.getInstructions();
+        Instruction instruction = instructions.get(index), next = instructions.get(index + 1);
+
+        int id = ++inlinedCalls;
+        String labelPrefix = "inline" + id + "_";
+        InstructionCopier copier = new CalleeCopier(labelPrefix);
+        String endLabel = labelPrefix + "end";
+
+        names.clear();
+        receiver = call.getFirstArg().getType().getTypeOfElement() == ElementType.THIS ? null : call.getFirstArg();
+
+        Set<String> assigned = new HashSet<>();
+        for (Instruction calleeInstruction : callee.getInstructions()) {
+            if (calleeInstruction.getInstType() == InstructionType.ASSIGN) {
+                Element dest = ((AssignInstruction) calleeInstruction).getDest();
+                if (!(dest instanceof ArrayOperand)) assigned.add(((Operand) dest).getName());
+            }
+        }
+
+        // Every copied variable gets a name that isn't a valid identifier, so it can't clash with the caller's
+        List<Instruction> body = new ArrayList<>();
+        for (Element parameter : callee.getParams()) {
+            String name = ((Operand) parameter).getName();
+            names.put(name, name + "#" + id);
+        }
+
+        for (int i = 0; i < callee.getParams().size(); ++i) {
+            Operand parameter = (Operand) callee.getParams().get(i);
+            Element argument = call.getListOfOperands().get(i);
+
+            if (!argument.isLiteral() && !(argument instanceof ArrayOperand) && !assigned.contains(parameter.getName())
+                    && argument.getType().getTypeOfElement() != ElementType.THIS) {
+                names.put(parameter.getName(), ((Operand) argument).getName());
+            }
+            else {
+                body.add(new AssignInstruction(new Operand(names.get(parameter.getName()), parameter.getType()),
+                        parameter.getType(), new SingleOpInstruction(argument)));
+            }
+        }
+
+        Element dest = instruction.getInstType() == InstructionType.ASSIGN
+                ? ((AssignInstruction) instruction).getDest() : null;
+        Type assignType = dest != null ? ((AssignInstruction) instruction).getTypeOfAssign() : null;
+
+        Map<Instruction, List<String>> calleeLabels = getLabels(callee);
+        List<Instruction> calleeInstructions = callee.getInstructions();
+        Map<String, Instruction> labels = new HashMap<>();
+        List<String> pendingLabels = new ArrayList<>(); // Labels of the next copied instruction
+        boolean jumpsToEnd = false;
+
+        for (int i = 0; i < calleeInstructions.size(); ++i) {
+            Instruction calleeInstruction = calleeInstructions.get(i);
+            for (String label : calleeLabels.getOrDefault(calleeInstruction, Collections.emptyList())) {
+                pendingLabels.add(labelPrefix + label);
+            }
+
+            List<Instruction> copies = new ArrayList<>();
+
+            if (calleeInstruction.getInstType() == InstructionType.RETURN) {
+                ReturnInstruction returnInstruction = (ReturnInstruction) calleeInstruction;
+
+                if (dest != null && returnInstruction.hasReturnValue()) {
+                    copies.add(new AssignInstruction(dest, assignType,
+                            new SingleOpInstruction(copier.copyElement(returnInstruction.getOperand()))));
+                }
+                if (i != calleeInstructions.size() - 1) {
+                    copies.add(new GotoInstruction(endLabel));
+                    jumpsToEnd = true;
+                }
+            }
+            else {
+                copies.add(copier.copyInstruction(calleeInstruction));
+            }
+
+            if (!copies.isEmpty()) {
+                for (String label : pendingLabels) labels.put(label, copies.get(0));
+                pendingLabels.clear();
+                body.addAll(copies);
+            }
+        }
+
+        // Labels of the returns that didn't need any instruction are at the instruction after the call
+        for (String label : pendingLabels) labels.put(label, next);
+        if (jumpsToEnd) labels.put(endLabel, next);
+
+        // The labels of the call move to the first copied instruction
+        Instruction first = body.isEmpty() ? next : body.get(0);
+        caller.getLabels().replaceAll((label, target) -> target == instruction ? first : target);
+        caller.getLabels().putAll(labels);
+
+        // The inlined instructions are on the line of the call
+        body.forEach(bodyInstruction -> SourceLines.copy(instruction, bodyInstruction));
+        instructions.remove(index);
+        instructions.addAll(index, body);
+    }
+
+    /**
+     * Copies the instructions of the callee with the names of the variables in the caller
+     */
+    private class CalleeCopier extends InstructionCopier {
+        CalleeCopier(String labelPrefix) {
+            super(labelPrefix);
+        }
+
+        @Override
+        protected String renameVariable(String name) {
+            return names.computeIfAbsent(name, key -> key + "#" + inlinedCalls);
+        }
+
+        @Override
+        public Element copyElement(Element element) {
+            if (receiver != null && element != null && !element.isLiteral()
+                    && element.getType().getTypeOfElement() == ElementType.THIS) return receiver;
+            return super.copyElement(element);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import org.specs.comp.ollir.*;
+
+/**
+ * Copies OLLIR instructions, with a prefix in the labels they jump to. Subclasses can also rename the variables.
+ */
+public class InstructionCopier {
+    private final String labelPrefix;
+
+    public InstructionCopier(String labelPrefix) {
+        this.labelPrefix = labelPrefix;
+    }
+
+    /**
+     * @return the name of the variable in the copy
+     */
+    protected String renameVariable(String name) {
+        return name;
+    }
+
+    public Element copyElement(Element element) {
+        if (element == null || element.isLiteral()) return element;
+
+        ElementType type = element.getType().getTypeOfElement();
+        if (type == ElementType.THIS || type == ElementType.CLASS) return element;
+
+        Operand operand = (Operand) element;
+        String name = renameVariable(operand.getName());
+
+        if (operand instanceof ArrayOperand) {
+            return new ArrayOperand(name, operand.getType(), copyElements(((ArrayOperand) operand).getIndexOperands()));
+        }
+
+        return new Operand(name, operand.getType());
+    }
+
+    private ArrayList<Element> copyElements(List<Element> elements) {
+        ArrayList<Element> copies = new ArrayList<>();
+        for (Element element : elements) {
+            copies.add(copyElement(element));
+        }
+        return copies;
+    }
+
+    /**
+     * @return the copy of the instruction, with its line of the source code
+     */
+    public Instruction copyInstruction(Instruction instruction) {
+        return SourceLines.copy(instruction, copy(instruction));
+    }
+
+    private Instruction copy(Instruction instruction) {
+        switch (instruction.getInstType()) {
+            case ASSIGN: {
+                AssignInstruction assignInstruction = (AssignInstruction) instruction;
+                return new AssignInstruction(copyElement(assignInstruction.getDest()),
+                        assignInstruction.getTypeOfAssign(), copyInstruction(assignInstruction.getRhs()));
+            }
+            case CALL: {
+                CallInstruction callInstruction = (CallInstruction) instruction;
+                ArrayList<Element> operands = callInstruction.getListOfOperands() != null
+                        ? copyElements(callInstruction.getListOfOperands()) : new ArrayList<>();
+
+                if (callInstruction.getSecondArg() == null) {
+                    return new CallInstruction(callInstruction.getInvocationType(),
+                            copyElement(callInstruction.getFirstArg()), operands, callInstruction.getReturnType());
+                }
+                return new CallInstruction(callInstruction.getInvocationType(),
+                        copyElement(callInstruction.getFirstArg()), copyElement(callInstruction.getSecondArg()),
+                        operands, callInstruction.getReturnType());
+            }
+            case GOTO:
+                return new GotoInstruction(labelPrefix + ((GotoInstruction) instruction).getLabel());
+            case BRANCH: {
+                CondBranchInstruction branchInstruction = (CondBranchInstruction) instruction;
+                return new CondBranchInstruction(copyElement(branchInstruction.getLeftOperand()),
+                        copyElement(branchInstruction.getRightOperand()), branchInstruction.getCondOperation(),
+                        labelPrefix + branchInstruction.getLabel());
+            }
+            case RETURN: {
+                ReturnInstruction returnInstruction = (ReturnInstruction) instruction;
+                return returnInstruction.hasReturnValue()
+                        ? new ReturnInstruction(copyElement(returnInstruction.getOperand())) : new ReturnInstruction();
+            }
+            case NOPER:
+                return new SingleOpInstruction(copyElement(((SingleOpInstruction) instruction).getSingleOperand()));
+            case BINARYOPER: {
+                BinaryOpInstruction binaryOpInstruction = (BinaryOpInstruction) instruction;
+                return new BinaryOpInstruction(copyElement(binaryOpInstruction.getLeftOperand()),
+                        binaryOpInstruction.getUnaryOperation(), copyElement(binaryOpInstruction.getRightOperand()));
+            }
+            case UNARYOPER: {
+                UnaryOpInstruction unaryOpInstruction = (UnaryOpInstruction) instruction;
+                return new UnaryOpInstruction(unaryOpInstruction.getUnaryOperation(),
+                        copyElement(unaryOpInstruction.getRightOperand()));
+            }
+            case GETFIELD: {
+                GetFieldInstruction getFieldInstruction = (GetFieldInstruction) instruction;
+                Element field = getFieldInstruction.getSecondOperand();
+                return new GetFieldInstruction(copyElement(getFieldInstruction.getFirstOperand()), field,
+                        field.getType());
+            }
+            case PUTFIELD: {
+                PutFieldInstruction putFieldInstruction = (PutFieldInstruction) instruction;
+                Element field = putFieldInstruction.getSecondOperand();
+                return new PutFieldInstruction(copyElement(putFieldInstruction.getFirstOperand()), field,
+                        copyElement(putFieldInstruction.getThirdOperand()), field.getType());
+            }
+            default:
+                throw new IllegalArgumentException("Unsupported instruction: " + instruction.getInstType());
+        }
+    }
+}
@@ -0,0 +1,224 @@
+import java.util.Map;
+
+/**
+ * A single line of the body of a Jasmin method: either an instruction, with an optional operand, or a label.
+ * Loads, stores and integer constants keep their operand as a number and are rendered using their shortest form
+ * (iload_1, iconst_m1, bipush 10, ...), so the code can be analysed without caring about those variants.
+ */
+public class JasminInstruction {
+    private static final Map<String, String> invertedBranches = Map.ofEntries(
+            Map.entry("ifeq", "ifne"), Map.entry("ifne", "ifeq"),
+            Map.entry("iflt", "ifge"), Map.entry("ifge", "iflt"),
+            Map.entry("ifgt", "ifle"), Map.entry("ifle", "ifgt"),
+            Map.entry("if_icmpeq", "if_icmpne"), Map.entry("if_icmpne", "if_icmpeq"),
+            Map.entry("if_icmplt", "if_icmpge"), Map.entry("if_icmpge", "if_icmplt"),
+            Map.entry("if_icmpgt", "if_icmple"), Map.entry("if_icmple", "if_icmpgt"),
+            Map.entry("if_acmpeq", "if_acmpne"), Map.entry("if_acmpne", "if_acmpeq"),
+            Map.entry("ifnull", "ifnonnull"), Map.entry("ifnonnull", "ifnull")
+    );
+
+    private final String opcode; // null for labels
+    private final String operand;
+    private int line = 0; // Line of the source code the instruction was generated from, 0 if unknown
+
+    public JasminInstruction(String opcode) {
+        this(opcode, null);
+    }
+
+    public JasminInstruction(String opcode, int operand) {
+        this(opcode, String.valueOf(operand));
+    }
+
+    public JasminInstruction(String opcode, String operand) {
+        this.opcode = opcode;
+        this.operand = operand;
+    }
+
+    public static JasminInstruction label(String name) {
+        return new JasminInstruction(null, name);
+    }
+
+    /**
+     * @return a copy of the instruction (keeping its line) with another operand
+     */
+    public JasminInstruction withOperand(String operand) {
+        JasminInstruction instruction = new JasminInstruction(opcode, operand);
+        instruction.line = line;
+        return instruction;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public void setLine(int line) {
+        this.line = line;
+    }
+
+    public boolean isLabel() {
+        return opcode == null;
+    }
+
+    public String getOpcode() {
+        return opcode;
+    }
+
+    public String getOperand() {
+        return operand;
+    }
+
+    /**
+     * @return the first operand as an integer (the register of loads, stores and iinc or the value of iconst)
+     */
+    public int getIntOperand() {
+        int space = operand.indexOf(' ');
+        return Integer.parseInt(space == -1 ? operand : operand.substring(0, space));
+    }
+
+    public boolean is(String opcode) {
+        return opcode.equals(this.opcode);
+    }
+
+    public boolean isLoad() {
+        return "iload".equals(opcode) || "aload".equals(opcode);
+    }
+
+    public boolean isStore() {
+        return "istore".equals(opcode) || "astore".equals(opcode);
+    }
+
+    /**
+     * @return true if the instruction reads the local variable with the given index
+     */
+    public boolean reads(int register) {
+        return (isLoad() || "iinc".equals(opcode)) && getIntOperand() == register;
+    }
+
+    public boolean isConditionalBranch() {
+        return opcode != null && invertedBranches.containsKey(opcode);
+    }
+
+    public boolean isJump() {
+        return isConditionalBranch() || "goto".equals(opcode);
+    }
+
+    /**
+     * @return true if execution never continues to the next instruction
+     */
+    public boolean isUnconditionalJump() {
+        return "goto".equals(opcode) || "return".equals(opcode) || "ireturn".equals(opcode)
+                || "areturn".equals(opcode) || "athrow".equals(opcode);
+    }
+
+    public static String invertBranch(String opcode) {
+        return invertedBranches.get(opcode);
+    }
+
+    /**
+     * @return the number of stack slots (all values in J-- use one slot) pushed minus the number of slots popped
+     */
+    public int getStackEffect() {
+        if (opcode == null) return 0;
+
+        switch (opcode) {
+            case "iload": case "aload": case "iconst": case "ldc": case "new": case "dup": case "getstatic":
+                return 1;
+            case "dup2":
+                return 2;
+            case "istore": case "astore": case "pop": case "putstatic":
+            case "iadd": case "isub": case "imul": case "idiv": case "irem":
+            case "iand": case "ior": case "ixor": case "ishl": case "ishr": case "iushr":
+            case "iaload": case "ifeq": case "ifne": case "iflt": case "ifge": case "ifgt": case "ifle":
+            case "ifnull": case "ifnonnull": case "ireturn": case "areturn": case "athrow":
+                return -1;
+            case "if_icmpeq": case "if_icmpne": case "if_icmplt": case "if_icmpge": case "if_icmpgt":
+            case "if_icmple": case "if_acmpeq": case "if_acmpne": case "putfield": case "pop2":
+                return -2;
+            case "iastore":
+                return -3;
+            case "invokevirtual": case "invokespecial": case "invokeinterface":
+                return getInvocationStackEffect() - 1;
+            case "invokestatic":
+                return getInvocationStackEffect();
+            default:
+                // getfield, arraylength, newarray, ineg, swap, iinc, goto, return, nop, ...
+                return 0;
+        }
+    }
+
+    private int getInvocationStackEffect() {
+        String descriptor = operand.substring(operand.indexOf('('));
+        int effect = descriptor.endsWith(")V") ? 0 : 1;
+
+        for (int i = 1; descriptor.charAt(i) != ')'; ++i) {
+            char c = descriptor.charAt(i);
+
+            if (c == 'L') {
+                i = descriptor.indexOf(';', i);
+            }
+            else if (c == '[') {
+                continue;
+            }
+
+            effect -= 1;
+        }
+
+        return effect;
+    }
+
+    /**
+     * @return the size in bytes of the bytecode of the instruction (ldc is assumed to need a wide index)
+     */
+    public int getSize() {
+        if (opcode == null) return 0;
+
+        switch (opcode) {
+            case "iload": case "istore": case "aload": case "astore": {
+                int register = getIntOperand();
+                return register <= 3 ? 1 : register <= 255 ? 2 : 4;
+            }
+            case "iconst": {
+                int constant = getIntOperand();
+                if (constant >= -1 && constant <= 5) return 1;
+                if (constant >= -128 && constant <= 127) return 2;
+                return 3;
+            }
+            case "iinc":
+                return getIntOperand() <= 255 ? 3 : 6;
+            case "newarray":
+                return 2;
+            case "invokeinterface":
+                return 5;
+            case "new": case "getfield": case "putfield": case "getstatic": case "putstatic": case "ldc":
+            case "invokevirtual": case "invokespecial": case "invokestatic": case "goto":
+                return 3;
+            default:
+                return isConditionalBranch() ? 3 : 1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (opcode == null) {
+            return operand + ":";
+        }
+
+        switch (opcode) {
+            case "iload": case "istore": case "aload": case "astore": {
+                int register = getIntOperand();
+                return register <= 3 ? opcode + "_" + register : opcode + " " + register;
+            }
+            case "iconst": {
+                int constant = getIntOperand();
+
+                if (constant == -1) return "iconst_m1";
+                if (constant >= 0 && constant <= 5) return "iconst_" + constant;
+                if (constant >= -128 && constant <= 127) return "bipush " + constant;
+                if (constant >= -32768 && constant <= 32767) return "sipush " + constant;
+                return "ldc " + constant;
+            }
+            default:
+                return operand == null ? opcode : opcode + " " + operand;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+import java.util.List;
+
+/**
+ * A method of the class being generated, after its instructions have been optimized. It is rendered either as Jasmin
+ * code or directly into a class file.
+ */
+public class JasminMethod {
+    /**
+     * A variable of the source code, stored in the same register during the whole method
+     */
+    public static class Variable {
+        public final String name, descriptor;
+        public final int register;
+
+        public Variable(String name, String descriptor, int register) {
+            this.name = name;
+            this.descriptor = descriptor;
+            this.register = register;
+        }
+    }
+
+    public final String accessModifiers; // Jasmin keywords, such as "public static"
+    public final String name;
+    public final String descriptor;
+    public final List<JasminInstruction> code;
+    public final int maxStack, maxLocals;
+    public final boolean withLimits; // Whether the limits are written in the Jasmin code
+    public final List<Variable> variables;
+
+    public JasminMethod(String accessModifiers, String name, String descriptor, List<JasminInstruction> code,
+                        int maxStack, int maxLocals, boolean withLimits, List<Variable> variables) {
+        this.accessModifiers = accessModifiers;
+        this.name = name;
+        this.descriptor = descriptor;
+        this.code = code;
+        this.maxStack = maxStack;
+        this.maxLocals = maxLocals;
+        this.withLimits = withLimits;
+        this.variables = variables;
+    }
+}
@@ -0,0 +1,575 @@
+import java.util.*;
+
+import org.specs.comp.ollir.*;
+
+/**
+ * Unrolls the loops whose back edge compares an induction variable, which is incremented by a constant exactly once
+ * per iteration, with a literal or a value that doesn't change in the loop, such as the length of an array.
+ *
+ * When the loop runs a small constant number of times, its body is copied that many times. Otherwise, a copy of the
+ * body unrolled by the given factor runs while that many iterations are left, and the original loop runs the
+ * remaining ones:
+ * <pre>
+ *     limit := bound - (factor - 1) * step        (the unrolled loop is skipped if this overflows)
+ *     if (!(i &lt; limit)) goto remainder
+ *   unrolled:
+ *     body; ...; body
+ *     if (i &lt; limit) goto unrolled
+ *     if (!(i &lt; bound)) goto end
+ *   remainder:
+ *     body
+ *     if (i &lt; bound) goto remainder
+ *   end:
+ * </pre>
+ */
+public class LoopUnroller {
+    public static final int UNROLL_FACTOR = 4;
+    // Limit of the number of instructions of the copies of the body of a loop
+    private static final int MAX_UNROLLED_SIZE = 64;
+    // Loops that run at most this many times are fully unrolled
+    private static final int MAX_FULL_UNROLL_TRIPS = 8;
+
+    private static final Type INT_TYPE = new Type(ElementType.INT32);
+
+    private static final Map<OperationType, OperationType> negatedComparisons = Map.of(
+            OperationType.LTH, OperationType.GTE, OperationType.LTE, OperationType.GTH,
+            OperationType.GTH, OperationType.LTE, OperationType.GTE, OperationType.LTH);
+
+    /**
+     * A loop whose body is the range of instructions [start, end), followed by a conditional branch to start
+     */
+    private static class Loop {
+        int start, end;
+        int bodyEnd; // End of the instructions that are copied, which excludes the computation of the bound
+        String variable; // The induction variable
+        int step;
+        OperationType comparison; // The loop continues while "variable comparison bound"
+        Element bound; // Literal or variable that doesn't change in the loop, null if it is computed
+        AssignInstruction boundComputation; // Computes the bound before the branch, if it isn't an element
+    }
+
+    private final ClassUnit ollirClass;
+    private final Profile profile;
+    private final int factor;
+    private int unrolledLoops = 0;
+
+    public LoopUnroller(ClassUnit ollirClass, Profile profile, int factor) {
+        this.ollirClass = ollirClass;
+        this.profile = profile;
+        this.factor = factor;
+    }
+
+    /**
+     * Unrolls the loops of every method. It must run before the CFGs and the tables of variables are built.
+     * @return the number of unrolled loops
+     */
+    public int unroll() {
+        if (factor < 2) return 0;
+
+        for (Method method : ollirClass.getMethods()) {
+            if (!method.isConstructMethod()) unrollLoops(method);
+        }
+
+        return unrolledLoops;
+    }
+
+    private void unrollLoops(Method method) {
+        List<Instruction> instructions = method.getInstructions();
+
+        // Inner loops come first, so they are unrolled before the loops that contain them
+        for (int i = 0; i < instructions.size(); ++i) {
+            Instruction instruction = instructions.get(i);
+            if (instruction.getInstType() != InstructionType.BRANCH) continue;
+
+            int target = indexOf(instructions, method.getLabels().get(((CondBranchInstruction) instruction).getLabel()));
+            if (target > i) continue;
+
+            Loop loop = findLoop(method, target, i);
+            if (loop == null || isCold(method, loop)) continue;
+
+            i += unrollLoop(method, loop);
+        }
+    }
+
+    /**
+     * @return true if the profile shows that the body of the loop never ran
+     */
+    private boolean isCold(Method method, Loop loop) {
+        if (profile == null) return false;
+
+        String signature = BackendStage.getMethodSignature(method);
+        for (String label : Inliner.getLabels(method).getOrDefault(method.getInstructions().get(loop.start),
+                Collections.emptyList())) {
+            Long count = profile.getCount(signature, label);
+            if (count != null) return count == 0;
+        }
+
+        return false;
+    }
+
+    private Loop findLoop(Method method, int start, int end) {
+        List<Instruction> instructions = method.getInstructions();
+        CondBranchInstruction backEdge = (CondBranchInstruction) instructions.get(end);
+        OperationType comparison = backEdge.getCondOperation().getOpType();
+        if (!negatedComparisons.containsKey(comparison) || !isSingleEntryLoop(method, start, end)) return null;
+
+        Map<String, List<Integer>> assignments = findAssignments(method, start, end);
+
+        Loop loop = new Loop();
+        loop.start = start;
+        loop.end = end;
+        loop.bodyEnd = end;
+
+        Element bound;
+        if (findInduction(method, loop, backEdge.getLeftOperand(), assignments)) {
+            loop.comparison = comparison;
+            bound = backEdge.getRightOperand();
+        }
+        else if (findInduction(method, loop, backEdge.getRightOperand(), assignments)) {
+            loop.comparison = BackendStage.mirroredComparisons.get(comparison);
+            bound = backEdge.getLeftOperand();
+        }
+        else {
+            return null;
+        }
+
+        // The variable must move towards the bound
+        boolean isIncreasing = loop.comparison == OperationType.LTH || loop.comparison == OperationType.LTE;
+        if (isIncreasing != loop.step > 0) return null;
+
+        String boundVariable = getVariable(bound);
+        if (bound.getType().getTypeOfElement() != ElementType.INT32) return null;
+        if (bound.isLiteral() || (boundVariable != null && !assignments.containsKey(boundVariable))) {
+            loop.bound = bound;
+            return loop;
+        }
+
+        // The bound is computed right before the branch, from values that don't change in the loop
+        if (boundVariable == null || !List.of(end - 1).equals(assignments.get(boundVariable))) return null;
+
+        AssignInstruction boundComputation = (AssignInstruction) instructions.get(end - 1);
+        if (!isInvariant(boundComputation.getRhs(), assignments)) return null;
+
+        for (int i = start; i < end - 1; ++i) {
+            if (getReadVariables(instructions.get(i)).contains(boundVariable)) return null;
+        }
+
+        loop.boundComputation = boundComputation;
+        loop.bodyEnd = end - 1;
+        return loop.bodyEnd > start ? loop : null;
+    }
+
+    /**
+     * Checks whether the element is a variable incremented by a constant exactly once in every iteration of the loop,
+     * and stores it and its step in the loop
+     */
+    private static boolean findInduction(Method method, Loop loop, Element element,
+                                         Map<String, List<Integer>> assignments) {
+        String variable = getVariable(element);
+        if (variable == null || element.getType().getTypeOfElement() != ElementType.INT32) return false;
+
+        List<Integer> indexes = assignments.get(variable);
+        if (indexes == null || indexes.size() != 1) return false;
+
+        int index = indexes.get(0);
+        Integer step = getInductionStep(variable, method.getInstructions().get(index));
+        if (step == null || !runsOncePerIteration(method, loop.start, loop.end, index)) return false;
+
+        loop.variable = variable;
+        loop.step = step;
+        return true;
+    }
+
+    /**
+     * @return true if the loop, whose back edge jumps from end to start, can only be entered at its start, and its
+     * instructions only jump to instructions of the loop
+     */
+    static boolean isSingleEntryLoop(Method method, int start, int end) {
+        List<Instruction> instructions = method.getInstructions();
+
+        for (int i = 0; i < instructions.size(); ++i) {
+            String label = getJumpLabel(instructions.get(i));
+            if (label == null || i == end) continue;
+
+            int target = indexOf(instructions, method.getLabels().get(label));
+            boolean isInside = i >= start && i <= end, isTargetInside = target >= start && target <= end;
+            if (isInside != isTargetInside || (isInside && target == start)) return false;
+        }
+
+        return start < end;
+    }
+
+    /**
+     * @return the indexes of the assignments to each variable (other than array elements) in the range [start, end)
+     */
+    static Map<String, List<Integer>> findAssignments(Method method, int start, int end) {
+        List<Instruction> instructions = method.getInstructions();
+        Map<String, List<Integer>> assignments = new HashMap<>();
+
+        for (int i = start; i < end; ++i) {
+            if (instructions.get(i).getInstType() == InstructionType.ASSIGN) {
+                String variable = getVariable(((AssignInstruction) instructions.get(i)).getDest());
+                if (variable != null) assignments.computeIfAbsent(variable, key -> new ArrayList<>()).add(i);
+            }
+        }
+
+        return assignments;
+    }
+
+    /**
+     * @return the constant added to the variable by the instruction, if it is "variable := variable +/- literal"
+     */
+    static Integer getInductionStep(String variable, Instruction instruction) {
+        if (instruction.getInstType() != InstructionType.ASSIGN
+                || !variable.equals(getVariable(((AssignInstruction) instruction).getDest()))) return null;
+
+        Instruction rhs = ((AssignInstruction) instruction).getRhs();
+        if (rhs.getInstType() != InstructionType.BINARYOPER) return null;
+
+        BinaryOpInstruction operation = (BinaryOpInstruction) rhs;
+        OperationType type = operation.getUnaryOperation().getOpType();
+        Element left = operation.getLeftOperand(), right = operation.getRightOperand();
+
+        Integer step = null;
+        if (type == OperationType.ADD && variable.equals(getVariable(left))) step = getLiteral(right);
+        else if (type == OperationType.ADD && variable.equals(getVariable(right))) step = getLiteral(left);
+        else if (type == OperationType.SUB && variable.equals(getVariable(left)) && getLiteral(right) != null) {
+            step = -getLiteral(right);
+        }
+
+        return step == null || step == 0 ? null : step;
+    }
+
+    /**
+     * @return true if no jump of the loop [start, end] can skip the instruction at the given index or run it again
+     */
+    static boolean runsOncePerIteration(Method method, int start, int end, int index) {
+        List<Instruction> instructions = method.getInstructions();
+
+        for (int i = start; i < end; ++i) {
+            String label = getJumpLabel(instructions.get(i));
+            if (label == null) continue;
+
+            int target = indexOf(instructions, method.getLabels().get(label));
+            if ((i < index && target > index) || (i > index && target <= index)) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the variables whose value is only used in the iteration that assigns it, which can have a different name
+     * in each copy of the body (so that the backend can still keep them on the stack)
+     */
+    private static Set<String> findIterationVariables(Method method, Loop loop) {
+        List<Instruction> instructions = method.getInstructions();
+        Map<String, List<Integer>> assignments = findAssignments(method, loop.start, loop.bodyEnd);
+
+        // Variables assigned once, and read only after that assignment in the same iteration
+        Set<String> variables = new HashSet<>();
+        assignments.forEach((variable, indexes) -> {
+            if (indexes.size() == 1 && runsOncePerIteration(method, loop.start, loop.end, indexes.get(0))) variables.add(variable);
+        });
+
+        for (int i = 0; i < instructions.size() && !variables.isEmpty(); ++i) {
+            for (String variable : getReadVariables(instructions.get(i))) {
+                if (variables.contains(variable)
+                        && (i <= assignments.get(variable).get(0) || i >= loop.bodyEnd)) variables.remove(variable);
+            }
+        }
+
+        return variables;
+    }
+
+    private static boolean isInvariant(Instruction instruction, Map<String, List<Integer>> assignments) {
+        switch (instruction.getInstType()) {
+            case NOPER:
+            case BINARYOPER:
+                // A division could throw before the body runs
+                if (instruction.getInstType() == InstructionType.BINARYOPER
+                        && ((BinaryOpInstruction) instruction).getUnaryOperation().getOpType() == OperationType.DIV) {
+                    return false;
+                }
+                break;
+            case CALL:
+                if (((CallInstruction) instruction).getInvocationType() != CallType.arraylength) return false;
+                break;
+            default:
+                return false;
+        }
+
+        for (Element element : getReadElements(instruction)) {
+            if (element instanceof ArrayOperand) return false;
+
+            String variable = getVariable(element);
+            if (variable != null && assignments.containsKey(variable)) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the number of instructions added before the branch of the loop
+     */
+    private int unrollLoop(Method method, Loop loop) {
+        List<Instruction> instructions = method.getInstructions();
+        int bodySize = loop.bodyEnd - loop.start;
+
+        Integer trips = getTripCount(method, loop);
+        if (trips != null && trips > 0 && trips <= MAX_FULL_UNROLL_TRIPS && trips * bodySize <= MAX_UNROLLED_SIZE) {
+            return unrollFully(method, loop, trips);
+        }
+
+        int copies = Math.min(factor, MAX_UNROLLED_SIZE / bodySize);
+        if (copies < 2) return 0;
+
+        int id = ++unrolledLoops;
+        String prefix = "unroll" + id;
+        Instruction remainder = instructions.get(loop.start);
+        Operand variable = new Operand(loop.variable, INT_TYPE);
+        List<Instruction> unrolled = new ArrayList<>();
+
+        Element bound = loop.bound;
+        Integer constantBound = loop.boundComputation != null ? evaluate(loop.boundComputation.getRhs()) : null;
+        if (constantBound != null) {
+            bound = new LiteralElement(String.valueOf(constantBound), INT_TYPE);
+        }
+        else if (loop.boundComputation != null) {
+            bound = new Operand(prefix + "#bound", INT_TYPE);
+            unrolled.add(new AssignInstruction(bound, INT_TYPE,
+                    new InstructionCopier("").copyInstruction(loop.boundComputation.getRhs())));
+        }
+
+        // The unrolled loop runs while the variable would still pass the comparison after copies - 1 more steps
+        long distance = (long) (copies - 1) * loop.step;
+        Element limit;
+        if (bound.isLiteral()) {
+            long value = getLiteral(bound) - distance;
+            if (value != (int) value) return 0;
+            limit = new LiteralElement(String.valueOf(value), INT_TYPE);
+        }
+        else {
+            limit = new Operand(prefix + "#limit", INT_TYPE);
+            unrolled.add(new AssignInstruction(limit, INT_TYPE, new BinaryOpInstruction(bound,
+                    new Operation(distance > 0 ? OperationType.SUB : OperationType.ADD, INT_TYPE),
+                    new LiteralElement(String.valueOf(Math.abs(distance)), INT_TYPE))));
+            unrolled.add(new CondBranchInstruction(limit, bound,
+                    new Operation(distance > 0 ? OperationType.GTH : OperationType.LTH, INT_TYPE), prefix + "_rem"));
+        }
+        unrolled.add(new CondBranchInstruction(variable, limit,
+                new Operation(negatedComparisons.get(loop.comparison), INT_TYPE), prefix + "_rem"));
+
+        Map<String, Instruction> labels = new HashMap<>();
+        List<Instruction> body = copyBody(method, loop, copies, prefix, labels);
+        labels.put(prefix, body.get(0));
+        labels.put(prefix + "_rem", remainder);
+        unrolled.addAll(body);
+
+        Instruction next = new CondBranchInstruction(variable, limit,
+                new Operation(loop.comparison, INT_TYPE), prefix);
+        labels.replaceAll((label, target) -> target == null ? next : target);
+        unrolled.add(next);
+
+        Instruction exit = instructions.get(loop.end + 1);
+        String exitLabel = Inliner.getLabels(method).getOrDefault(exit, List.of(prefix + "_end")).get(0);
+        labels.put(exitLabel, exit);
+        unrolled.add(new CondBranchInstruction(variable, bound,
+                new Operation(negatedComparisons.get(loop.comparison), INT_TYPE), exitLabel));
+
+        // The instructions that control the unrolled loop are on the line of the loop
+        for (Instruction instruction : unrolled) {
+            if (SourceLines.get(instruction) == null) SourceLines.copy(instructions.get(loop.end), instruction);
+        }
+
+        method.getLabels().putAll(labels);
+        instructions.addAll(loop.start, unrolled);
+        return unrolled.size();
+    }
+
+    /**
+     * Replaces the loop with copies of its body
+     * @return the number of instructions added
+     */
+    private int unrollFully(Method method, Loop loop, int trips) {
+        List<Instruction> instructions = method.getInstructions();
+        String prefix = "unroll" + ++unrolledLoops;
+
+        Map<String, Instruction> labels = new HashMap<>();
+        List<Instruction> body = copyBody(method, loop, trips, prefix, labels);
+        Instruction exit = instructions.get(loop.end + 1);
+        labels.replaceAll((label, target) -> target == null ? exit : target);
+
+        // The labels of the loop aren't used anymore, the ones of the body were renamed in each copy
+        Set<Instruction> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        removed.addAll(instructions.subList(loop.start, loop.end + 1));
+        method.getLabels().values().removeIf(removed::contains);
+        method.getLabels().putAll(labels);
+
+        instructions.subList(loop.start, loop.end + 1).clear();
+        instructions.addAll(loop.start, body);
+        return body.size() - (loop.end + 1 - loop.start);
+    }
+
+    /**
+     * @return the given number of copies of the body of the loop, whose labels are added to the map. The labels at the
+     * end of the last copy are mapped to null.
+     */
+    private static List<Instruction> copyBody(Method method, Loop loop, int copies, String prefix,
+                                              Map<String, Instruction> labels) {
+        List<Instruction> instructions = method.getInstructions();
+        Map<Instruction, List<String>> bodyLabels = Inliner.getLabels(method);
+        Set<String> iterationVariables = findIterationVariables(method, loop);
+        List<Instruction> body = new ArrayList<>();
+        List<String> pendingLabels = new ArrayList<>(); // Labels of the next copied instruction
+
+        for (int copy = 1; copy <= copies; ++copy) {
+            String copyName = prefix + "_" + copy, labelPrefix = copyName + "_";
+            InstructionCopier copier = new InstructionCopier(labelPrefix) {
+                @Override
+                protected String renameVariable(String name) {
+                    return iterationVariables.contains(name) ? name + "#" + copyName : name;
+                }
+            };
+
+            for (int i = loop.start; i <= loop.end; ++i) {
+                Instruction instruction = instructions.get(i);
+                if (i != loop.start) {
+                    for (String label : bodyLabels.getOrDefault(instruction, Collections.emptyList())) {
+                        pendingLabels.add(labelPrefix + label);
+                    }
+                }
+                if (i >= loop.bodyEnd) continue;
+
+                Instruction instructionCopy = copier.copyInstruction(instruction);
+                for (String label : pendingLabels) labels.put(label, instructionCopy);
+                pendingLabels.clear();
+                body.add(instructionCopy);
+            }
+        }
+
+        for (String label : pendingLabels) labels.put(label, null);
+        return body;
+    }
+
+    /**
+     * @return the number of iterations of the loop, if the induction variable is assigned a literal right before it
+     * and the bound is constant, or null otherwise
+     */
+    private static Integer getTripCount(Method method, Loop loop) {
+        Integer bound = loop.bound != null ? getLiteral(loop.bound) : evaluate(loop.boundComputation.getRhs());
+        if (bound == null) return null;
+
+        Integer initialValue = getInitialValue(method, loop.start, loop.variable);
+        if (initialValue == null) return null;
+
+        int trips = 0;
+        for (long value = initialValue; value == (int) value
+                && BackendStage.compareLiterals(loop.comparison, (int) value, bound); value += loop.step) {
+            if (++trips > MAX_FULL_UNROLL_TRIPS) return null;
+        }
+
+        return trips;
+    }
+
+    /**
+     * @return the value of the variable when the loop that starts at the given index is entered, if it is assigned a
+     * literal right before it, or null otherwise
+     */
+    static Integer getInitialValue(Method method, int start, String variable) {
+        List<Instruction> instructions = method.getInstructions();
+        Map<Instruction, List<String>> labels = Inliner.getLabels(method);
+
+        // Going back from the loop through the instructions that always run right before it
+        for (int i = start - 1; i >= 0; --i) {
+            Instruction instruction = instructions.get(i);
+            if (instruction.getInstType() == InstructionType.ASSIGN) {
+                AssignInstruction assignInstruction = (AssignInstruction) instruction;
+                if (variable.equals(getVariable(assignInstruction.getDest()))) {
+                    return evaluate(assignInstruction.getRhs());
+                }
+            }
+            else if (instruction.getInstType() != InstructionType.BRANCH
+                    && instruction.getInstType() != InstructionType.CALL) {
+                return null;
+            }
+
+            if (labels.containsKey(instruction)) return null;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the value of an instruction of literals, or null if it isn't constant
+     */
+    private static Integer evaluate(Instruction instruction) {
+        if (instruction.getInstType() == InstructionType.NOPER) {
+            return getLiteral(((SingleOpInstruction) instruction).getSingleOperand());
+        }
+        if (instruction.getInstType() != InstructionType.BINARYOPER) return null;
+
+        BinaryOpInstruction operation = (BinaryOpInstruction) instruction;
+        Integer left = getLiteral(operation.getLeftOperand()), right = getLiteral(operation.getRightOperand());
+        if (left == null || right == null) return null;
+
+        switch (operation.getUnaryOperation().getOpType()) {
+            case ADD: return left + right;
+            case SUB: return left - right;
+            case MUL: return left * right;
+            default: return null;
+        }
+    }
+
+    static Integer getLiteral(Element element) {
+        if (element == null || !element.isLiteral() || element.getType().getTypeOfElement() != ElementType.INT32) {
+            return null;
+        }
+        return Integer.parseInt(((LiteralElement) element).getLiteral());
+    }
+
+    /**
+     * @return the name of the element if it is a variable that isn't an array access, null otherwise
+     */
+    static String getVariable(Element element) {
+        if (element == null || element.isLiteral() || element instanceof ArrayOperand) return null;
+
+        ElementType type = element.getType().getTypeOfElement();
+        return type == ElementType.THIS || type == ElementType.CLASS ? null : ((Operand) element).getName();
+    }
+
+    static String getJumpLabel(Instruction instruction) {
+        switch (instruction.getInstType()) {
+            case GOTO: return ((GotoInstruction) instruction).getLabel();
+            case BRANCH: return ((CondBranchInstruction) instruction).getLabel();
+            default: return null;
+        }
+    }
+
+    /**
+     * @return the elements read by the instruction, including the arrays and indexes of array accesses
+     */
+    static List<Element> getReadElements(Instruction instruction) {
+        List<Element> elements = new ArrayList<>();
+        BackendStage.addReadElements(instruction, elements);
+        elements.removeIf(Objects::isNull);
+        return elements;
+    }
+
+    static Set<String> getReadVariables(Instruction instruction) {
+        Set<String> variables = new HashSet<>();
+        for (Element element : getReadElements(instruction)) {
+            ElementType type = element.getType().getTypeOfElement();
+            if (!element.isLiteral() && type != ElementType.THIS && type != ElementType.CLASS) {
+                variables.add(((Operand) element).getName());
+            }
+        }
+        return variables;
+    }
+
+    static int indexOf(List<Instruction> instructions, Instruction instruction) {
+        for (int i = 0; i < instructions.size(); ++i) {
+            if (instructions.get(i) == instruction) return i;
+        }
+        return instructions.size();
+    }
+}
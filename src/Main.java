@@ -48,9 +48,10 @@ public class Main implements JmmParser {
 		}
 	}
 
-	public JasminResult generateJasmin(OllirResult ollirResult) {
+	public JasminResult generateJasmin(OllirResult ollirResult, CommandLineArgs args) {
 		try {
 			BackendStage backendStage = new BackendStage();
+			backendStage.args = args;
 			return backendStage.toJasmin(ollirResult);
 		}
 		catch (Exception e) {
@@ -63,6 +64,15 @@ public class Main implements JmmParser {
 		boolean optimize = false;
 		String path = null;
 		Integer maxRegisters = null;
+		CommandLineArgs.Allocator allocator = CommandLineArgs.Allocator.AUTO;
+		int methodSizeLimit = BackendStage.METHOD_SIZE_LIMIT;
+		int unrollFactor = LoopUnroller.UNROLL_FACTOR;
+		int classVersion = ClassFileWriter.CLASS_VERSION;
+		boolean memoize = false;
+		boolean shrink = false;
+		boolean emitJasmin = false;
+		boolean instrument = false;
+		Profile profile = null;
 
 		for (String arg : args) {
 			if (arg.equals("-o")) {
@@ -76,8 +86,89 @@ public class Main implements JmmParser {
 					throw new IllegalArgumentException("Number of registers must be an integer");
 				}
 
-				if (maxRegisters <= 0) {
-					throw new IllegalArgumentException("Number of registers must be positive");
+				// -r=0 finds the minimum number of registers needed by each method
+				if (maxRegisters < 0) {
+					throw new IllegalArgumentException("Number of registers must be non-negative");
+				}
+			}
+			else if (arg.startsWith("-alloc=")) {
+				// Register allocator used by -r, which is required. Without it, -r uses linear scan for the methods
+				// with more than OptimizationStage.LINEAR_SCAN_THRESHOLD instructions and graph coloring otherwise.
+				switch (arg.substring(7)) {
+					case "graph":
+						allocator = CommandLineArgs.Allocator.GRAPH_COLORING;
+						break;
+					case "linear":
+						allocator = CommandLineArgs.Allocator.LINEAR_SCAN;
+						break;
+					default:
+						throw new IllegalArgumentException("Register allocator must be either graph or linear");
+				}
+			}
+			else if (arg.startsWith("-split=")) {
+				// Methods with more bytes of bytecode than this are split into helper methods
+				try {
+					methodSizeLimit = Integer.parseInt(arg.substring(7));
+				}
+				catch (NumberFormatException ex) {
+					throw new IllegalArgumentException("Method size limit must be an integer");
+				}
+
+				if (methodSizeLimit <= 0) {
+					throw new IllegalArgumentException("Method size limit must be positive");
+				}
+			}
+			else if (arg.startsWith("-unroll=")) {
+				// Number of copies of the body of the loops unrolled by -o, 1 disables unrolling
+				try {
+					unrollFactor = Integer.parseInt(arg.substring(8));
+				}
+				catch (NumberFormatException ex) {
+					throw new IllegalArgumentException("Unroll factor must be an integer");
+				}
+
+				if (unrollFactor <= 0) {
+					throw new IllegalArgumentException("Unroll factor must be positive");
+				}
+			}
+			else if (arg.startsWith("-target=")) {
+				// Major version of the class file, stack map frames are generated from version 50 on
+				try {
+					classVersion = Integer.parseInt(arg.substring(8));
+				}
+				catch (NumberFormatException ex) {
+					throw new IllegalArgumentException("Class file version must be an integer");
+				}
+
+				if (classVersion < ClassFileWriter.MIN_CLASS_VERSION) {
+					throw new IllegalArgumentException("Class file version must be at least "
+							+ ClassFileWriter.MIN_CLASS_VERSION);
+				}
+			}
+			else if (arg.equals("-memoize")) {
+				// Recursive pure methods remember their results, which costs a table in each object of the class
+				memoize = true;
+			}
+			else if (arg.equals("-shrink")) {
+				// Remove the methods that main can't reach and the fields that are never read, which breaks other
+				// classes and reflection that use them
+				shrink = true;
+			}
+			else if (arg.equals("-j")) {
+				// Also write the Jasmin code, the class file is generated without it
+				emitJasmin = true;
+			}
+			else if (arg.equals("-instrument")) {
+				// The class counts the executions of its blocks and call sites and writes them to ClassName.profile
+				instrument = true;
+			}
+			else if (arg.startsWith("-profile=")) {
+				// Counts written by a class compiled with -instrument, from the same code and with the same options
+				try {
+					profile = Profile.load(arg.substring(9));
+				}
+				catch (IOException ex) {
+					throw new IllegalArgumentException("Profile could not be read: " + ex.getMessage());
 				}
 			}
 			else if (path == null) {
@@ -92,7 +183,21 @@ public class Main implements JmmParser {
 			throw new IllegalArgumentException("A path to a JMM file to compile must be provided");
 		}
 
-		return new CommandLineArgs(path, optimize, maxRegisters);
+		if (allocator != CommandLineArgs.Allocator.AUTO && maxRegisters == null) {
+			throw new IllegalArgumentException("Register allocator can only be chosen with -r");
+		}
+
+		CommandLineArgs parsedArgs = new CommandLineArgs(path, optimize, maxRegisters);
+		parsedArgs.allocator = allocator;
+		parsedArgs.methodSizeLimit = methodSizeLimit;
+		parsedArgs.unrollFactor = unrollFactor;
+		parsedArgs.classVersion = classVersion;
+		parsedArgs.memoize = memoize;
+		parsedArgs.shrink = shrink;
+		parsedArgs.emitJasmin = emitJasmin;
+		parsedArgs.instrument = instrument;
+		parsedArgs.profile = profile;
+		return parsedArgs;
 	}
 
 	private static void printReports(List<Report> reports) {
@@ -151,7 +256,8 @@ public class Main implements JmmParser {
 		if (getErrorReports(semanticsResult.getReports()).isEmpty()) {
 			ollirResult = main.generateOllir(semanticsResult, parsedArgs);
 
-			// ClassName.ollir
+			// ClassName.ollir, the generated OLLIR code. The passes that run after it (inlining and the other passes of
+			// -o, -memoize, -shrink and the register allocation of -r) change the parsed class, not this code.
 			File ollirCodeFile = new File(folder + File.separator + ollirResult.getOllirClass().getClassName()
 					+ ".ollir");
 			ollirCodeFile.createNewFile();
@@ -166,14 +272,16 @@ public class Main implements JmmParser {
 
 		JasminResult jasminResult;
 		if (getErrorReports(ollirResult.getReports()).isEmpty()) {
-			jasminResult = main.generateJasmin(ollirResult);
+			jasminResult = main.generateJasmin(ollirResult, parsedArgs);
 
 			// ClassName.j
-			File jasminCodeFile = new File(folder + File.separator + jasminResult.getClassName() + ".j");
-			jasminCodeFile.createNewFile();
-			FileWriter writer = new FileWriter(jasminCodeFile);
-			writer.write(jasminResult.getJasminCode());
-			writer.close();
+			if (parsedArgs.emitJasmin) {
+				File jasminCodeFile = new File(folder + File.separator + jasminResult.getClassName() + ".j");
+				jasminCodeFile.createNewFile();
+				FileWriter writer = new FileWriter(jasminCodeFile);
+				writer.write(jasminResult.getJasminCode());
+				writer.close();
+			}
 
 			// ClassName.class
 			jasminResult.compile(new File(folder));
@@ -0,0 +1,215 @@
+import java.util.*;
+
+import org.specs.comp.ollir.*;
+
+/**
+ * Makes recursive pure methods (see {@link MethodEvaluator}) remember their results in a table held in a field of the
+ * object, which the constructor allocates. The table has a slot for each hash of the arguments, which holds whether it
+ * is filled, the arguments and the result of the last call with that hash:
+ * <pre>
+ *   slot := hash(arguments) % TABLE_SIZE
+ *   if (table[slot] != 0 &amp;&amp; table[slot + 1] == argument1 &amp;&amp; ...) ret table[slot + n + 1]
+ *   ... (the body of the method, each "ret x" first fills the slot with the arguments and x)
+ * </pre>
+ * A pure method only depends on its arguments, so a remembered result is always right, and a recursive method that
+ * calls itself repeatedly with the same arguments (like the naive Fibonacci) only computes each of them once.
+ */
+public class Memoizer {
+    // Slots of the table of each method
+    private static final int TABLE_SIZE = 1024;
+    private static final int HASH_MULTIPLIER = 31;
+
+    private static final Type INT_TYPE = new Type(ElementType.INT32);
+    private static final ArrayType TABLE_TYPE = new ArrayType(1, ElementType.INT32);
+
+    private final ClassUnit ollirClass;
+    private final MethodEvaluator methodEvaluator;
+    private int memoizedMethods = 0;
+
+    private final List<Instruction> added = new ArrayList<>(); // Instructions built for the method being memoized
+
+    public Memoizer(ClassUnit ollirClass, MethodEvaluator methodEvaluator) {
+        this.ollirClass = ollirClass;
+        this.methodEvaluator = methodEvaluator;
+    }
+
+    /**
+     * Memoizes the recursive pure methods of the class. It must run before the CFGs and the tables of variables are
+     * built.
+     * @return the number of memoized methods
+     */
+    public int memoize() {
+        Element object = new Operand("this", new ClassType(ElementType.THIS, ollirClass.getClassName()));
+
+        for (Method method : new ArrayList<>(ollirClass.getMethods())) {
+            if (method.isConstructMethod() || method.isStaticMethod() || method.getParams().isEmpty()
+                    || !isRecursive(method) || !methodEvaluator.isPure(BackendStage.getMethodSignature(method))) {
+                continue;
+            }
+
+            Operand field = new Operand(getFieldName(), TABLE_TYPE);
+            Field tableField = new Field();
+            tableField.setFieldName(field.getName());
+            tableField.setFieldType(TABLE_TYPE);
+            tableField.setFieldAccessModifier(AccessModifiers.PRIVATE);
+            ollirClass.addField(tableField);
+
+            int stride = method.getParams().size() + 2;
+            allocateTable(object, field, TABLE_SIZE * stride);
+            memoizeMethod(method, object, field, stride);
+            ++memoizedMethods;
+        }
+
+        return memoizedMethods;
+    }
+
+    private boolean isRecursive(Method method) {
+        for (Instruction instruction : method.getInstructions()) {
+            CallInstruction call = Inliner.getCall(instruction);
+            if (call != null && Inliner.isClassCall(ollirClass, call)
+                    && Inliner.findCallee(ollirClass, call) == method) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return a name for the field of the table that no field of the class has
+     */
+    private String getFieldName() {
+        Set<String> names = new HashSet<>();
+        for (Field field : ollirClass.getFields()) {
+            names.add(field.getFieldName());
+        }
+
+        int i = memoizedMethods;
+        while (names.contains("memo$" + i)) ++i;
+        return "memo$" + i;
+    }
+
+    private void allocateTable(Element object, Operand field, int length) {
+        for (Method constructor : ollirClass.getMethods()) {
+            if (!constructor.isConstructMethod()) continue;
+
+            List<Instruction> instructions = constructor.getInstructions();
+            for (int i = instructions.size() - 1; i >= 0; --i) {
+                if (instructions.get(i).getInstType() != InstructionType.RETURN) continue;
+
+                // The returns of constructors aren't labeled, the table is allocated right before them
+                Operand table = new Operand(field.getName() + "#new", TABLE_TYPE);
+                ArrayList<Element> size = new ArrayList<>(List.of(new LiteralElement(String.valueOf(length), INT_TYPE)));
+                Instruction returnInstruction = instructions.get(i);
+                instructions.addAll(i, List.of(
+                        SourceLines.copy(returnInstruction, new AssignInstruction(table, TABLE_TYPE,
+                                new CallInstruction(CallType.NEW, new Operand("array", TABLE_TYPE), size, TABLE_TYPE))),
+                        SourceLines.copy(returnInstruction,
+                                new PutFieldInstruction(object, field, table, TABLE_TYPE))));
+            }
+        }
+    }
+
+    private void memoizeMethod(Method method, Element object, Operand field, int stride) {
+        List<Instruction> instructions = method.getInstructions();
+        List<Element> parameters = method.getParams();
+        Type returnType = method.getReturnType();
+
+        // Parameters assigned by the method (or by the jumps of eliminated tail calls) are copied, so that the result
+        // is stored with the arguments of the call
+        Map<String, List<Integer>> assignments = LoopUnroller.findAssignments(method, 0, instructions.size());
+        List<Element> keys = new ArrayList<>();
+        for (Element parameter : parameters) {
+            String name = ((Operand) parameter).getName();
+            if (assignments.containsKey(name)) {
+                Operand key = new Operand("memo#" + name, parameter.getType());
+                add(new AssignInstruction(key, key.getType(), new SingleOpInstruction(parameter)));
+                keys.add(key);
+            }
+            else {
+                keys.add(parameter);
+            }
+        }
+
+        // slot := hash % TABLE_SIZE, which is negative when the hash is
+        Operand table = new Operand("memo#table", TABLE_TYPE);
+        Operand hash = new Operand("memo#hash", INT_TYPE), base = new Operand("memo#base", INT_TYPE);
+        add(new AssignInstruction(table, TABLE_TYPE, new GetFieldInstruction(object, field, TABLE_TYPE)));
+        add(new AssignInstruction(hash, INT_TYPE, new SingleOpInstruction(keys.get(0))));
+        for (Element key : keys.subList(1, keys.size())) {
+            add(new AssignInstruction(hash, INT_TYPE, binary(hash, OperationType.MUL, literal(HASH_MULTIPLIER))));
+            add(new AssignInstruction(hash, INT_TYPE, binary(hash, OperationType.ADD, key)));
+        }
+        add(new AssignInstruction(base, INT_TYPE, binary(hash, OperationType.DIV, literal(TABLE_SIZE))));
+        add(new AssignInstruction(base, INT_TYPE, binary(base, OperationType.MUL, literal(TABLE_SIZE))));
+        add(new AssignInstruction(base, INT_TYPE, binary(hash, OperationType.SUB, base)));
+        add(new CondBranchInstruction(base, literal(0), new Operation(OperationType.GTE, INT_TYPE), "memo_positive"));
+        add(new AssignInstruction(base, INT_TYPE, binary(base, OperationType.ADD, literal(TABLE_SIZE))));
+        Instruction scaled = new AssignInstruction(base, INT_TYPE, binary(base, OperationType.MUL, literal(stride)));
+        add(scaled);
+        method.getLabels().put("memo_positive", scaled);
+
+        // The slot holds a result for the arguments if it is filled and its arguments are the same
+        Operand value = new Operand("memo#value", INT_TYPE);
+        add(new AssignInstruction(value, INT_TYPE, new SingleOpInstruction(element(table, base, 0))));
+        add(new CondBranchInstruction(value, literal(0), new Operation(OperationType.EQ, INT_TYPE), "memo_miss"));
+        for (int i = 0; i < keys.size(); ++i) {
+            add(new AssignInstruction(value, INT_TYPE, new SingleOpInstruction(element(table, base, i + 1))));
+            add(new CondBranchInstruction(value, keys.get(i), new Operation(OperationType.NEQ, INT_TYPE),
+                    "memo_miss"));
+        }
+        Operand result = new Operand("memo#result", returnType);
+        add(new AssignInstruction(result, returnType, new SingleOpInstruction(element(table, base, keys.size() + 1))));
+        add(new ReturnInstruction(result));
+
+        List<Instruction> prologue = new ArrayList<>(added);
+        added.clear();
+
+        // Each return fills the slot first. Its labels and line stay on the instructions that replace it.
+        for (int i = instructions.size() - 1; i >= 0; --i) {
+            Instruction instruction = instructions.get(i);
+            if (instruction.getInstType() != InstructionType.RETURN) continue;
+
+            Element returned = ((ReturnInstruction) instruction).getOperand();
+            add(new AssignInstruction(element(table, base, 0), INT_TYPE, new SingleOpInstruction(literal(1))));
+            for (int j = 0; j < keys.size(); ++j) {
+                add(new AssignInstruction(element(table, base, j + 1), INT_TYPE, new SingleOpInstruction(keys.get(j))));
+            }
+            add(new AssignInstruction(element(table, base, keys.size() + 1), INT_TYPE,
+                    new SingleOpInstruction(returned)));
+
+            Instruction first = added.get(0);
+            method.getLabels().replaceAll((label, target) -> target == instruction ? first : target);
+            added.forEach(addedInstruction -> SourceLines.copy(instruction, addedInstruction));
+            instructions.addAll(i, added);
+            added.clear();
+        }
+
+        // The original first instruction is where the calls that miss continue, the prologue is on its line
+        method.getLabels().put("memo_miss", instructions.get(0));
+        prologue.forEach(prologueInstruction -> SourceLines.copy(instructions.get(0), prologueInstruction));
+        instructions.addAll(0, prologue);
+    }
+
+    private void add(Instruction instruction) {
+        added.add(instruction);
+    }
+
+    /**
+     * @return an element of the table, at the given offset from the start of the slot, through a new variable that
+     * holds the index
+     */
+    private ArrayOperand element(Operand table, Operand base, int offset) {
+        if (offset == 0) return new ArrayOperand(table.getName(), INT_TYPE, new ArrayList<>(List.of(base)));
+
+        Operand index = new Operand("memo#index", INT_TYPE);
+        add(new AssignInstruction(index, INT_TYPE, binary(base, OperationType.ADD, literal(offset))));
+        return new ArrayOperand(table.getName(), INT_TYPE, new ArrayList<>(List.of(index)));
+    }
+
+    private static BinaryOpInstruction binary(Element left, OperationType operation, Element right) {
+        return new BinaryOpInstruction(left, new Operation(operation, INT_TYPE), right);
+    }
+
+    private static LiteralElement literal(int value) {
+        return new LiteralElement(String.valueOf(value), INT_TYPE);
+    }
+}
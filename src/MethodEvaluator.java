@@ -0,0 +1,325 @@
+import pt.up.fe.comp.jmm.JmmNode;
+import pt.up.fe.comp.jmm.analysis.table.Symbol;
+import pt.up.fe.comp.jmm.analysis.table.Type;
+
+import java.util.*;
+
+/**
+ * Evaluates calls to the pure methods of the class with constant arguments. A method is pure if its parameters and
+ * return value are ints or booleans, and it only uses its own variables (ints, booleans and int arrays, which never
+ * leave it) and calls pure methods on this. It has no effects, so a call only depends on its arguments.
+ *
+ * The evaluation gives up (returning null) when the program would throw an exception or if it takes too long, in
+ * which case the call is left for the runtime.
+ */
+public class MethodEvaluator {
+    // Limits of the evaluation of a call, including the calls it makes
+    private static final int MAX_STEPS = 100000;
+    private static final int MAX_DEPTH = 100;
+    private static final int MAX_ARRAY_LENGTH = 1 << 16;
+
+    private static final Set<String> pureKinds = Set.of("Body", "Statement", "Expression", "Then", "Else", "If",
+            "While", "Return", "VarDecl", "Assign", "Add", "Sub", "Mul", "Div", "LessThan", "And", "Not", "Int", "True",
+            "False", "Var", "ArrayAccess", "NewArray", "Size", "Dot", "Length", "Func", "Args");
+
+    private static class EvaluationException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public EvaluationException() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final JMMSymbolTable symbolTable;
+    private final Map<String, JmmNode> pureMethods = new HashMap<>(); // Signature -> Method node
+    private final Map<String, Object> results = new HashMap<>(); // "signature arguments" -> value, null if it failed
+
+    // State of the evaluation of a call
+    private int steps;
+    private int depth;
+
+    public MethodEvaluator(JMMSymbolTable symbolTable, JmmNode classNode) {
+        this.symbolTable = symbolTable;
+
+        for (JmmNode child : classNode.getChildren()) {
+            if (child.getKind().equals("Method") && !child.get("name").equals("main")) {
+                pureMethods.put(Utils.generateMethodSignature(child), child);
+            }
+        }
+
+        // Methods that call impure methods are impure too, until nothing changes
+        boolean changed = true;
+        while (changed) {
+            changed = pureMethods.entrySet().removeIf(entry -> !isPureMethod(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    /**
+     * @return the value returned by the method of the class with the name and the arguments, or null if it isn't pure
+     * or can't be evaluated
+     */
+    public Object evaluate(String methodName, List<Object> arguments) {
+        String signature = getSignature(methodName, arguments);
+        if (!pureMethods.containsKey(signature)) return null;
+
+        String key = signature + " " + arguments;
+        if (results.containsKey(key)) return results.get(key);
+
+        steps = 0;
+        depth = 0;
+
+        Object value;
+        try {
+            value = call(signature, arguments);
+        }
+        catch (EvaluationException | ArithmeticException | IndexOutOfBoundsException | NegativeArraySizeException
+                | NullPointerException e) {
+            value = null;
+        }
+
+        results.put(key, value);
+        return value;
+    }
+
+    /**
+     * @param signature the name and the types of the parameters of the method, like "fib(int)"
+     */
+    public boolean isPure(String signature) {
+        return pureMethods.containsKey(signature);
+    }
+
+    private static String getSignature(String methodName, List<Object> arguments) {
+        List<String> types = new ArrayList<>();
+        for (Object argument : arguments) {
+            types.add(argument instanceof Boolean ? "boolean" : "int");
+        }
+        return methodName + "(" + String.join(", ", types) + ")";
+    }
+
+    private static String getTypeName(Type type) {
+        return type.getName() + (type.isArray() ? "[]" : "");
+    }
+
+    // ----- Purity -----
+
+    private boolean isPureMethod(String signature, JmmNode method) {
+        MethodSymbolTable methodSymbolTable = symbolTable.methodSymbolTableMap.get(signature);
+        if (!isPrimitive(methodSymbolTable.returnType)) return false;
+
+        for (Symbol parameter : methodSymbolTable.parameters) {
+            if (!isPrimitive(parameter.getType())) return false;
+        }
+        for (Symbol localVariable : methodSymbolTable.localVariables) {
+            Type type = localVariable.getType();
+            if (!isPrimitive(type) && !getTypeName(type).equals("int[]")) return false;
+        }
+
+        for (JmmNode child : method.getChildren()) {
+            if (!child.getKind().equals("Params") && !isPure(signature, child)) return false;
+        }
+
+        return true;
+    }
+
+    private boolean isPure(String signature, JmmNode node) {
+        String kind = node.getKind();
+
+        if (kind.equals("Var")) {
+            MethodSymbolTable methodSymbolTable = symbolTable.methodSymbolTableMap.get(signature);
+            String name = node.get("name");
+            if (methodSymbolTable.getLocalVariable(name) == null && methodSymbolTable.getParameter(name) == null) {
+                return false;
+            }
+        }
+        else if (kind.equals("Dot") && node.getChildren().get(1).getKind().equals("Func")) {
+            // Only calls on this to pure methods, whose arguments are ints and booleans
+            JmmNode func = node.getChildren().get(1);
+            List<String> types = new ArrayList<>();
+            for (JmmNode argument : func.getNumChildren() > 0 ? func.getChildren().get(0).getChildren()
+                    : List.<JmmNode>of()) {
+                types.add(getType(signature, argument));
+            }
+
+            String callee = func.get("name") + "(" + String.join(", ", types) + ")";
+            if (!node.getChildren().get(0).getKind().equals("This") || !pureMethods.containsKey(callee)) return false;
+
+            return isPure(signature, func);
+        }
+        else if (!pureKinds.contains(kind)) {
+            return false;
+        }
+
+        for (JmmNode child : node.getChildren()) {
+            if (!isPure(signature, child)) return false;
+        }
+
+        return true;
+    }
+
+    private static boolean isPrimitive(Type type) {
+        String name = getTypeName(type);
+        return name.equals("int") || name.equals("boolean");
+    }
+
+    /**
+     * @return the type of an expression of a method, as written in signatures ("int", "boolean", "int[]")
+     */
+    private String getType(String signature, JmmNode node) {
+        switch (node.getKind()) {
+            case "True":
+            case "False":
+            case "LessThan":
+            case "And":
+            case "Not":
+                return "boolean";
+            case "NewArray":
+                return "int[]";
+            case "Var": {
+                Symbol symbol = symbolTable.getSymbol(signature, node.get("name"));
+                return symbol != null ? getTypeName(symbol.getType()) : null;
+            }
+            case "Dot": {
+                JmmNode func = node.getChildren().get(1);
+                if (!func.getKind().equals("Func")) return "int";
+
+                List<String> types = new ArrayList<>();
+                for (JmmNode argument : func.getNumChildren() > 0 ? func.getChildren().get(0).getChildren()
+                        : List.<JmmNode>of()) {
+                    types.add(getType(signature, argument));
+                }
+
+                MethodSymbolTable callee = symbolTable.methodSymbolTableMap.get(
+                        func.get("name") + "(" + String.join(", ", types) + ")");
+                return callee != null ? getTypeName(callee.returnType) : null;
+            }
+            default:
+                return "int";
+        }
+    }
+
+    // ----- Evaluation -----
+
+    private Object call(String signature, List<Object> arguments) {
+        String key = signature + " " + arguments;
+        if (results.get(key) != null) return results.get(key);
+        if (++depth > MAX_DEPTH) throw new EvaluationException();
+
+        JmmNode method = pureMethods.get(signature);
+        MethodSymbolTable methodSymbolTable = symbolTable.methodSymbolTableMap.get(signature);
+        Map<String, Object> variables = new HashMap<>();
+
+        for (Symbol localVariable : methodSymbolTable.localVariables) {
+            String type = getTypeName(localVariable.getType());
+            variables.put(localVariable.getName(), type.equals("int") ? 0 : type.equals("boolean") ? false : null);
+        }
+
+        int i = 0;
+        for (Symbol parameter : methodSymbolTable.parameters) {
+            variables.putIfAbsent(parameter.getName(), arguments.get(i++));
+        }
+
+        Object value = null;
+        for (JmmNode child : method.getChildren()) {
+            if (child.getKind().equals("Body")) execute(child, variables);
+            else if (child.getKind().equals("Return")) value = evaluate(child.getChildren().get(0), variables);
+        }
+
+        --depth;
+        results.put(key, value);
+        return value;
+    }
+
+    private void execute(JmmNode node, Map<String, Object> variables) {
+        switch (node.getKind()) {
+            case "Expression":
+                evaluate(node.getChildren().get(0), variables);
+                break;
+            case "If":
+                if ((Boolean) evaluate(node.getChildren().get(0), variables)) execute(node.getChildren().get(1), variables);
+                else execute(node.getChildren().get(2), variables);
+                break;
+            case "While":
+                while ((Boolean) evaluate(node.getChildren().get(0), variables)) {
+                    execute(node.getChildren().get(1), variables);
+                }
+                break;
+            case "VarDecl":
+                break;
+            default:
+                for (JmmNode child : node.getChildren()) {
+                    execute(child, variables);
+                }
+        }
+    }
+
+    private Object evaluate(JmmNode node, Map<String, Object> variables) {
+        if (++steps > MAX_STEPS) throw new EvaluationException();
+
+        List<JmmNode> children = node.getChildren();
+        switch (node.getKind()) {
+            case "Int":
+                return Integer.parseInt(node.get("value"));
+            case "True":
+                return true;
+            case "False":
+                return false;
+            case "Var":
+                return variables.get(node.get("name"));
+            case "Add":
+                return (Integer) evaluate(children.get(0), variables) + (Integer) evaluate(children.get(1), variables);
+            case "Sub":
+                return (Integer) evaluate(children.get(0), variables) - (Integer) evaluate(children.get(1), variables);
+            case "Mul":
+                return (Integer) evaluate(children.get(0), variables) * (Integer) evaluate(children.get(1), variables);
+            case "Div":
+                return (Integer) evaluate(children.get(0), variables) / (Integer) evaluate(children.get(1), variables);
+            case "LessThan":
+                return (Integer) evaluate(children.get(0), variables) < (Integer) evaluate(children.get(1), variables);
+            case "And":
+                return (Boolean) evaluate(children.get(0), variables) && (Boolean) evaluate(children.get(1), variables);
+            case "Not":
+                return !(Boolean) evaluate(children.get(0), variables);
+            case "ArrayAccess": {
+                int[] array = (int[]) evaluate(children.get(0), variables);
+                return array[(Integer) evaluate(children.get(1), variables)];
+            }
+            case "NewArray": {
+                int length = (Integer) evaluate(children.get(0).getChildren().get(0), variables);
+                if (length > MAX_ARRAY_LENGTH) throw new EvaluationException();
+                return new int[length];
+            }
+            case "Assign": {
+                JmmNode destination = children.get(0);
+                Object value;
+
+                if (destination.getKind().equals("Var")) {
+                    value = evaluate(children.get(1), variables);
+                    variables.put(destination.get("name"), value);
+                }
+                else {
+                    int[] array = (int[]) evaluate(destination.getChildren().get(0), variables);
+                    int index = (Integer) evaluate(destination.getChildren().get(1), variables);
+                    value = evaluate(children.get(1), variables);
+                    array[index] = (Integer) value;
+                }
+
+                return value;
+            }
+            case "Dot": {
+                JmmNode func = children.get(1);
+                if (func.getKind().equals("Length")) return ((int[]) evaluate(children.get(0), variables)).length;
+
+                List<Object> arguments = new ArrayList<>();
+                if (func.getNumChildren() > 0) {
+                    for (JmmNode argument : func.getChildren().get(0).getChildren()) {
+                        arguments.add(evaluate(argument, variables));
+                    }
+                }
+
+                return call(getSignature(func.get("name"), arguments), arguments);
+            }
+            default:
+                throw new EvaluationException();
+        }
+    }
+}
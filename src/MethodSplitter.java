@@ -0,0 +1,211 @@
+import java.util.*;
+
+import org.specs.comp.ollir.*;
+
+/**
+ * Chooses regions of a method that is too large to be JIT compiled (or even loaded) that can be outlined into helper
+ * methods. A region is a range of OLLIR instructions with a single entry (only its first instruction may be the
+ * target of jumps from outside) and a single exit (jumps inside it may only target its instructions or the first
+ * instruction after it). The variables it reads that are live when it starts become the parameters of the helper and
+ * at most one variable it writes can be live after it, which becomes the return value of the helper.
+ */
+public class MethodSplitter {
+    // Limit of the JVM on the number of parameter slots of a static method
+    private static final int MAX_PARAMETERS = 255;
+    // Regions smaller than this aren't worth the cost of the call
+    private static final int MIN_REGION_SIZE = 64;
+    // Estimated size of the instructions that pass the parameters, call the helper and store its result
+    private static final int CALL_SIZE = 8;
+
+    public static class Region {
+        public final int start, end; // Instructions [start, end)
+        public final List<String> parameters;
+        public final String result; // null if the helper doesn't return a value
+
+        public Region(int start, int end, List<String> parameters, String result) {
+            this.start = start;
+            this.end = end;
+            this.parameters = parameters;
+            this.result = result;
+        }
+    }
+
+    private final Method method;
+    private final List<Instruction> instructions;
+    private final Set<Integer> stackedAssignments;
+    private final OptimizationStage.LivenessResult liveness;
+    private final Map<String, Integer> variableIds = new HashMap<>();
+
+    private final int[] jumpTargets; // Index of the instruction each instruction jumps to, -1 if it isn't a jump
+    private final List<List<Integer>> jumpSources = new ArrayList<>();
+
+    /**
+     * @param stackedAssignments assignments whose value is left on the stack for the next instruction, a region can't
+     *                           separate them from that instruction
+     */
+    public MethodSplitter(Method method, Set<Integer> stackedAssignments) {
+        this.method = method;
+        this.instructions = method.getInstructions();
+        this.stackedAssignments = stackedAssignments;
+        this.liveness = new OptimizationStage().livenessAnalysis(method);
+
+        for (int i = 0; i < liveness.variables.size(); ++i) {
+            variableIds.put(liveness.variables.get(i), i);
+        }
+
+        jumpTargets = new int[instructions.size()];
+        for (int i = 0; i < instructions.size(); ++i) {
+            jumpSources.add(new ArrayList<>());
+        }
+
+        for (int i = 0; i < instructions.size(); ++i) {
+            Instruction instruction = instructions.get(i);
+            String label = null;
+
+            if (instruction.getInstType() == InstructionType.GOTO) {
+                label = ((GotoInstruction) instruction).getLabel();
+            }
+            else if (instruction.getInstType() == InstructionType.BRANCH) {
+                label = ((CondBranchInstruction) instruction).getLabel();
+            }
+
+            jumpTargets[i] = label == null ? -1 : instructions.indexOf(method.getLabels().get(label));
+            if (jumpTargets[i] != -1) {
+                jumpSources.get(jumpTargets[i]).add(i);
+            }
+        }
+    }
+
+    /**
+     * Chooses regions, from the start of the method, until the estimated size of the method is below the limit.
+     * Each region is as large as possible without exceeding the limit itself.
+     * @param sizes estimated size in bytes of the code of each instruction
+     */
+    public List<Region> split(int[] sizes, int sizeLimit) {
+        List<Region> regions = new ArrayList<>();
+        int size = Arrays.stream(sizes).sum();
+
+        for (int start = 0; start < instructions.size() && size > sizeLimit; ) {
+            Region region = findLargestRegion(start, sizes, sizeLimit - CALL_SIZE);
+
+            if (region == null) {
+                ++start;
+                continue;
+            }
+
+            regions.add(region);
+            for (int i = region.start; i < region.end; ++i) {
+                size -= sizes[i];
+            }
+            size += CALL_SIZE;
+            start = region.end;
+        }
+
+        return regions;
+    }
+
+    private Region findLargestRegion(int start, int[] sizes, int sizeLimit) {
+        if (stackedAssignments.contains(start - 1)) return null;
+
+        Set<String> referenced = new LinkedHashSet<>(), writtenParameters = new HashSet<>();
+        BitSet defined = new BitSet();
+
+        int size = 0, minimumEnd = start + 1;
+        Region best = null;
+
+        for (int i = start; i < instructions.size(); ++i) {
+            Instruction instruction = instructions.get(i);
+            if (instruction.getInstType() == InstructionType.RETURN) break;
+
+            // Jumps into the region from outside, other than to its first instruction
+            boolean enteredFromOutside = false;
+            if (i != start) {
+                for (int source : jumpSources.get(i)) {
+                    if (source < start) enteredFromOutside = true;
+                    else if (source > i) minimumEnd = Math.max(minimumEnd, source + 1);
+                }
+            }
+
+            // Jumps out of the region, other than to the instruction after it
+            int target = jumpTargets[i];
+            if (enteredFromOutside || (target != -1 && target < start)) break;
+            if (target > i) minimumEnd = Math.max(minimumEnd, target);
+
+            size += sizes[i];
+            if (size > sizeLimit) break;
+
+            addVariables(instruction, referenced, defined, writtenParameters);
+
+            int end = i + 1;
+            if (end < minimumEnd || stackedAssignments.contains(i) || end >= instructions.size()) continue;
+
+            Region region = createRegion(start, end, referenced, defined, writtenParameters);
+            if (region != null && size >= MIN_REGION_SIZE) {
+                best = region;
+            }
+        }
+
+        return best;
+    }
+
+    private Region createRegion(int start, int end, Set<String> referenced, BitSet defined,
+                                Set<String> writtenParameters) {
+        BitSet liveOut = (BitSet) liveness.liveIn[end].clone();
+        liveOut.and(defined);
+
+        // Parameters aren't part of the liveness analysis, assume the ones written by the region are used after it
+        if (liveOut.cardinality() + writtenParameters.size() > 1) return null;
+
+        List<String> parameters = new ArrayList<>();
+        for (String name : referenced) {
+            Integer id = variableIds.get(name);
+
+            // Parameters and this aren't part of the liveness analysis
+            if (id == null || liveness.liveIn[start].get(id)) {
+                parameters.add(name);
+            }
+        }
+
+        if (parameters.size() > MAX_PARAMETERS) return null;
+
+        String result = null;
+        if (!liveOut.isEmpty()) result = liveness.variables.get(liveOut.nextSetBit(0));
+        else if (!writtenParameters.isEmpty()) result = writtenParameters.iterator().next();
+
+        return new Region(start, end, parameters, result);
+    }
+
+    /**
+     * Adds the variables (locals, parameters and this) referenced by an instruction, and the locals and parameters
+     * it writes
+     */
+    private void addVariables(Instruction instruction, Set<String> referenced, BitSet defined,
+                              Set<String> writtenParameters) {
+        List<Element> elements = new ArrayList<>();
+        BackendStage.addReadElements(instruction, elements);
+
+        if (instruction.getInstType() == InstructionType.ASSIGN) {
+            Operand destination = (Operand) ((AssignInstruction) instruction).getDest();
+            Descriptor descriptor = method.getVarTable().get(destination.getName());
+
+            if (descriptor != null && !(destination instanceof ArrayOperand)) {
+                Integer id = variableIds.get(destination.getName());
+                if (id != null) defined.set(id);
+                if (descriptor.getScope() == VarScope.PARAMETER) writtenParameters.add(destination.getName());
+            }
+
+            elements.add(destination);
+        }
+
+        for (Element element : elements) {
+            if (element == null || element.isLiteral()) continue;
+
+            String name = ((Operand) element).getName();
+            Descriptor descriptor = method.getVarTable().get(name);
+
+            if (descriptor != null && descriptor.getScope() != VarScope.FIELD) {
+                referenced.add(name);
+            }
+        }
+    }
+}
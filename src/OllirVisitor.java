@@ -16,7 +16,8 @@ public class OllirVisitor extends AJmmVisitor<List<Report>, String> {
 
     private final Map<String, Integer> tempVariablesMap = new HashMap<>(),
             ifStatementsMap = new HashMap<>(),   // Number of if statements in a method
-            whileStatementMap = new HashMap<>(); // Number of while statements in a method
+            whileStatementMap = new HashMap<>(), // Number of while statements in a method
+            andOperationsMap = new HashMap<>();  // Number of short-circuited && operations in a method
 
     private static final Map<String, String> arithmeticOpMap = Map.of("Add", "+", "Sub", "-", "Mul", "*", "Div", "/"),
             comparisonOpMap = Map.of("LessThan", "<"),
@@ -24,9 +25,14 @@ public class OllirVisitor extends AJmmVisitor<List<Report>, String> {
 
     private final Set<String> importedClasses;
 
-    public OllirVisitor(StringBuilder ollirBuilder, SymbolTable symbolTable) {
+    private String currentLine; // Line of the source code of the statement being built
+
+    private final Profile profile; // Guides the layout of ifs and whiles, null if there is none
+
+    public OllirVisitor(StringBuilder ollirBuilder, SymbolTable symbolTable, Profile profile) {
         this.ollirBuilder = ollirBuilder;
         this.symbolTable = (JMMSymbolTable) symbolTable;
+        this.profile = profile;
         importedClasses = symbolTable.getImports().stream().map(Utils::getImportedClass).collect(Collectors.toSet());
 
         addVisit("Import", this::visitImport);
@@ -92,6 +98,18 @@ public class OllirVisitor extends AJmmVisitor<List<Report>, String> {
         return ollirBuilder.append(tabs);
     }
 
+    /**
+     * Adds a comment with the line of the statement, if it differs from the previous one. The backend assigns the
+     * line of the last comment to each of the instructions after it.
+     */
+    private void buildLineComment(JmmNode node) {
+        Optional<String> line = node.getOptional("line");
+        if (line.isEmpty() || line.get().equals(currentLine)) return;
+
+        currentLine = line.get();
+        lineWithTabs().append("// line ").append(currentLine).append("\n");
+    }
+
     private void buildConstructor(String className) {
         lineWithTabs().append(".construct ").append(className).append("().V {\n");
         addTab();
@@ -197,6 +215,8 @@ public class OllirVisitor extends AJmmVisitor<List<Report>, String> {
         tempVariablesMap.put(signature, 0);
         ifStatementsMap.put(signature, 0);
         whileStatementMap.put(signature, 0);
+        andOperationsMap.put(signature, 0);
+        currentLine = null;
 
         int bodyIdx = isMain ? 0 : 1;
         visit(node.getChildren().get(bodyIdx));
@@ -239,14 +259,27 @@ public class OllirVisitor extends AJmmVisitor<List<Report>, String> {
         JmmNode expressionNode = node.getChildren().get(0), thenNode = node.getChildren().get(1),
                 elseNode = node.getChildren().get(2);
 
-        String expressionOllir = visit(expressionNode, reports);
+        if (isThenHotter(signature, ifCount, thenNode, elseNode)) {
+            // The then block ran more often in the profile, so it is placed on the fall-through path instead
+            buildConditionalJump(expressionNode, false, "else" + ifCount, reports);
+
+            addTab();
+            visit(thenNode, reports);
+            lineWithTabs().append("goto endif").append(ifCount).append(";\n");
+            removeTab();
+
+            lineWithTabs().append("else").append(ifCount).append(":\n");
+
+            addTab();
+            visit(elseNode, reports);
+            removeTab();
 
-        lineWithTabs().append("if (").append(expressionOllir);
-        if (expressionOllir.split(" ").length == 1) {
-            // FIXME: Temporary fix since OLLIR parser only accepts binary operations in if and while statements
-            ollirBuilder.append(" &&.bool 1.bool");
+            lineWithTabs().append("endif").append(ifCount).append(":\n");
+
+            return null;
         }
-        ollirBuilder.append(") goto then").append(ifCount).append(";\n");
+
+        buildConditionalJump(expressionNode, true, "then" + ifCount, reports);
 
         addTab();
         visit(elseNode, reports);
@@ -270,26 +303,35 @@ public class OllirVisitor extends AJmmVisitor<List<Report>, String> {
         whileStatementMap.computeIfPresent(signature, (key, count) -> count + 1);
         int whileCount = whileStatementMap.get(signature);
 
-        lineWithTabs().append("loop").append(whileCount).append(":\n");
-
         JmmNode expressionNode = node.getChildren().get(0), bodyNode = node.getChildren().get(1);
-        String expressionOllir = visit(expressionNode, reports);
-        
-        addTab();
-        lineWithTabs().append("if (").append(expressionOllir);
-        if (expressionOllir.split(" ").length == 1) {
-            // FIXME: Temporary fix since OLLIR parser only accepts binary operations in if and while statements
-            ollirBuilder.append(" &&.bool 1.bool");
+
+        Long bodyCount = profile != null ? profile.getCount(signature, "body" + whileCount) : null;
+        if (bodyCount != null && bodyCount == 0) {
+            // The body never ran in the profile: the condition is only tested at the start of the loop, which is
+            // slower for each iteration but doesn't duplicate the code of the condition
+            lineWithTabs().append("loop").append(whileCount).append(":\n");
+            buildConditionalJump(expressionNode, false, "endloop" + whileCount, reports);
+
+            addTab();
+            visit(bodyNode, reports);
+            lineWithTabs().append("goto loop").append(whileCount).append(";\n");
+            removeTab();
+
+            lineWithTabs().append("endloop").append(whileCount).append(":\n");
+
+            return null;
         }
-        ollirBuilder.append(") goto body").append(whileCount).append(";\n");
-        lineWithTabs().append("goto endloop").append(whileCount).append(";\n");
-        removeTab();
+
+        // The loop is rotated: the condition is tested once before entering the loop and then at the end of each
+        // iteration, so the body is on the fall-through path and each iteration only takes one conditional jump
+        buildConditionalJump(expressionNode, false, "endloop" + whileCount, reports);
 
         lineWithTabs().append("body").append(whileCount).append(":\n");
 
         addTab();
         visit(bodyNode, reports);
-        lineWithTabs().append("goto loop").append(whileCount).append(";\n");
+        buildLineComment(node);
+        buildConditionalJump(expressionNode, true, "body" + whileCount, reports);
         removeTab();
 
         lineWithTabs().append("endloop").append(whileCount).append(":\n");
@@ -297,6 +339,101 @@ public class OllirVisitor extends AJmmVisitor<List<Report>, String> {
         return null;
     }
 
+    /**
+     * @return true if the then block of an if ran more often than its else block in the profile. Blocks without
+     * statements aren't compared, since the label of an empty block shares its count with the code after it.
+     */
+    private boolean isThenHotter(String signature, int ifCount, JmmNode thenNode, JmmNode elseNode) {
+        if (profile == null || isEmptyBlock(thenNode) || isEmptyBlock(elseNode)) return false;
+
+        Long thenCount = profile.getCount(signature, "then" + ifCount),
+                elseCount = profile.getCount(signature, "!then" + ifCount);
+
+        return thenCount != null && elseCount != null && thenCount > elseCount;
+    }
+
+    private static boolean isEmptyBlock(JmmNode node) {
+        if (!Set.of("Then", "Else", "Body", "Statement").contains(node.getKind())) return false;
+        return node.getChildren().stream().allMatch(OllirVisitor::isEmptyBlock);
+    }
+
+    /**
+     * Builds the jumps to a label taken when a condition is true (or false, if jumpIfTrue is false). The OLLIR parser
+     * only accepts binary operations as conditions, so single boolean operands are compared with 0, which the backend
+     * turns into a single ifeq or ifne. Negations are folded into the condition (!(a < b) becomes a >= b) instead of
+     * being computed, and && is short-circuited: the right operand is only evaluated if the left one is true.
+     */
+    private void buildConditionalJump(JmmNode node, boolean jumpIfTrue, String label, List<Report> reports) {
+        switch (node.getKind()) {
+            case "Not":
+                buildConditionalJump(node.getChildren().get(0), !jumpIfTrue, label, reports);
+                break;
+            case "And": {
+                JmmNode leftChild = node.getChildren().get(0), rightChild = node.getChildren().get(1);
+
+                if (jumpIfTrue) {
+                    // Skip the right operand (and the jump) if the left one is false
+                    String falseLabel = newAndLabel(node);
+
+                    buildConditionalJump(leftChild, false, falseLabel, reports);
+                    buildConditionalJump(rightChild, true, label, reports);
+                    lineWithTabs().append(falseLabel).append(":\n");
+                }
+                else {
+                    // !(a && b) <=> !a || !b
+                    buildConditionalJump(leftChild, false, label, reports);
+                    buildConditionalJump(rightChild, false, label, reports);
+                }
+                break;
+            }
+            case "LessThan": {
+                String leftOllir = visit(node.getChildren().get(0), reports),
+                        rightOllir = visit(node.getChildren().get(1), reports);
+
+                lineWithTabs().append("if (").append(leftOllir).append(jumpIfTrue ? " <.i32 " : " >=.i32 ")
+                        .append(rightOllir).append(") goto ").append(label).append(";\n");
+                break;
+            }
+            default: {
+                String expressionOllir = visit(node, reports);
+
+                lineWithTabs().append("if (").append(expressionOllir).append(jumpIfTrue ? " !=.bool " : " ==.bool ")
+                        .append("0.bool) goto ").append(label).append(";\n");
+                break;
+            }
+        }
+    }
+
+    private String newAndLabel(JmmNode node) {
+        String signature = Utils.generateMethodSignatureFromChildNode(node);
+
+        andOperationsMap.computeIfPresent(signature, (key, count) -> count + 1);
+        return "endand" + andOperationsMap.get(signature);
+    }
+
+    /**
+     * Materializes the value of a && b without evaluating b when a is false
+     */
+    private String buildShortCircuitAnd(JmmNode node, List<Report> reports) {
+        String signature = Utils.generateMethodSignatureFromChildNode(node);
+        String endLabel = newAndLabel(node);
+
+        incrementTempVariable(signature);
+        String tempVar = "t" + tempVariablesMap.get(signature) + ".bool";
+
+        lineWithTabs().append(tempVar).append(" :=.bool 0.bool;\n");
+        buildConditionalJump(node.getChildren().get(0), false, endLabel, reports);
+
+        addTab();
+        String rightOllir = visit(node.getChildren().get(1), reports);
+        lineWithTabs().append(tempVar).append(" :=.bool ").append(rightOllir).append(";\n");
+        removeTab();
+
+        lineWithTabs().append(endLabel).append(":\n");
+
+        return tempVar;
+    }
+
     public String visitArithmeticOp(JmmNode node, List<Report> reports) {
         String signature = Utils.generateMethodSignatureFromChildNode(node);
 
@@ -355,6 +492,11 @@ public class OllirVisitor extends AJmmVisitor<List<Report>, String> {
             rightChild = node.getChildren().get(1);
         }
 
+        // Operands that are evaluated without side effects or branches are cheaper to combine with iand
+        if (rightChild != null && !Set.of("Var", "Int", "True", "False").contains(rightChild.getKind())) {
+            return buildShortCircuitAnd(node, reports);
+        }
+
         StringBuilder booleanBuilder = new StringBuilder();
 
         String leftOllir = visit(leftChild, reports), rightOllir;
@@ -514,6 +656,8 @@ public class OllirVisitor extends AJmmVisitor<List<Report>, String> {
             return null;
         }
 
+        buildLineComment(node);
+
         JmmNode child = node.getChildren().get(0);
         if (child.getKind().equals("Expression")) {
             String expressionResult = visit(node.getChildren().get(0));
@@ -668,6 +812,7 @@ public class OllirVisitor extends AJmmVisitor<List<Report>, String> {
         String signature = Utils.generateMethodSignatureFromChildNode(node);
         Type returnType = symbolTable.getReturnType(signature);
 
+        buildLineComment(node);
         String expressionOllir = visit(node.getChildren().get(0), reports);
 
         lineWithTabs().append("ret.").append(convertType(returnType)).append(" ").append(expressionOllir).append(";\n");
@@ -27,8 +27,15 @@ import pt.up.fe.comp.jmm.report.Stage;
  */
 
 public class OptimizationStage implements JmmOptimization {
+    // With -r, methods with more instructions than this use linear scan register allocation, unless told otherwise
+    public static final int LINEAR_SCAN_THRESHOLD = 2000;
+
     public CommandLineArgs args = new CommandLineArgs(null, false, null);
 
+    /**
+     * Generates the OLLIR code and applies the passes on the OLLIR class parsed from it. The OLLIR code of the result
+     * is the one before those passes, its class holds their result.
+     */
     @Override
     public OllirResult toOllir(JmmSemanticsResult semanticsResult) {
         if (TestUtils.getNumReports(semanticsResult.getReports(), ReportType.ERROR) > 0) {
@@ -52,12 +59,37 @@ public class OptimizationStage implements JmmOptimization {
 
         StringBuilder ollirCode = new StringBuilder();
 
-        OllirVisitor ollirVisitor = new OllirVisitor(ollirCode, semanticsResult.getSymbolTable());
+        OllirVisitor ollirVisitor = new OllirVisitor(ollirCode, semanticsResult.getSymbolTable(), args.profile);
         ollirVisitor.visit(node, reports);
 
         OllirResult result = new OllirResult(semanticsResult, ollirCode.toString(), reports);
 
         ClassUnit ollirClass = result.getOllirClass();
+        SourceLines.attach(result); // Before the passes, which keep the lines of the instructions they replace
+
+        // An instrumented class is profiled without inlining, so that its call sites are the ones of the OLLIR code
+        if (args.optimize && !args.instrument) {
+            new Inliner(ollirClass, args.profile).inline();
+            new TailCallEliminator(ollirClass).eliminate();
+            new AlgebraicSimplifier(ollirClass).simplify();
+            new FieldPromoter(ollirClass).promote();
+            new InductionVariableReducer(ollirClass).reduce();
+            new LoopUnroller(ollirClass, args.profile, args.unrollFactor).unroll();
+            new RangeFolder(ollirClass).fold();
+        }
+
+        // After tail call elimination, which leaves some recursive methods without calls
+        if (args.memoize) {
+            JmmNode classNode = node.getChildren().stream().filter(child -> child.getKind().equals("Class"))
+                    .findFirst().orElseThrow();
+            new Memoizer(ollirClass, new MethodEvaluator((JMMSymbolTable) semanticsResult.getSymbolTable(), classNode))
+                    .memoize();
+        }
+
+        // After inlining, which may leave methods without calls
+        if (args.shrink) {
+            new ClassShrinker(ollirClass).shrink();
+        }
 
         if (args.maxRegisters != null) {
             ollirClass.buildCFGs();
@@ -174,8 +206,15 @@ public class OptimizationStage implements JmmOptimization {
                 addElementToUse(singleOpInstruction.getSingleOperand(), idx, method, use);
                 break;
             }
+            case GETFIELD: {
+                // The object is this or, after inlining a call on another object, a local variable
+                GetFieldInstruction getFieldInstruction = (GetFieldInstruction) instruction;
+                addElementToUse(getFieldInstruction.getFirstOperand(), idx, method, use);
+                break;
+            }
             case PUTFIELD: {
                 PutFieldInstruction putFieldInstruction = (PutFieldInstruction) instruction;
+                addElementToUse(putFieldInstruction.getFirstOperand(), idx, method, use);
                 addElementToUse(putFieldInstruction.getThirdOperand(), idx, method, use);
                 break;
             }
@@ -187,169 +226,485 @@ public class OptimizationStage implements JmmOptimization {
         }
     }
 
+    /**
+     * Result of the liveness analysis of a method. Variables are identified by dense ids (their index in variables)
+     * and each set is a BitSet of ids, with one set per instruction.
+     */
     public static class LivenessResult {
-        public List<Set<String>> liveIn, liveOut;
+        public final List<String> variables;
+        public final BitSet[] liveIn, liveOut;
+        public final BitSet[] use, def;
 
-        public LivenessResult(List<Set<String>> liveIn, List<Set<String>> liveOut) {
+        public LivenessResult(List<String> variables, BitSet[] liveIn, BitSet[] liveOut, BitSet[] use, BitSet[] def) {
+            this.variables = variables;
             this.liveIn = liveIn;
             this.liveOut = liveOut;
+            this.use = use;
+            this.def = def;
+        }
+
+        public Set<String> getNames(BitSet ids) {
+            Set<String> names = new HashSet<>();
+            for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+                names.add(variables.get(id));
+            }
+            return names;
         }
     }
 
     public LivenessResult livenessAnalysis(Method method) {
         List<Instruction> instructions = method.getInstructions();
+        int numInstructions = instructions.size();
 
         List<Set<String>> use = new ArrayList<>(), def = new ArrayList<>();
         List<Set<Integer>> succ = new ArrayList<>();
 
-        for (int i = 0; i < instructions.size(); ++i) {
+        for (int i = 0; i < numInstructions; ++i) {
             use.add(new HashSet<>());
             def.add(new HashSet<>());
             succ.add(new HashSet<>());
         }
 
         // Build use, def and succ maps
-        for (int i = 0; i < instructions.size(); ++i) {
+        for (int i = 0; i < numInstructions; ++i) {
             Instruction instruction = method.getInstr(i);
+            InstructionType type = instruction.getInstType();
 
-            if (instruction.getInstType() != InstructionType.GOTO && i != instructions.size() - 1) {
+            if (type != InstructionType.GOTO && type != InstructionType.RETURN && i != numInstructions - 1) {
                 succ.get(i).add(i + 1);
             }
 
             handleInstruction(instruction, i, method, use, def, succ);
         }
 
-        // Perform liveness analysis
-        List<Set<String>> liveIn = new ArrayList<>(), liveOut = new ArrayList<>();
-        for (int i = 0; i < instructions.size(); ++i) {
-            liveIn.add(new HashSet<>());
-            liveOut.add(new HashSet<>());
+        // Give each variable a dense id
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> variables = new ArrayList<>();
+
+        BitSet[] useIds = new BitSet[numInstructions], defIds = new BitSet[numInstructions];
+        int[][] successors = new int[numInstructions][];
+
+        for (int i = 0; i < numInstructions; ++i) {
+            useIds[i] = toIds(use.get(i), ids, variables);
+            defIds[i] = toIds(def.get(i), ids, variables);
+            successors[i] = succ.get(i).stream().mapToInt(Integer::intValue).toArray();
         }
 
-        while (true) {
-            List<Set<String>> newLiveIn = new ArrayList<>(), newLiveOut = new ArrayList<>();
+        // Perform liveness analysis, iterating backwards until a fixed point is reached
+        BitSet[] liveIn = new BitSet[numInstructions], liveOut = new BitSet[numInstructions];
+        for (int i = 0; i < numInstructions; ++i) {
+            liveIn[i] = new BitSet();
+            liveOut[i] = new BitSet();
+        }
 
-            // Make copy of liveIn and liveOut
-            for (int i = 0; i < instructions.size(); ++i) {
-                newLiveIn.add(new HashSet<>(liveIn.get(i)));
-                newLiveOut.add(new HashSet<>(liveOut.get(i)));
-            }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
 
-            for (int i = use.size() - 1; i >= 0; --i) {
-                Set<String> temp = new HashSet<>();
-                for (Integer s : succ.get(i)) {
-                    temp.addAll(newLiveIn.get(s));
+            for (int i = numInstructions - 1; i >= 0; --i) {
+                BitSet out = liveOut[i];
+                for (int s : successors[i]) {
+                    out.or(liveIn[s]);
                 }
-                newLiveOut.set(i, temp);
 
-                temp = new HashSet<>(newLiveOut.get(i));
-                temp.removeAll(def.get(i));
+                BitSet in = (BitSet) out.clone();
+                in.andNot(defIds[i]);
+                in.or(useIds[i]);
 
-                newLiveIn.set(i, use.get(i));
-                newLiveIn.get(i).addAll(temp);
+                if (!in.equals(liveIn[i])) {
+                    liveIn[i] = in;
+                    changed = true;
+                }
             }
+        }
 
-            if (newLiveIn.equals(liveIn) && newLiveOut.equals(liveOut)) {
-                break;
-            }
+        return new LivenessResult(variables, liveIn, liveOut, useIds, defIds);
+    }
 
-            liveIn = newLiveIn;
-            liveOut = newLiveOut;
+    private BitSet toIds(Set<String> names, Map<String, Integer> ids, List<String> variables) {
+        BitSet result = new BitSet();
+
+        for (String name : names) {
+            Integer id = ids.get(name);
+            if (id == null) {
+                id = variables.size();
+                ids.put(name, id);
+                variables.add(name);
+            }
+            result.set(id);
         }
 
-        return new LivenessResult(liveIn, liveOut);
+        return result;
     }
 
+    /**
+     * Builds the interference graph from the live-out set of each instruction: every variable defined by an instruction
+     * interferes with all the other variables that are live after it. Edges between the variable ids given by the
+     * liveness analysis are deduplicated with a bit matrix and the neighbours of each variable are collected into int
+     * arrays.
+     */
     public Graph<String> constructInterferenceGraph(LivenessResult result) {
-        Map<String, Set<Integer>> liveRange = new HashMap<>();
+        int numInstructions = result.liveOut.length;
+        int numVariables = result.variables.size();
 
-        for (int i = 0; i < result.liveOut.size(); ++i) {
-            for (String varName : result.liveOut.get(i)) {
-                liveRange.putIfAbsent(varName, new HashSet<>());
-                liveRange.get(varName).add(i);
-            }
-        }
+        BitMatrix interferes = new BitMatrix(numVariables);
+        int[] degrees = new int[numVariables];
+
+        int[] edges = new int[16];
+        int numEdges = 0;
+
+        // Variables that are live when the method starts are all "defined" at its entry
+        BitSet liveAtEntry = numInstructions > 0 ? result.liveIn[0] : new BitSet();
 
-        Graph<String> graph = new Graph<>();
-        liveRange.keySet().forEach(graph::addVertex);
+        for (int i = -1; i < numInstructions; ++i) {
+            BitSet defined = i < 0 ? liveAtEntry : result.def[i],
+                    live = i < 0 ? liveAtEntry : result.liveOut[i];
 
-        for (String firstVarName : liveRange.keySet()) {
-            for (String secondVarName : liveRange.keySet()) {
-                if (!firstVarName.equals(secondVarName)) {
-                    Set<Integer> range = new HashSet<>(liveRange.get(firstVarName));
-                    range.retainAll(liveRange.get(secondVarName));
+            for (int first = defined.nextSetBit(0); first >= 0; first = defined.nextSetBit(first + 1)) {
+                for (int second = live.nextSetBit(0); second >= 0; second = live.nextSetBit(second + 1)) {
+                    if (first != second && interferes.set(first, second)) {
+                        if (numEdges + 2 > edges.length) {
+                            edges = Arrays.copyOf(edges, edges.length * 2);
+                        }
 
-                    if (!range.isEmpty()) {
-                        // Interference between variables
-                        graph.addEdge(firstVarName, secondVarName, false);
+                        edges[numEdges++] = first;
+                        edges[numEdges++] = second;
+                        degrees[first]++;
+                        degrees[second]++;
                     }
                 }
             }
         }
 
-        return graph;
+        int[][] adjacency = new int[numVariables][];
+        for (int v = 0; v < numVariables; ++v) {
+            adjacency[v] = new int[degrees[v]];
+            degrees[v] = 0;
+        }
+
+        for (int e = 0; e < numEdges; e += 2) {
+            int first = edges[e], second = edges[e + 1];
+            adjacency[first][degrees[first]++] = second;
+            adjacency[second][degrees[second]++] = first;
+        }
+
+        return new Graph<>(result.variables, adjacency);
     }
 
-    public Map<String, Integer> registerAllocation(Graph<String> interferenceGraph, int maxRegisters) throws Exception {
-        Graph<String> copy = new Graph<>(interferenceGraph);
-        Stack<String> stack = new Stack<>();
+    /**
+     * Computes the loop nesting depth of each instruction. A jump to a label placed at or before the jump closes a loop
+     * that contains all the instructions in between. Only the farthest of the jumps back to each label is counted, so
+     * a loop with several of them (like the ones left by tail call elimination) is one level deep.
+     */
+    public int[] computeLoopDepths(Method method) {
+        List<Instruction> instructions = method.getInstructions();
+        int[] loopDepths = new int[instructions.size()];
+        Map<Integer, Integer> loopEnds = new HashMap<>(); // Index of the first instruction of a loop -> its last jump
 
-        while (!copy.getVertices().isEmpty()) {
-            Set<String> vertices = copy.getVertices();
+        for (int i = 0; i < instructions.size(); ++i) {
+            Instruction instruction = instructions.get(i);
+            String label;
 
-            boolean found = false;
+            if (instruction.getInstType() == InstructionType.GOTO) {
+                label = ((GotoInstruction) instruction).getLabel();
+            }
+            else if (instruction.getInstType() == InstructionType.BRANCH) {
+                label = ((CondBranchInstruction) instruction).getLabel();
+            }
+            else {
+                continue;
+            }
 
-            for (String vertex : vertices) {
-                if (copy.getEdges(vertex).size() < maxRegisters) {
-                    found = true;
-                    stack.add(vertex);
-                    copy.removeVertex(vertex);
-                    break;
-                }
+            int target = instructions.indexOf(method.getLabels().get(label));
+            if (target >= 0 && target <= i) loopEnds.merge(target, i, Math::max);
+        }
+
+        for (Map.Entry<Integer, Integer> loop : loopEnds.entrySet()) {
+            for (int j = loop.getKey(); j <= loop.getValue(); ++j) {
+                loopDepths[j]++;
             }
+        }
+
+        return loopDepths;
+    }
 
-            if (!found) {
-                throw new Exception("Couldn't find a variable with degree < k!");
+    /**
+     * Estimates the cost of spilling each variable: every use or definition costs 10^(loop depth), so variables that
+     * are accessed inside (nested) loops are the last ones to be spilled. If the block of the access has a count in
+     * the profile, it costs the number of times it was executed instead (plus one, so accesses that never ran still
+     * count).
+     */
+    public Map<String, Double> computeSpillCosts(Method method, LivenessResult result) {
+        long[] counts = args.profile != null ? args.profile.getInstructionCounts(method) : null;
+        int[] loopDepths = computeLoopDepths(method);
+        Map<String, Double> spillCosts = new HashMap<>();
+
+        for (int i = 0; i < result.use.length; ++i) {
+            double weight = counts != null && counts[i] >= 0 ? counts[i] + 1 : Math.pow(10, loopDepths[i]);
+
+            BitSet accessed = (BitSet) result.use[i].clone();
+            accessed.or(result.def[i]);
+
+            for (int id = accessed.nextSetBit(0); id >= 0; id = accessed.nextSetBit(id + 1)) {
+                spillCosts.merge(result.variables.get(id), weight, Double::sum);
             }
         }
 
-        Map<String, Integer> graphColoring = new HashMap<>();
+        return spillCosts;
+    }
+
+    /**
+     * Chaitin-Briggs graph coloring with optimistic coloring. When every remaining variable has degree >= k, the one
+     * with the lowest spill cost / degree ratio is pushed onto the stack anyway, since its neighbours may end up
+     * sharing colors. Variables that still can't be colored are spilled: they are given colors >= k, which correspond
+     * to extra local variable slots above the requested limit.
+     */
+    public Map<String, Integer> registerAllocation(Graph<String> interferenceGraph, int maxRegisters,
+                                                   Map<String, Double> spillCosts) {
+        Graph<String> graph = new Graph<>(interferenceGraph);
+        int size = graph.getIndexCount();
+
+        // Bucket queues: the vertices with each degree are kept in a doubly linked list
+        int maxDegree = 0;
+        for (int v = 0; v < size; ++v) {
+            if (!graph.isRemoved(v)) maxDegree = Math.max(maxDegree, graph.getDegree(v));
+        }
 
-        for (String variable : interferenceGraph.getVertices()) {
-            graphColoring.put(variable, null);
+        int[] bucketHeads = new int[maxDegree + 1], next = new int[size], previous = new int[size],
+                bucketOf = new int[size];
+        Arrays.fill(bucketHeads, -1);
+
+        for (int v = 0; v < size; ++v) {
+            if (!graph.isRemoved(v)) {
+                bucketOf[v] = graph.getDegree(v);
+                linkToBucket(v, bucketHeads, next, previous, bucketOf);
+            }
         }
 
-        while (!stack.empty()) {
-            String variable = stack.pop();
+        int[] stack = new int[graph.getNumVertices()];
+        int stackSize = 0, lowestDegree = 0;
+
+        while (stackSize < stack.length) {
+            while (bucketHeads[lowestDegree] == -1) {
+                ++lowestDegree;
+            }
 
-            boolean colored = false;
+            int selected = bucketHeads[lowestDegree];
 
-            for (int i = 0; i < maxRegisters; ++i) {
-                boolean canBeColored = true;
-                for (String adjacent : interferenceGraph.getEdges(variable)) {
-                    Integer adjacentColor = graphColoring.get(adjacent);
-                    if (adjacentColor != null && adjacentColor == i) {
-                        canBeColored = false;
-                        break;
+            if (lowestDegree >= maxRegisters) {
+                // Potential spill, choose the variable that is cheapest to spill
+                double minCost = Double.POSITIVE_INFINITY;
+
+                for (int degree = lowestDegree; degree <= maxDegree; ++degree) {
+                    for (int v = bucketHeads[degree]; v != -1; v = next[v]) {
+                        double cost = spillCosts.getOrDefault(graph.getVertex(v), 0.0) / degree;
+                        if (cost < minCost) {
+                            selected = v;
+                            minCost = cost;
+                        }
                     }
                 }
+            }
+
+            unlinkFromBucket(selected, bucketHeads, next, previous, bucketOf);
+            graph.removeVertexAt(selected);
+            stack[stackSize++] = selected;
+
+            // The degree of each neighbour decreased by one
+            for (int i = 0; i < graph.getNumNeighbours(selected); ++i) {
+                int neighbour = graph.getNeighbour(selected, i);
 
-                if (canBeColored) {
-                    colored = true;
-                    graphColoring.put(variable, i);
-                    break;
+                if (!graph.isRemoved(neighbour)) {
+                    unlinkFromBucket(neighbour, bucketHeads, next, previous, bucketOf);
+                    bucketOf[neighbour] = graph.getDegree(neighbour);
+                    linkToBucket(neighbour, bucketHeads, next, previous, bucketOf);
+                    lowestDegree = Math.min(lowestDegree, bucketOf[neighbour]);
                 }
             }
+        }
+
+        int[] colors = new int[size];
+        Arrays.fill(colors, -1);
+
+        List<Integer> spilled = new ArrayList<>();
 
-            if (!colored) {
-                // Throw exception!
-                throw new Exception("No more colors!");
+        while (stackSize > 0) {
+            int variable = stack[--stackSize];
+            int color = lowestAvailableColor(interferenceGraph, colors, variable, 0);
+
+            if (color < maxRegisters) {
+                colors[variable] = color;
+            }
+            else {
+                spilled.add(variable);
+            }
+        }
+
+        // Spilled variables are placed in the registers after the first k
+        for (int variable : spilled) {
+            colors[variable] = lowestAvailableColor(interferenceGraph, colors, variable, maxRegisters);
+        }
+
+        Map<String, Integer> graphColoring = new HashMap<>();
+
+        for (int v = 0; v < size; ++v) {
+            if (!interferenceGraph.isRemoved(v)) {
+                graphColoring.put(interferenceGraph.getVertex(v), colors[v]);
             }
         }
 
         return graphColoring;
     }
 
+    private void linkToBucket(int vertex, int[] bucketHeads, int[] next, int[] previous, int[] bucketOf) {
+        int head = bucketHeads[bucketOf[vertex]];
+
+        next[vertex] = head;
+        previous[vertex] = -1;
+        if (head != -1) previous[head] = vertex;
+        bucketHeads[bucketOf[vertex]] = vertex;
+    }
+
+    private void unlinkFromBucket(int vertex, int[] bucketHeads, int[] next, int[] previous, int[] bucketOf) {
+        if (previous[vertex] != -1) next[previous[vertex]] = next[vertex];
+        else bucketHeads[bucketOf[vertex]] = next[vertex];
+
+        if (next[vertex] != -1) previous[next[vertex]] = previous[vertex];
+    }
+
+    private int lowestAvailableColor(Graph<String> interferenceGraph, int[] colors, int variable, int firstColor) {
+        int numNeighbours = interferenceGraph.getNumNeighbours(variable);
+
+        // The lowest available color is at most firstColor + (number of neighbours)
+        boolean[] used = new boolean[numNeighbours + 1];
+        for (int i = 0; i < numNeighbours; ++i) {
+            int adjacentColor = colors[interferenceGraph.getNeighbour(variable, i)] - firstColor;
+            if (adjacentColor >= 0 && adjacentColor <= numNeighbours) {
+                used[adjacentColor] = true;
+            }
+        }
+
+        int color = 0;
+        while (used[color]) {
+            ++color;
+        }
+
+        return firstColor + color;
+    }
+
+    public int getNumRegisters(Map<String, Integer> graphColoring) {
+        return graphColoring.values().stream().mapToInt(color -> color + 1).max().orElse(0);
+    }
+
+    /**
+     * Finds the smallest number of registers that can be used for a method without spilling. The search starts at the
+     * maximum number of simultaneously live variables, which is a lower bound for the number of colors.
+     */
+    public Map<String, Integer> minimalRegisterAllocation(Graph<String> interferenceGraph, LivenessResult result,
+                                                          Map<String, Double> spillCosts) {
+        int maxRegisters = 1;
+        for (BitSet live : result.liveOut) {
+            maxRegisters = Math.max(maxRegisters, live.cardinality());
+        }
+
+        while (true) {
+            Map<String, Integer> graphColoring = registerAllocation(interferenceGraph, maxRegisters, spillCosts);
+            if (getNumRegisters(graphColoring) <= maxRegisters) {
+                return graphColoring;
+            }
+            ++maxRegisters;
+        }
+    }
+
+    /**
+     * Linear scan register allocation (Poletto and Sarkar). Each variable is given a single live interval, from the first
+     * to the last instruction where it is defined or live, and intervals are visited by increasing start. When every
+     * register is in use, the interval that ends last is spilled. Spilled intervals are then allocated in a second scan,
+     * with no register limit, to the registers after the first k. A limit of 0 means there is no limit.
+     */
+    public Map<String, Integer> linearScanAllocation(LivenessResult result, int maxRegisters) {
+        int numVariables = result.variables.size();
+        int[] start = new int[numVariables], end = new int[numVariables];
+        Arrays.fill(start, Integer.MAX_VALUE);
+        Arrays.fill(end, -1);
+
+        for (int i = 0; i < result.liveOut.length; ++i) {
+            BitSet live = (BitSet) result.liveIn[i].clone();
+            live.or(result.liveOut[i]);
+            live.or(result.def[i]);
+
+            for (int id = live.nextSetBit(0); id >= 0; id = live.nextSetBit(id + 1)) {
+                start[id] = Math.min(start[id], i);
+                end[id] = Math.max(end[id], i);
+            }
+        }
+
+        List<Integer> intervals = new ArrayList<>();
+        for (int id = 0; id < numVariables; ++id) {
+            if (end[id] != -1) intervals.add(id);
+        }
+        intervals.sort(Comparator.comparingInt(id -> start[id]));
+
+        int[] registers = new int[numVariables];
+        List<Integer> spilled = new ArrayList<>();
+
+        int limit = maxRegisters == 0 ? Integer.MAX_VALUE : maxRegisters;
+        linearScan(intervals, start, end, 0, limit, registers, spilled);
+        linearScan(spilled, start, end, limit, Integer.MAX_VALUE, registers, new ArrayList<>());
+
+        Map<String, Integer> registerAllocation = new HashMap<>();
+        for (int id : intervals) {
+            registerAllocation.put(result.variables.get(id), registers[id]);
+        }
+
+        return registerAllocation;
+    }
+
+    private void linearScan(List<Integer> intervals, int[] start, int[] end, int firstRegister, int limit,
+                            int[] registers, List<Integer> spilled) {
+        PriorityQueue<Integer> active = new PriorityQueue<>(Comparator.comparingInt((Integer id) -> end[id])
+                .thenComparingInt(id -> id));
+        TreeSet<Integer> activeByEnd = new TreeSet<>(active.comparator());
+        PriorityQueue<Integer> freeRegisters = new PriorityQueue<>();
+        int nextRegister = firstRegister;
+
+        for (int id : intervals) {
+            // Expire the intervals that ended before this one starts
+            while (!active.isEmpty() && end[active.peek()] < start[id]) {
+                int expired = active.poll();
+                activeByEnd.remove(expired);
+                freeRegisters.add(registers[expired]);
+            }
+
+            if (!freeRegisters.isEmpty()) {
+                registers[id] = freeRegisters.poll();
+            }
+            else if (nextRegister - firstRegister < limit) {
+                registers[id] = nextRegister++;
+            }
+            else {
+                int last = activeByEnd.last();
+
+                if (end[last] > end[id]) {
+                    // Take the register of the interval that ends last
+                    registers[id] = registers[last];
+                    active.remove(last);
+                    activeByEnd.remove(last);
+                    spilled.add(last);
+                }
+                else {
+                    spilled.add(id);
+                    continue;
+                }
+            }
+
+            active.add(id);
+            activeByEnd.add(id);
+        }
+
+        spilled.sort(Comparator.comparingInt(id -> start[id]));
+    }
+
     public void assignRegisters(Method method, Map<String, Integer> graphColoring) {
         int startRegister = 0;
 
@@ -367,31 +722,45 @@ public class OptimizationStage implements JmmOptimization {
 
     @Override
     public OllirResult optimize(OllirResult ollirResult) {
-        // THIS IS JUST FOR CHECKPOINT 3
         for (Method method : ollirResult.getOllirClass().getMethods()) {
             // Perform liveness analysis to obtain the variables' live ranges
             LivenessResult result = livenessAnalysis(method);
 
-            // Construct the interference graph
-            Graph<String> interferenceGraph = constructInterferenceGraph(result);
+            CommandLineArgs.Allocator allocator = args.allocator;
+            if (allocator == CommandLineArgs.Allocator.AUTO) {
+                allocator = method.getInstructions().size() > LINEAR_SCAN_THRESHOLD
+                        ? CommandLineArgs.Allocator.LINEAR_SCAN : CommandLineArgs.Allocator.GRAPH_COLORING;
+            }
+
+            Map<String, Integer> allocation;
 
-            // Apply graph coloring for register allocation
-            Map<String, Integer> graphColoring;
-            try {
-                graphColoring = registerAllocation(interferenceGraph, args.maxRegisters);
+            if (allocator == CommandLineArgs.Allocator.LINEAR_SCAN) {
+                allocation = linearScanAllocation(result, args.maxRegisters);
             }
-            catch (Exception ex) {
-                System.out.println(ex.getMessage());
+            else if (args.maxRegisters == 0) {
+                // Construct the interference graph and apply graph coloring for register allocation
+                Graph<String> interferenceGraph = constructInterferenceGraph(result);
+                allocation = minimalRegisterAllocation(interferenceGraph, result, computeSpillCosts(method, result));
+            }
+            else {
+                Graph<String> interferenceGraph = constructInterferenceGraph(result);
+                allocation = registerAllocation(interferenceGraph, args.maxRegisters,
+                        computeSpillCosts(method, result));
+            }
+
+            int numRegisters = getNumRegisters(allocation);
+            if (args.maxRegisters != 0 && numRegisters > args.maxRegisters) {
                 ollirResult.getReports().add(new Report(
-                        ReportType.ERROR,
+                        ReportType.WARNING,
                         Stage.OPTIMIZATION,
                         -1, -1,
-                        "Unable to compile using at most " + args.maxRegisters + " register(s)"
+                        "Method " + method.getMethodName() + " needs " + numRegisters + " register(s), "
+                                + (numRegisters - args.maxRegisters) + " more than the requested "
+                                + args.maxRegisters
                 ));
-                return ollirResult;
             }
 
-            assignRegisters(method, graphColoring);
+            assignRegisters(method, allocation);
         }
 
         return ollirResult;
@@ -0,0 +1,210 @@
+import java.util.*;
+
+/**
+ * Rule-based peephole optimizer over the instructions of a Jasmin method. The rules are applied until none of them
+ * changes the code, since simplifying a sequence often exposes another one (removing a goto may make a label unused,
+ * which in turn makes a store and a load adjacent).
+ */
+public class PeepholeOptimizer {
+    private final List<JasminInstruction> code;
+
+    public PeepholeOptimizer(List<JasminInstruction> code) {
+        this.code = code;
+    }
+
+    public void optimize() {
+        boolean changed = true;
+
+        while (changed) {
+            changed = removeUnreachableCode();
+            changed |= removeUnusedLabels();
+
+            for (int i = 0; i < code.size(); ++i) {
+                changed |= simplifyJumps(i) || simplifyStoreLoad(i) || simplifyNegatedBranch(i) || simplifyPop(i);
+            }
+        }
+    }
+
+    /**
+     * Computes the maximum depth of the operand stack, following the jumps so that code after a goto or a return starts
+     * with the depth of the jumps to its label
+     */
+    public static int getMaxStackSize(List<JasminInstruction> code) {
+        Map<String, Integer> labelDepths = new HashMap<>();
+        int depth = 0, maxDepth = 0;
+        boolean reachable = true;
+
+        for (JasminInstruction instruction : code) {
+            if (instruction.isLabel()) {
+                if (reachable) {
+                    labelDepths.putIfAbsent(instruction.getOperand(), depth);
+                }
+                else {
+                    depth = labelDepths.getOrDefault(instruction.getOperand(), 0);
+                }
+
+                reachable = true;
+                continue;
+            }
+
+            depth += instruction.getStackEffect();
+            maxDepth = Math.max(maxDepth, depth);
+
+            if (instruction.isJump()) {
+                labelDepths.putIfAbsent(instruction.getOperand(), depth);
+            }
+
+            if (instruction.isUnconditionalJump()) {
+                reachable = false;
+            }
+        }
+
+        return maxDepth;
+    }
+
+    private JasminInstruction get(int i) {
+        return i < code.size() ? code.get(i) : null;
+    }
+
+    // Replaces an instruction, keeping its line
+    private void replace(int i, JasminInstruction instruction) {
+        instruction.setLine(code.get(i).getLine());
+        code.set(i, instruction);
+    }
+
+    /**
+     * @return true if one of the labels starting at the given position has the given name
+     */
+    private boolean isLabelAt(int i, String label) {
+        for (; i < code.size() && code.get(i).isLabel(); ++i) {
+            if (code.get(i).getOperand().equals(label)) return true;
+        }
+        return false;
+    }
+
+    // Instructions that can't be reached from the start of the method are never executed (and have no stack map frame)
+    private boolean removeUnreachableCode() {
+        Map<String, Integer> labelIndices = new HashMap<>();
+        for (int i = 0; i < code.size(); ++i) {
+            if (code.get(i).isLabel()) labelIndices.put(code.get(i).getOperand(), i);
+        }
+
+        boolean[] reachable = new boolean[code.size()];
+        Deque<Integer> worklist = new ArrayDeque<>(List.of(0));
+
+        while (!worklist.isEmpty()) {
+            int i = worklist.pop();
+            if (i >= code.size() || reachable[i]) continue;
+
+            reachable[i] = true;
+            JasminInstruction instruction = code.get(i);
+
+            if (instruction.isJump()) worklist.push(labelIndices.get(instruction.getOperand()));
+            if (!instruction.isUnconditionalJump()) worklist.push(i + 1);
+        }
+
+        boolean changed = false;
+
+        for (int i = code.size() - 1; i >= 0; --i) {
+            if (!reachable[i] && !code.get(i).isLabel()) {
+                code.remove(i);
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+
+    private boolean removeUnusedLabels() {
+        Set<String> usedLabels = new HashSet<>();
+        for (JasminInstruction instruction : code) {
+            if (instruction.isJump()) usedLabels.add(instruction.getOperand());
+        }
+
+        return code.removeIf(instruction -> instruction.isLabel() && !usedLabels.contains(instruction.getOperand()));
+    }
+
+    private boolean simplifyJumps(int i) {
+        JasminInstruction instruction = code.get(i);
+        if (!instruction.isJump()) return false;
+
+        // goto L; L: -> L:
+        if (instruction.is("goto") && isLabelAt(i + 1, instruction.getOperand())) {
+            code.remove(i);
+            return true;
+        }
+
+        // if<cond> L1; goto L2; L1: -> if<!cond> L2; L1:
+        JasminInstruction next = get(i + 1);
+        if (instruction.isConditionalBranch() && next != null && next.is("goto")
+                && isLabelAt(i + 2, instruction.getOperand())) {
+            replace(i, new JasminInstruction(JasminInstruction.invertBranch(instruction.getOpcode()), next.getOperand()));
+            code.remove(i + 1);
+            return true;
+        }
+
+        return false;
+    }
+
+    private boolean simplifyStoreLoad(int i) {
+        JasminInstruction store = code.get(i), load = get(i + 1);
+        if (load == null) return false;
+
+        // iload n; istore n -> (nothing)
+        if (store.isLoad() && load.isStore() && store.getIntOperand() == load.getIntOperand()
+                && store.getOpcode().charAt(0) == load.getOpcode().charAt(0)) {
+            code.subList(i, i + 2).clear();
+            return true;
+        }
+
+        if (!store.isStore() || !load.isLoad() || store.getIntOperand() != load.getIntOperand()
+                || store.getOpcode().charAt(0) != load.getOpcode().charAt(0)) {
+            return false;
+        }
+
+        int register = store.getIntOperand();
+        boolean readElsewhere = false;
+
+        for (int j = 0; j < code.size() && !readElsewhere; ++j) {
+            readElsewhere = j != i + 1 && code.get(j).reads(register);
+        }
+
+        if (readElsewhere) {
+            // istore n; iload n -> dup; istore n
+            replace(i, new JasminInstruction("dup"));
+            code.set(i + 1, store);
+        }
+        else {
+            // The stored value is only used by the load, keep it on the stack
+            code.subList(i, i + 2).clear();
+        }
+
+        return true;
+    }
+
+    // iconst_1; ixor; ifne L -> ifeq L (and ifeq -> ifne)
+    private boolean simplifyNegatedBranch(int i) {
+        JasminInstruction constant = code.get(i), xor = get(i + 1), branch = get(i + 2);
+
+        if (branch == null || !constant.is("iconst") || constant.getIntOperand() != 1 || !xor.is("ixor")
+                || !(branch.is("ifne") || branch.is("ifeq"))) {
+            return false;
+        }
+
+        replace(i, new JasminInstruction(JasminInstruction.invertBranch(branch.getOpcode()), branch.getOperand()));
+        code.subList(i + 1, i + 3).clear();
+        return true;
+    }
+
+    // Values pushed without side effects and popped right away: iload n; pop -> (nothing)
+    private boolean simplifyPop(int i) {
+        JasminInstruction push = code.get(i), pop = get(i + 1);
+
+        if (pop == null || !pop.is("pop") || !(push.isLoad() || push.is("iconst") || push.is("dup"))) {
+            return false;
+        }
+
+        code.subList(i, i + 2).clear();
+        return true;
+    }
+}
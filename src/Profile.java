@@ -0,0 +1,129 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+
+import org.specs.comp.ollir.*;
+
+/**
+ * Execution counts of the basic blocks and call sites of each method, written by a class compiled with -instrument
+ * when its main method returns and read with -profile=<file> by a later compilation of the same code. The points are
+ * named after the labels of the OLLIR code, which are the same when the options are. With -o, the instrumented class
+ * is compiled without the OLLIR optimizations, whose new labels (and copied blocks) have no counts. Each line of the
+ * file is "<count> <point> <method signature>", where the point is one of:
+ * <ul>
+ *     <li>"entry": the start of the method</li>
+ *     <li>a label: the block starting at that label (labels of the same instruction share the count)</li>
+ *     <li>"!label": the block after the last conditional branch to that label, when it isn't taken</li>
+ *     <li>"call:name#n": the n-th call of the method to the method of the class with that name</li>
+ * </ul>
+ * The block after any other conditional branch isn't counted, since only its index in the method would identify it.
+ */
+public class Profile {
+    public static final String ENTRY = "entry";
+
+    private final Map<String, Map<String, Long>> counts = new HashMap<>(); // Method signature -> point -> count
+
+    public static Profile load(String path) throws IOException {
+        Profile profile = new Profile();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) continue;
+
+                String[] parts = line.split(" ", 3);
+                if (parts.length != 3) throw new IOException("Invalid profile line: " + line);
+
+                try {
+                    // The counters are ints, which wrap around after 2^31 executions
+                    profile.add(parts[2], parts[1], Integer.parseInt(parts[0]) & 0xffffffffL);
+                }
+                catch (NumberFormatException ex) {
+                    throw new IOException("Invalid profile line: " + line);
+                }
+            }
+        }
+
+        return profile;
+    }
+
+    public void add(String signature, String point, long count) {
+        counts.computeIfAbsent(signature, key -> new HashMap<>()).merge(point, count, Long::sum);
+    }
+
+    /**
+     * @return the number of times the point was reached, or null if it isn't in the profile
+     */
+    public Long getCount(String signature, String point) {
+        Map<String, Long> methodCounts = counts.get(signature);
+        return methodCounts != null ? methodCounts.get(point) : null;
+    }
+
+    public static String callSite(String methodName, int n) {
+        return "call:" + methodName + "#" + n;
+    }
+
+    /**
+     * @return the points of the block that starts at the given instruction (after the entry of the method, if it is
+     * the first one), or an empty list if it has none
+     */
+    public static List<String> getBlockPoints(Method method, int index) {
+        List<Instruction> instructions = method.getInstructions();
+        List<String> points = new ArrayList<>(method.getLabels(instructions.get(index)));
+
+        if (index > 0 && instructions.get(index - 1).getInstType() == InstructionType.BRANCH) {
+            String label = ((CondBranchInstruction) instructions.get(index - 1)).getLabel();
+            boolean isLastBranch = true;
+
+            for (int i = index; i < instructions.size(); ++i) {
+                Instruction instruction = instructions.get(i);
+                if (instruction.getInstType() == InstructionType.BRANCH
+                        && ((CondBranchInstruction) instruction).getLabel().equals(label)) {
+                    isLastBranch = false;
+                    break;
+                }
+            }
+
+            if (isLastBranch) points.add("!" + label);
+        }
+
+        return points;
+    }
+
+    /**
+     * @return the number of times each OLLIR instruction of the method was executed, according to the count of the
+     * block it belongs to (-1 if the block has no count in the profile), or null if the method isn't in the profile
+     */
+    public long[] getInstructionCounts(Method method) {
+        String signature = BackendStage.getMethodSignature(method);
+        if (!counts.containsKey(signature)) return null;
+
+        List<Instruction> instructions = method.getInstructions();
+        long[] instructionCounts = new long[instructions.size()];
+        long count = Optional.ofNullable(getCount(signature, ENTRY)).orElse(-1L);
+
+        for (int i = 0; i < instructionCounts.length; ++i) {
+            // A block starts at a label and after a jump, and its count isn't carried to the next one
+            InstructionType previousType = i > 0 ? instructions.get(i - 1).getInstType() : null;
+            boolean isBlockStart = i > 0 && (!method.getLabels(instructions.get(i)).isEmpty()
+                    || previousType == InstructionType.BRANCH || previousType == InstructionType.GOTO
+                    || previousType == InstructionType.RETURN);
+
+            if (isBlockStart) {
+                count = -1;
+                for (String point : getBlockPoints(method, i)) {
+                    Long pointCount = getCount(signature, point);
+                    if (pointCount != null) {
+                        count = pointCount;
+                        break;
+                    }
+                }
+            }
+
+            instructionCounts[i] = count;
+        }
+
+        return instructionCounts;
+    }
+}
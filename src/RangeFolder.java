@@ -0,0 +1,420 @@
+import java.util.*;
+
+import org.specs.comp.ollir.*;
+
+/**
+ * Removes the conditional branches whose outcome is known from the ranges of values that the int and boolean variables
+ * can have at them, and the facts "a &lt; b" and "a &lt;= b" known between variables (for example, "i &lt; n" tested
+ * again in the body of a loop guarded by it). The ranges and facts are propagated through the instructions, narrowed
+ * by the outcome of each branch, until they don't change; the bounds of the variables at the jumps back are widened
+ * to the limits of int after a few iterations, so that loops end. Arithmetic that may overflow gives any int.
+ *
+ * A branch that is always taken becomes a goto and one that is never taken is removed, together with the instructions
+ * that can no longer run.
+ */
+public class RangeFolder {
+    // Iterations of the jumps back before the ranges at them are widened
+    private static final int WIDENING_DELAY = 2;
+
+    private static final long[] ANY_INT = {Integer.MIN_VALUE, Integer.MAX_VALUE};
+
+    private static final Map<OperationType, OperationType> negatedComparisons = Map.of(
+            OperationType.LTH, OperationType.GTE, OperationType.LTE, OperationType.GTH,
+            OperationType.GTH, OperationType.LTE, OperationType.GTE, OperationType.LTH,
+            OperationType.EQ, OperationType.NEQ, OperationType.NEQ, OperationType.EQ);
+
+    /**
+     * Ranges of the variables (any int if absent) and facts ["&lt;" or "&lt;=", a, b] at an instruction
+     */
+    private static class State {
+        final Map<String, long[]> ranges;
+        final Set<List<String>> facts;
+
+        State(Map<String, long[]> ranges, Set<List<String>> facts) {
+            this.ranges = ranges;
+            this.facts = facts;
+        }
+
+        State copy() {
+            return new State(new HashMap<>(ranges), new HashSet<>(facts));
+        }
+
+        void assign(String variable, long[] range) {
+            if (range[0] <= Integer.MIN_VALUE && range[1] >= Integer.MAX_VALUE) ranges.remove(variable);
+            else ranges.put(variable, range);
+            facts.removeIf(fact -> fact.contains(variable));
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof State)) return false;
+
+            State state = (State) other;
+            if (!facts.equals(state.facts) || !ranges.keySet().equals(state.ranges.keySet())) return false;
+
+            for (Map.Entry<String, long[]> entry : ranges.entrySet()) {
+                if (!Arrays.equals(entry.getValue(), state.ranges.get(entry.getKey()))) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return facts.hashCode();
+        }
+    }
+
+    private final ClassUnit ollirClass;
+    private int foldedBranches = 0;
+
+    public RangeFolder(ClassUnit ollirClass) {
+        this.ollirClass = ollirClass;
+    }
+
+    /**
+     * Folds the branches of every method. It must run before the CFGs and the tables of variables are built.
+     * @return the number of folded branches
+     */
+    public int fold() {
+        for (Method method : ollirClass.getMethods()) {
+            if (!method.isConstructMethod()) foldBranches(method);
+        }
+
+        return foldedBranches;
+    }
+
+    private void foldBranches(Method method) {
+        List<Instruction> instructions = method.getInstructions();
+        State[] states = analyze(method);
+        if (states == null) return;
+
+        // Branch -> its outcome, null if it is never taken
+        Map<Integer, String> folded = new HashMap<>();
+        for (int i = 0; i < instructions.size(); ++i) {
+            if (states[i] == null || instructions.get(i).getInstType() != InstructionType.BRANCH) continue;
+
+            CondBranchInstruction branch = (CondBranchInstruction) instructions.get(i);
+            Boolean outcome = decide(states[i], branch.getLeftOperand(), branch.getCondOperation().getOpType(),
+                    branch.getRightOperand());
+            if (outcome != null) folded.put(i, outcome ? branch.getLabel() : null);
+        }
+
+        if (folded.isEmpty()) return;
+        foldedBranches += folded.size();
+
+        // The labels of a removed instruction move to the next one that is kept, which there is unless the removed
+        // instructions end the method (and then nothing jumps to them)
+        List<Instruction> kept = new ArrayList<>();
+        List<Instruction> removed = new ArrayList<>();
+        for (int i = 0; i < instructions.size(); ++i) {
+            Instruction instruction = instructions.get(i);
+
+            if (states[i] == null || (folded.containsKey(i) && folded.get(i) == null)) {
+                removed.add(instruction);
+                continue;
+            }
+
+            Instruction replacement = folded.containsKey(i)
+                    ? SourceLines.copy(instruction, new GotoInstruction(folded.get(i))) : instruction;
+            removed.add(instruction);
+            for (Instruction target : removed) {
+                method.getLabels().replaceAll((label, labeled) -> labeled == target ? replacement : labeled);
+            }
+            removed.clear();
+            kept.add(replacement);
+        }
+
+        for (Instruction target : removed) {
+            method.getLabels().values().removeIf(labeled -> labeled == target);
+        }
+
+        instructions.clear();
+        instructions.addAll(kept);
+    }
+
+    /**
+     * @return the state before each instruction, null for the ones that never run, or null if the method is too large
+     * to analyze
+     */
+    private static State[] analyze(Method method) {
+        List<Instruction> instructions = method.getInstructions();
+        int size = instructions.size();
+
+        Map<Instruction, Integer> indexes = new IdentityHashMap<>();
+        for (int i = 0; i < size; ++i) {
+            indexes.put(instructions.get(i), i);
+        }
+
+        State[] states = new State[size];
+        int[] visits = new int[size];
+        boolean[] isJumpBack = new boolean[size];
+        for (int i = 0; i < size; ++i) {
+            String label = LoopUnroller.getJumpLabel(instructions.get(i));
+            isJumpBack[i] = label != null && indexes.getOrDefault(method.getLabels().get(label), size) <= i;
+        }
+
+        // The instructions are visited in order, so that the states of the loops are known before their jumps back
+        TreeSet<Integer> pending = new TreeSet<>();
+        states[0] = new State(new HashMap<>(), new HashSet<>());
+        pending.add(0);
+
+        long budget = 64L * size + 1024;
+        while (!pending.isEmpty()) {
+            if (--budget < 0) return null;
+
+            int i = pending.pollFirst();
+            Instruction instruction = instructions.get(i);
+            State state = states[i];
+
+            switch (instruction.getInstType()) {
+                case ASSIGN: {
+                    State next = state.copy();
+                    assign(next, (AssignInstruction) instruction);
+                    propagate(states, visits, isJumpBack, pending, i + 1, next);
+                    break;
+                }
+                case GOTO:
+                    propagate(states, visits, isJumpBack, pending,
+                            indexes.get(method.getLabels().get(((GotoInstruction) instruction).getLabel())), state);
+                    break;
+                case BRANCH: {
+                    CondBranchInstruction branch = (CondBranchInstruction) instruction;
+                    OperationType operation = branch.getCondOperation().getOpType();
+                    int target = indexes.get(method.getLabels().get(branch.getLabel()));
+
+                    State taken = narrow(state, branch.getLeftOperand(), operation, branch.getRightOperand());
+                    if (taken != null) propagate(states, visits, isJumpBack, pending, target, taken);
+
+                    OperationType negated = negatedComparisons.get(operation);
+                    State notTaken = negated == null ? state
+                            : narrow(state, branch.getLeftOperand(), negated, branch.getRightOperand());
+                    if (notTaken != null) propagate(states, visits, isJumpBack, pending, i + 1, notTaken);
+                    break;
+                }
+                case RETURN:
+                    break;
+                default:
+                    propagate(states, visits, isJumpBack, pending, i + 1, state);
+            }
+        }
+
+        return states;
+    }
+
+    private static void propagate(State[] states, int[] visits, boolean[] isJumpBack, TreeSet<Integer> pending,
+                                  int index, State state) {
+        if (index >= states.length) return;
+
+        State old = states[index];
+        if (old == null) {
+            states[index] = state;
+            pending.add(index);
+            return;
+        }
+
+        State joined = join(old, state);
+        if (isJumpBack[index] && ++visits[index] > WIDENING_DELAY) widen(old, joined);
+
+        if (!joined.equals(old)) {
+            states[index] = joined;
+            pending.add(index);
+        }
+    }
+
+    private static State join(State first, State second) {
+        Map<String, long[]> ranges = new HashMap<>();
+        first.ranges.forEach((variable, range) -> {
+            long[] other = second.ranges.get(variable);
+            if (other != null) ranges.put(variable, new long[]{Math.min(range[0], other[0]),
+                    Math.max(range[1], other[1])});
+        });
+
+        Set<List<String>> facts = new HashSet<>(first.facts);
+        facts.retainAll(second.facts);
+        return new State(ranges, facts);
+    }
+
+    /**
+     * Moves the bounds of the joined state that grew since the old state to the limits of int
+     */
+    private static void widen(State old, State joined) {
+        joined.ranges.replaceAll((variable, range) -> {
+            long[] oldRange = old.ranges.get(variable);
+            return new long[]{range[0] < oldRange[0] ? Integer.MIN_VALUE : range[0],
+                    range[1] > oldRange[1] ? Integer.MAX_VALUE : range[1]};
+        });
+        joined.ranges.values().removeIf(range -> range[0] <= Integer.MIN_VALUE && range[1] >= Integer.MAX_VALUE);
+    }
+
+    private static void assign(State state, AssignInstruction instruction) {
+        String variable = LoopUnroller.getVariable(instruction.getDest());
+        if (variable == null) return;
+
+        ElementType type = instruction.getDest().getType().getTypeOfElement();
+        long[] range = type == ElementType.INT32 || type == ElementType.BOOLEAN
+                ? evaluate(state, instruction.getRhs()) : ANY_INT;
+        state.assign(variable, range);
+    }
+
+    private static long[] evaluate(State state, Instruction instruction) {
+        switch (instruction.getInstType()) {
+            case NOPER:
+                return getRange(state, ((SingleOpInstruction) instruction).getSingleOperand());
+            case BINARYOPER: {
+                BinaryOpInstruction operation = (BinaryOpInstruction) instruction;
+                OperationType type = operation.getUnaryOperation().getOpType();
+                Element left = operation.getLeftOperand(), right = operation.getRightOperand();
+
+                if (negatedComparisons.containsKey(type)) {
+                    Boolean outcome = decide(state, left, type, right);
+                    return outcome == null ? new long[]{0, 1} : outcome ? new long[]{1, 1} : new long[]{0, 0};
+                }
+
+                return calculate(type, getRange(state, left), getRange(state, right));
+            }
+            case CALL:
+                return ((CallInstruction) instruction).getInvocationType() == CallType.arraylength
+                        ? new long[]{0, Integer.MAX_VALUE} : ANY_INT;
+            default:
+                return ANY_INT;
+        }
+    }
+
+    /**
+     * @return the range of the result of an arithmetic operation, or any int if it may overflow
+     */
+    private static long[] calculate(OperationType type, long[] left, long[] right) {
+        long[] results;
+        switch (type) {
+            case ADD:
+                results = new long[]{left[0] + right[0], left[1] + right[1]};
+                break;
+            case SUB:
+                results = new long[]{left[0] - right[1], left[1] - right[0]};
+                break;
+            case MUL:
+                results = new long[]{left[0] * right[0], left[0] * right[1], left[1] * right[0], left[1] * right[1]};
+                break;
+            case DIV:
+                // The quotient is monotonic in each operand while the divisor doesn't cross 0
+                if (right[0] <= 0 && right[1] >= 0) return ANY_INT;
+                results = new long[]{left[0] / right[0], left[0] / right[1], left[1] / right[0], left[1] / right[1]};
+                break;
+            case NOTB:
+                // !b is "b !.bool b"
+                return left[0] >= 0 && left[1] <= 1 ? new long[]{1 - left[1], 1 - left[0]} : new long[]{0, 1};
+            case ANDB:
+                return left[0] >= 0 && left[1] <= 1 && right[0] >= 0 && right[1] <= 1
+                        ? new long[]{left[0] & right[0], left[1] & right[1]} : new long[]{0, 1};
+            default:
+                return ANY_INT;
+        }
+
+        long low = Arrays.stream(results).min().getAsLong(), high = Arrays.stream(results).max().getAsLong();
+        return low < Integer.MIN_VALUE || high > Integer.MAX_VALUE ? ANY_INT : new long[]{low, high};
+    }
+
+    private static long[] getRange(State state, Element element) {
+        if (element.isLiteral()) {
+            ElementType type = element.getType().getTypeOfElement();
+            if (type != ElementType.INT32 && type != ElementType.BOOLEAN) return ANY_INT;
+
+            try {
+                long value = Integer.parseInt(((LiteralElement) element).getLiteral());
+                return new long[]{value, value};
+            }
+            catch (NumberFormatException e) {
+                return ANY_INT;
+            }
+        }
+
+        String variable = LoopUnroller.getVariable(element);
+        return variable != null ? state.ranges.getOrDefault(variable, ANY_INT) : ANY_INT;
+    }
+
+    /**
+     * @return the outcome of the comparison, or null if it can be either
+     */
+    private static Boolean decide(State state, Element left, OperationType type, Element right) {
+        if (!negatedComparisons.containsKey(type)) return null;
+
+        // a > b is b < a
+        if (type == OperationType.GTH || type == OperationType.GTE) {
+            return decide(state, right, BackendStage.mirroredComparisons.get(type), left);
+        }
+
+        long[] a = getRange(state, left), b = getRange(state, right);
+        String x = LoopUnroller.getVariable(left), y = LoopUnroller.getVariable(right);
+        boolean isVariables = x != null && y != null, isSame = isVariables && x.equals(y);
+        boolean isLess = isVariables && state.facts.contains(List.of("<", x, y));
+        boolean isGreater = isVariables && state.facts.contains(List.of("<", y, x));
+        boolean isLessOrEqual = isLess || isSame || (isVariables && state.facts.contains(List.of("<=", x, y)));
+        boolean isGreaterOrEqual = isGreater || isSame || (isVariables && state.facts.contains(List.of("<=", y, x)));
+
+        switch (type) {
+            case LTH:
+                if (a[1] < b[0] || isLess) return true;
+                if (a[0] >= b[1] || isGreaterOrEqual) return false;
+                return null;
+            case LTE:
+                if (a[1] <= b[0] || isLessOrEqual) return true;
+                if (a[0] > b[1] || isGreater) return false;
+                return null;
+            case EQ:
+                if ((a[0] == a[1] && Arrays.equals(a, b)) || (isLessOrEqual && isGreaterOrEqual)) return true;
+                if (a[1] < b[0] || a[0] > b[1] || isLess || isGreater) return false;
+                return null;
+            default: {
+                Boolean equal = decide(state, left, OperationType.EQ, right);
+                return equal == null ? null : !equal;
+            }
+        }
+    }
+
+    /**
+     * @return the state narrowed by the comparison being true, or null if it can't be
+     */
+    private static State narrow(State state, Element left, OperationType type, Element right) {
+        Boolean outcome = decide(state, left, type, right);
+        if (outcome != null) return outcome ? state : null;
+
+        if (type == OperationType.GTH || type == OperationType.GTE) {
+            return narrow(state, right, BackendStage.mirroredComparisons.get(type), left);
+        }
+
+        long[] a = getRange(state, left).clone(), b = getRange(state, right).clone();
+        String x = LoopUnroller.getVariable(left), y = LoopUnroller.getVariable(right);
+        State narrowed = state.copy();
+
+        switch (type) {
+            case LTH:
+                a[1] = Math.min(a[1], b[1] - 1);
+                b[0] = Math.max(b[0], a[0] + 1);
+                if (x != null && y != null) narrowed.facts.add(List.of("<", x, y));
+                break;
+            case LTE:
+                a[1] = Math.min(a[1], b[1]);
+                b[0] = Math.max(b[0], a[0]);
+                if (x != null && y != null) narrowed.facts.add(List.of("<=", x, y));
+                break;
+            case EQ:
+                a[0] = b[0] = Math.max(a[0], b[0]);
+                a[1] = b[1] = Math.min(a[1], b[1]);
+                break;
+            case NEQ:
+                // Only a bound equal to a constant can be excluded
+                if (b[0] == b[1] && a[0] == b[0]) ++a[0];
+                else if (b[0] == b[1] && a[1] == b[0]) --a[1];
+                else if (a[0] == a[1] && b[0] == a[0]) ++b[0];
+                else if (a[0] == a[1] && b[1] == a[0]) --b[1];
+                break;
+            default:
+                return state;
+        }
+
+        if (a[0] > a[1] || b[0] > b[1]) return null;
+        if (x != null) narrowed.ranges.put(x, a);
+        if (y != null) narrowed.ranges.put(y, b);
+        return narrowed;
+    }
+}
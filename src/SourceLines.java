@@ -0,0 +1,132 @@
+import java.util.*;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp.jmm.ollir.OllirResult;
+
+/**
+ * Line of the source code of each OLLIR instruction, found from the comments left by the OLLIR generation before the
+ * instructions of each statement. The optimization passes copy the line of the instructions they replace, so that it
+ * survives them (the instructions are only kept while they are in use).
+ */
+public class SourceLines {
+    private static final Map<Instruction, Integer> lines = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Attaches the lines of the OLLIR code to the instructions of its class, unless they already have them (when the
+     * class was already given to the optimization passes). The methods are matched with the ones of the code by their
+     * name and the kinds of their parameters, and left without lines if their instructions don't match.
+     */
+    public static void attach(OllirResult ollirResult) {
+        ClassUnit ollirClass = ollirResult.getOllirClass();
+        for (int i = 0; i < ollirClass.getNumMethods(); ++i) {
+            for (Instruction instruction : ollirClass.getMethod(i).getInstructions()) {
+                if (lines.containsKey(instruction)) return;
+            }
+        }
+
+        Map<String, Deque<List<Integer>>> methodSourceLines = findSourceLines(ollirResult.getOllirCode());
+
+        for (int i = 0; i < ollirClass.getNumMethods(); ++i) {
+            Method method = ollirClass.getMethod(i);
+
+            Deque<List<Integer>> candidates = methodSourceLines.get(getSourceLinesKey(method));
+            List<Integer> sourceLines = candidates != null ? candidates.poll() : null;
+            if (sourceLines == null || sourceLines.size() != method.getInstructions().size()) continue;
+
+            for (int j = 0; j < sourceLines.size(); ++j) {
+                if (sourceLines.get(j) != null) lines.put(method.getInstructions().get(j), sourceLines.get(j));
+            }
+        }
+    }
+
+    /**
+     * @return the line of the source code of the instruction, null if unknown
+     */
+    public static Integer get(Instruction instruction) {
+        return lines.get(instruction);
+    }
+
+    /**
+     * Gives the instruction the line of the one it comes from (or none, if that one has none)
+     * @return the instruction given the line
+     */
+    public static <T extends Instruction> T copy(Instruction from, T to) {
+        Integer line = lines.get(from);
+        if (line != null) lines.put(to, line);
+        else lines.remove(to);
+
+        return to;
+    }
+
+    /**
+     * Finds the line of the source code of each instruction of each method, from the comments left by the OLLIR
+     * generation before the instructions of each statement. The methods are identified by their name and the kinds
+     * of their parameters (in the order of the code, for methods with the same kinds), since -shrink may remove some.
+     */
+    private static Map<String, Deque<List<Integer>>> findSourceLines(String ollirCode) {
+        Map<String, Deque<List<Integer>>> methodSourceLines = new HashMap<>();
+        if (ollirCode == null) return methodSourceLines;
+
+        List<Integer> sourceLines = null;
+        Integer line = null;
+
+        for (String ollirLine : ollirCode.split("\n")) {
+            ollirLine = ollirLine.trim();
+
+            if (ollirLine.startsWith(".method") || ollirLine.startsWith(".construct")) {
+                // ".method public name(a.i32, b.array.i32).i32 {" or ".construct ClassName().V {"
+                int open = ollirLine.indexOf('('), close = ollirLine.indexOf(')', open);
+                String name = ollirLine.startsWith(".construct")
+                        ? "<init>" : ollirLine.substring(ollirLine.lastIndexOf(' ', open) + 1, open);
+
+                List<String> kinds = new ArrayList<>();
+                for (String parameter : ollirLine.substring(open + 1, close).split(",")) {
+                    if (parameter.isBlank()) continue;
+
+                    String type = parameter.trim().substring(parameter.trim().indexOf('.') + 1);
+                    kinds.add(type.equals("i32") ? "int" : type.equals("bool") ? "boolean"
+                            : type.startsWith("array") ? "array" : "object");
+                }
+
+                sourceLines = new ArrayList<>();
+                methodSourceLines.computeIfAbsent(name + kinds, key -> new ArrayDeque<>()).add(sourceLines);
+                line = null;
+            }
+            else if (sourceLines == null) {
+                continue;
+            }
+            else if (ollirLine.equals("}")) {
+                sourceLines = null;
+            }
+            else if (ollirLine.startsWith("// line ")) {
+                line = Integer.parseInt(ollirLine.substring(8));
+            }
+            else if (ollirLine.endsWith(";")) {
+                sourceLines.add(line);
+            }
+        }
+
+        return methodSourceLines;
+    }
+
+    private static String getSourceLinesKey(Method method) {
+        List<String> kinds = new ArrayList<>();
+        for (Element parameter : method.getParams()) {
+            switch (parameter.getType().getTypeOfElement()) {
+                case INT32:
+                    kinds.add("int");
+                    break;
+                case BOOLEAN:
+                    kinds.add("boolean");
+                    break;
+                case ARRAYREF:
+                    kinds.add("array");
+                    break;
+                default:
+                    kinds.add("object");
+            }
+        }
+
+        return (method.isConstructMethod() ? "<init>" : method.getMethodName()) + kinds;
+    }
+}
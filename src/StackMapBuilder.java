@@ -0,0 +1,297 @@
+import java.util.*;
+
+/**
+ * Computes the stack map frames of a method, which class files of version 50 and above have at the start of each
+ * basic block that is the target of a jump or follows an unconditional jump. The types of the local variables and
+ * of the operand stack are propagated through the final instructions of the method (after the registers have been
+ * renumbered, which the OLLIR no longer describes) until they reach a fixed point. A local variable that holds
+ * different types on different paths to a block is unusable there (top).
+ *
+ * Types are represented by their internal name ("java/lang/String", "[I", ...) or one of the constants below.
+ */
+public class StackMapBuilder {
+    public static final String INT = "<int>";
+    public static final String TOP = "<top>";
+    public static final String UNINITIALIZED_THIS = "<uninitializedThis>";
+    // Followed by the offset of the new instruction that created the object
+    public static final String UNINITIALIZED = "<uninitialized>";
+
+    public static class Frame {
+        public final int offset;
+        public final List<String> locals, stack;
+
+        public Frame(int offset, List<String> locals, List<String> stack) {
+            this.offset = offset;
+            this.locals = locals;
+            this.stack = stack;
+        }
+    }
+
+    private static class State {
+        final List<String> locals, stack;
+
+        State(List<String> locals, List<String> stack) {
+            this.locals = locals;
+            this.stack = stack;
+        }
+
+        State copy() {
+            return new State(new ArrayList<>(locals), new ArrayList<>(stack));
+        }
+
+        String pop() {
+            return stack.remove(stack.size() - 1);
+        }
+
+        void pop(int count) {
+            stack.subList(stack.size() - count, stack.size()).clear();
+        }
+
+        void store(int register, String type) {
+            while (locals.size() <= register) locals.add(TOP);
+            locals.set(register, type);
+        }
+    }
+
+    private final String className;
+    private final List<JasminInstruction> code;
+    private final int[] positions; // Offset of each instruction in the code
+    private final boolean[] wideBranches; // Jumps encoded with a goto_w
+    private final Map<String, Integer> labelIndices = new HashMap<>();
+    private final State initialState;
+
+    /**
+     * @param positions offset of each instruction, as encoded in the class file
+     * @param wideBranches jumps encoded with a goto_w, after which conditional branches need another frame
+     */
+    public StackMapBuilder(String className, String methodName, String descriptor, boolean isStatic,
+                           List<JasminInstruction> code, int[] positions, boolean[] wideBranches) {
+        this.className = className;
+        this.code = code;
+        this.positions = positions;
+        this.wideBranches = wideBranches;
+
+        for (int i = 0; i < code.size(); ++i) {
+            if (code.get(i).isLabel()) labelIndices.put(code.get(i).getOperand(), i);
+        }
+
+        List<String> locals = new ArrayList<>();
+        if (!isStatic) locals.add(methodName.equals("<init>") ? UNINITIALIZED_THIS : className);
+        locals.addAll(getParameterTypes(descriptor));
+        initialState = new State(locals, new ArrayList<>());
+    }
+
+    /**
+     * @return the types of the local variables at the start of the method, which the first frame is relative to
+     */
+    public List<String> getInitialLocals() {
+        return initialState.locals;
+    }
+
+    public List<Frame> build() {
+        State[] states = new State[code.size() + 1];
+        Deque<Integer> worklist = new ArrayDeque<>();
+
+        states[0] = initialState.copy();
+        worklist.add(0);
+
+        while (!worklist.isEmpty()) {
+            int i = worklist.poll();
+            if (i == code.size()) continue;
+
+            JasminInstruction instruction = code.get(i);
+
+            State state = states[i].copy();
+            execute(instruction, state, positions[i]);
+
+            if (instruction.isJump()) {
+                int target = labelIndices.get(instruction.getOperand());
+                if (merge(states, target, state)) worklist.add(target);
+            }
+
+            if (!instruction.isUnconditionalJump() && merge(states, i + 1, state)) {
+                worklist.add(i + 1);
+            }
+        }
+
+        List<Frame> frames = new ArrayList<>();
+
+        for (int i = 0; i < code.size(); ++i) {
+            if (code.get(i).isLabel() || states[i] == null) continue;
+
+            // A frame is needed after labels, or after a wide conditional branch (which ends with a goto_w), with
+            // the state after the last of consecutive labels, which includes every jump to them
+            int previous = i - 1;
+            while (previous >= 0 && code.get(previous).isLabel()) --previous;
+
+            boolean afterLabel = previous != i - 1;
+            boolean afterWideBranch = previous >= 0 && wideBranches[previous]
+                    && code.get(previous).isConditionalBranch();
+            if (!afterLabel && !afterWideBranch) continue;
+
+            List<String> locals = new ArrayList<>(states[i].locals);
+            while (!locals.isEmpty() && locals.get(locals.size() - 1).equals(TOP)) {
+                locals.remove(locals.size() - 1);
+            }
+
+            frames.add(new Frame(positions[i], locals, states[i].stack));
+        }
+
+        return frames;
+    }
+
+    /**
+     * Merges a state into the state at the start of an instruction
+     * @return true if the state at the start of the instruction changed
+     */
+    private static boolean merge(State[] states, int i, State state) {
+        if (states[i] == null) {
+            states[i] = state.copy();
+            return true;
+        }
+
+        State current = states[i];
+        boolean changed = false;
+
+        for (int j = 0; j < current.locals.size(); ++j) {
+            String type = j < state.locals.size() ? state.locals.get(j) : TOP;
+
+            if (!current.locals.get(j).equals(type) && !current.locals.get(j).equals(TOP)) {
+                current.locals.set(j, TOP);
+                changed = true;
+            }
+        }
+
+        for (int j = 0; j < current.stack.size() && j < state.stack.size(); ++j) {
+            if (!current.stack.get(j).equals(state.stack.get(j)) && !current.stack.get(j).equals(TOP)) {
+                current.stack.set(j, TOP);
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+
+    private void execute(JasminInstruction instruction, State state, int position) {
+        if (instruction.isLabel()) return;
+
+        String opcode = instruction.getOpcode();
+
+        switch (opcode) {
+            case "iload": case "iconst":
+                state.stack.add(INT);
+                break;
+            case "ldc":
+                state.stack.add(instruction.getOperand().startsWith("\"") ? "java/lang/String" : INT);
+                break;
+            case "aload":
+                state.stack.add(state.locals.get(instruction.getIntOperand()));
+                break;
+            case "istore": case "astore":
+                state.store(instruction.getIntOperand(), state.pop());
+                break;
+            case "iadd": case "isub": case "imul": case "idiv": case "irem": case "iand": case "ior": case "ixor":
+            case "ishl": case "ishr": case "iushr": case "iaload":
+                state.pop(2);
+                state.stack.add(INT);
+                break;
+            case "ineg": case "arraylength":
+                state.pop();
+                state.stack.add(INT);
+                break;
+            case "newarray":
+                state.pop();
+                state.stack.add("[I");
+                break;
+            case "iastore":
+                state.pop(3);
+                break;
+            case "dup":
+                state.stack.add(state.stack.get(state.stack.size() - 1));
+                break;
+            case "dup2":
+                state.stack.addAll(new ArrayList<>(state.stack.subList(state.stack.size() - 2, state.stack.size())));
+                break;
+            case "swap": {
+                String top = state.pop(), below = state.pop();
+                state.stack.add(top);
+                state.stack.add(below);
+                break;
+            }
+            case "new":
+                state.stack.add(UNINITIALIZED + position);
+                break;
+            case "getstatic":
+                state.stack.add(getType(instruction.getOperand().substring(instruction.getOperand().indexOf(' ') + 1)));
+                break;
+            case "getfield":
+                state.pop();
+                state.stack.add(getType(instruction.getOperand().substring(instruction.getOperand().indexOf(' ') + 1)));
+                break;
+            case "putfield":
+                state.pop(2);
+                break;
+            case "invokevirtual": case "invokespecial": case "invokestatic": case "invokeinterface":
+                executeInvocation(instruction, state);
+                break;
+            default:
+                // Branches, returns and the remaining instructions pop what they use, without pushing anything
+                int effect = instruction.getStackEffect();
+                if (effect < 0) state.pop(-effect);
+                break;
+        }
+    }
+
+    private void executeInvocation(JasminInstruction instruction, State state) {
+        String operand = instruction.getOperand();
+        String descriptor = operand.substring(operand.indexOf('('));
+
+        state.pop(getParameterTypes(descriptor).size());
+
+        if (!instruction.is("invokestatic")) {
+            String receiver = state.pop();
+
+            // Calling the constructor initializes every copy of the object
+            if (operand.substring(0, operand.indexOf('(')).endsWith("/<init>")) {
+                String initialized = receiver.equals(UNINITIALIZED_THIS) ? className
+                        : operand.substring(0, operand.lastIndexOf('/', operand.indexOf('(')));
+
+                Collections.replaceAll(state.locals, receiver, initialized);
+                Collections.replaceAll(state.stack, receiver, initialized);
+            }
+        }
+
+        String returnType = descriptor.substring(descriptor.indexOf(')') + 1);
+        if (!returnType.equals("V")) state.stack.add(getType(returnType));
+    }
+
+    private static List<String> getParameterTypes(String descriptor) {
+        List<String> types = new ArrayList<>();
+
+        for (int i = 1; descriptor.charAt(i) != ')'; ++i) {
+            int start = i;
+
+            while (descriptor.charAt(i) == '[') ++i;
+            if (descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+
+            types.add(getType(descriptor.substring(start, i + 1)));
+        }
+
+        return types;
+    }
+
+    /**
+     * @return the verification type of a value with the given field descriptor
+     */
+    private static String getType(String descriptor) {
+        switch (descriptor.charAt(0)) {
+            case 'L':
+                return descriptor.substring(1, descriptor.length() - 1);
+            case '[':
+                return descriptor;
+            default:
+                // int, boolean, byte, char and short are all int
+                return INT;
+        }
+    }
+}
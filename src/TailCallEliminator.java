@@ -0,0 +1,280 @@
+import java.util.*;
+
+import org.specs.comp.ollir.*;
+
+/**
+ * Turns the recursive calls of a method on this whose result is returned into a jump to the start of the method,
+ * after assigning the arguments to the parameters. A call whose result is first added to or multiplied by another
+ * value (such as n * this.factorial(n - 1)) is turned into a jump as well, by accumulating that value in a new variable
+ * which is combined with the value of every return of the method (int addition and multiplication are associative and
+ * commutative, even when they overflow).
+ */
+public class TailCallEliminator {
+    private static final String ENTRY_LABEL = "tailcall";
+    private static final String ACCUMULATOR = "tailcall#acc";
+    private static final Type INT_TYPE = new Type(ElementType.INT32);
+
+    /**
+     * A recursive call in tail position
+     */
+    private static class TailCall {
+        final int index; // Index of the call
+        final CallInstruction call;
+        final BinaryOpInstruction accumulation; // Operation applied to the result of the call, or null
+        final Element accumulated; // The other operand of that operation
+
+        TailCall(int index, CallInstruction call, BinaryOpInstruction accumulation, Element accumulated) {
+            this.index = index;
+            this.call = call;
+            this.accumulation = accumulation;
+            this.accumulated = accumulated;
+        }
+    }
+
+    private final ClassUnit ollirClass;
+    private int eliminatedCalls = 0;
+
+    public TailCallEliminator(ClassUnit ollirClass) {
+        this.ollirClass = ollirClass;
+    }
+
+    /**
+     * Eliminates the tail calls of every method. It must run before the CFGs and the tables of variables are built.
+     * @return the number of eliminated calls
+     */
+    public int eliminate() {
+        for (Method method : ollirClass.getMethods()) {
+            if (!method.isConstructMethod() && !method.isStaticMethod()) eliminateTailCalls(method);
+        }
+
+        return eliminatedCalls;
+    }
+
+    private void eliminateTailCalls(Method method) {
+        List<Instruction> instructions = method.getInstructions();
+        List<TailCall> tailCalls = new ArrayList<>();
+        OperationType accumulationType = null; // Every accumulation of a method must use the same operation
+
+        for (int i = 0; i < instructions.size(); ++i) {
+            TailCall tailCall = findTailCall(method, i);
+            if (tailCall == null) continue;
+
+            if (tailCall.accumulation != null) {
+                OperationType type = tailCall.accumulation.getUnaryOperation().getOpType();
+                if (accumulationType != null && accumulationType != type) continue;
+                accumulationType = type;
+            }
+
+            tailCalls.add(tailCall);
+        }
+
+        if (tailCalls.isEmpty()) return;
+
+        method.getLabels().put(ENTRY_LABEL, instructions.get(0));
+
+        Map<Instruction, List<String>> labels = Inliner.getLabels(method);
+        Operation accumulation = accumulationType != null ? new Operation(accumulationType, INT_TYPE) : null;
+        Operand accumulator = new Operand(ACCUMULATOR, INT_TYPE);
+
+        // Replaced from the last one, so that the indexes of the others don't change
+        Collections.reverse(tailCalls);
+        for (TailCall tailCall : tailCalls) {
+            List<Instruction> jump = new ArrayList<>();
+
+            if (tailCall.accumulation != null) {
+                jump.add(new AssignInstruction(accumulator, INT_TYPE,
+                        new BinaryOpInstruction(accumulator, accumulation, tailCall.accumulated)));
+            }
+            jump.addAll(buildParameterAssignments(method, tailCall.call));
+            jump.add(new GotoInstruction(ENTRY_LABEL));
+
+            replaceInstructions(method, labels, tailCall.index, tailCall.accumulation != null ? 2 : 1, jump);
+            eliminatedCalls++;
+        }
+
+        if (accumulation == null) return;
+
+        // Every return combines the value it returns with the ones accumulated by the calls that jumped to the start
+        for (int i = instructions.size() - 1; i >= 0; --i) {
+            if (instructions.get(i).getInstType() != InstructionType.RETURN) continue;
+
+            Element value = ((ReturnInstruction) instructions.get(i)).getOperand();
+            replaceInstructions(method, labels, i, 1, List.of(
+                    new AssignInstruction(accumulator, INT_TYPE,
+                            new BinaryOpInstruction(accumulator, accumulation, value)),
+                    new ReturnInstruction(accumulator)));
+        }
+
+        LiteralElement identity = new LiteralElement(accumulationType == OperationType.MUL ? "1" : "0", INT_TYPE);
+        instructions.add(0, SourceLines.copy(instructions.get(0),
+                new AssignInstruction(accumulator, INT_TYPE, new SingleOpInstruction(identity))));
+    }
+
+    /**
+     * @return the recursive call at the given index if its result is returned, either directly or after one addition
+     * or multiplication, or null if it isn't
+     */
+    private TailCall findTailCall(Method method, int index) {
+        List<Instruction> instructions = method.getInstructions();
+        Instruction instruction = instructions.get(index);
+
+        CallInstruction call = Inliner.getCall(instruction);
+        if (call == null || call.getInvocationType() != CallType.invokevirtual
+                || call.getFirstArg().getType().getTypeOfElement() != ElementType.THIS
+                || Inliner.findCallee(ollirClass, call) != method) return null;
+
+        // The variable that holds the result of the call, null if it is discarded
+        String result = instruction.getInstType() == InstructionType.ASSIGN
+                ? getVariable(((AssignInstruction) instruction).getDest()) : null;
+        if (instruction.getInstType() == InstructionType.ASSIGN && result == null) return null;
+
+        BinaryOpInstruction accumulation = null;
+        Element accumulated = null;
+        int next = index + 1;
+
+        if (result != null && next < instructions.size() && !hasLabels(method, instructions.get(next))
+                && instructions.get(next).getInstType() == InstructionType.ASSIGN) {
+            AssignInstruction assignInstruction = (AssignInstruction) instructions.get(next);
+
+            if (assignInstruction.getRhs().getInstType() == InstructionType.BINARYOPER
+                    && getVariable(assignInstruction.getDest()) != null) {
+                BinaryOpInstruction operation = (BinaryOpInstruction) assignInstruction.getRhs();
+                OperationType type = operation.getUnaryOperation().getOpType();
+
+                if ((type == OperationType.ADD || type == OperationType.MUL)
+                        && method.getReturnType().getTypeOfElement() == ElementType.INT32) {
+                    boolean isLeft = result.equals(getVariable(operation.getLeftOperand()));
+                    boolean isRight = result.equals(getVariable(operation.getRightOperand()));
+
+                    if (isLeft != isRight) {
+                        accumulation = operation;
+                        accumulated = isLeft ? operation.getRightOperand() : operation.getLeftOperand();
+                        result = getVariable(assignInstruction.getDest());
+                        next++;
+                    }
+                }
+            }
+        }
+
+        return isReturned(method, next, result) ? new TailCall(index, call, accumulation, accumulated) : null;
+    }
+
+    /**
+     * @return true if the execution from the given index reaches a return of the variable (or a return without a
+     * value, if it is null) through jumps and copies of the variable
+     */
+    private static boolean isReturned(Method method, int index, String variable) {
+        List<Instruction> instructions = method.getInstructions();
+
+        for (int steps = 0; index < instructions.size() && steps < instructions.size(); ++steps) {
+            Instruction instruction = instructions.get(index);
+
+            switch (instruction.getInstType()) {
+                case GOTO:
+                    Instruction target = method.getLabels().get(((GotoInstruction) instruction).getLabel());
+                    index = indexOf(instructions, target);
+                    break;
+                case ASSIGN: {
+                    AssignInstruction assignInstruction = (AssignInstruction) instruction;
+                    String destination = getVariable(assignInstruction.getDest());
+
+                    if (variable == null || destination == null
+                            || assignInstruction.getRhs().getInstType() != InstructionType.NOPER
+                            || !variable.equals(getVariable(
+                                    ((SingleOpInstruction) assignInstruction.getRhs()).getSingleOperand()))) {
+                        return false;
+                    }
+
+                    variable = destination;
+                    index++;
+                    break;
+                }
+                case RETURN: {
+                    ReturnInstruction returnInstruction = (ReturnInstruction) instruction;
+                    return returnInstruction.hasReturnValue()
+                            ? variable != null && variable.equals(getVariable(returnInstruction.getOperand()))
+                            : variable == null;
+                }
+                default:
+                    return false;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the assignments of the arguments of the call to the parameters of the method, through a copy when an
+     * argument reads a parameter that is assigned before it or is an array access (whose index may be a parameter)
+     */
+    private List<Instruction> buildParameterAssignments(Method method, CallInstruction call) {
+        List<Element> parameters = method.getParams();
+        List<Element> arguments = call.getListOfOperands();
+        List<Instruction> copies = new ArrayList<>(), assignments = new ArrayList<>();
+        Set<String> assigned = new HashSet<>();
+
+        for (int i = 0; i < parameters.size(); ++i) {
+            Operand parameter = (Operand) parameters.get(i);
+            Element argument = arguments.get(i);
+            String name = getVariable(argument);
+
+            if (parameter.getName().equals(name)) continue;
+
+            // The copies are made before any parameter is assigned
+            if (argument instanceof ArrayOperand || assigned.contains(name)) {
+                Operand copy = new Operand(ENTRY_LABEL + "#" + parameter.getName(), parameter.getType());
+                copies.add(new AssignInstruction(copy, parameter.getType(), new SingleOpInstruction(argument)));
+                argument = copy;
+            }
+
+            assignments.add(new AssignInstruction(new Operand(parameter.getName(), parameter.getType()),
+                    parameter.getType(), new SingleOpInstruction(argument)));
+            assigned.add(parameter.getName());
+        }
+
+        copies.addAll(assignments);
+        return copies;
+    }
+
+    /**
+     * Replaces instructions of the method, moving their labels to the first new instruction
+     */
+    private static void replaceInstructions(Method method, Map<Instruction, List<String>> labels, int index,
+                                            int count, List<Instruction> replacement) {
+        List<Instruction> instructions = method.getInstructions();
+
+        for (int i = index; i < index + count; ++i) {
+            for (String label : labels.getOrDefault(instructions.get(i), Collections.emptyList())) {
+                method.getLabels().put(label, replacement.get(0));
+                labels.computeIfAbsent(replacement.get(0), key -> new ArrayList<>()).add(label);
+            }
+        }
+
+        // The new instructions are on the line of the first replaced one
+        for (Instruction instruction : replacement) SourceLines.copy(instructions.get(index), instruction);
+
+        instructions.subList(index, index + count).clear();
+        instructions.addAll(index, replacement);
+    }
+
+    private static boolean hasLabels(Method method, Instruction instruction) {
+        return method.getLabels().containsValue(instruction);
+    }
+
+    /**
+     * @return the name of the element if it is a variable that isn't an array access, null otherwise
+     */
+    private static String getVariable(Element element) {
+        if (element == null || element.isLiteral() || element instanceof ArrayOperand) return null;
+
+        ElementType type = element.getType().getTypeOfElement();
+        return type == ElementType.THIS || type == ElementType.CLASS ? null : ((Operand) element).getName();
+    }
+
+    private static int indexOf(List<Instruction> instructions, Instruction instruction) {
+        for (int i = 0; i < instructions.size(); ++i) {
+            if (instructions.get(i) == instruction) return i;
+        }
+        return instructions.size();
+    }
+}
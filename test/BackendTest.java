@@ -13,10 +13,12 @@
  */
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
 import pt.up.fe.comp.TestUtils;
+import pt.up.fe.comp.jmm.jasmin.JasminResult;
 import pt.up.fe.specs.util.SpecsIo;
 
 import java.io.File;
@@ -68,6 +70,23 @@ public class BackendTest {
                 System.getProperty("line.separator")), output.trim());
     }
 
+    @Test
+    public void testStackedTemporaries() {
+        var result = TestUtils.backend(SpecsIo.getResource("fixtures/public/WhileAndIF.jmm"));
+        TestUtils.noErrors(result.getReports());
+
+        // The temporary with the element of d is passed to println from the stack, and only the variables of the
+        // source code are left in registers
+        String jasminCode = result.getJasminCode();
+        assertTrue(jasminCode.contains("\tiaload\n\tinvokestatic io/println(I)V"));
+        assertTrue(jasminCode.contains(".method public static main([Ljava/lang/String;)V\n\t.limit stack 4\n"
+                + "\t.limit locals 5\n"));
+
+        String output = result.run();
+        assertEquals("10\n10\n10\n10\n10\n10\n10\n10\n10\n10".replaceAll("\\n|\\r\\n",
+                System.getProperty("line.separator")), output.trim());
+    }
+
     @Test
     public void testFindMaximum() {
         var result = TestUtils.backend(SpecsIo.getResource("fixtures/public/FindMaximum.jmm"));
@@ -77,6 +96,146 @@ public class BackendTest {
         assertEquals("Result: 28", output.trim());
     }
 
+    @Test
+    public void testStrengthReduction() {
+        var result = TestUtils.backend(SpecsIo.getResource("fixtures/public/StrengthReduction.jmm"));
+        TestUtils.noErrors(result.getReports());
+
+        String output = result.run();
+        assertEquals("104\n52\n13\n0\n3\n6\n13\n16\n11\n-104\n-52\n-13\n0\n-3\n-6\n-13\n-10\n-15".replaceAll("\\n|\\r\\n",
+                System.getProperty("line.separator")), output.trim());
+    }
+
+    @Test
+    public void testBranchLowering() {
+        var result = TestUtils.backend(SpecsIo.getResource("fixtures/public/BranchLowering.jmm"));
+        TestUtils.noErrors(result.getReports());
+
+        String output = result.run();
+        assertEquals("103\n7\n1\n0".replaceAll("\\n|\\r\\n",
+                System.getProperty("line.separator")), output.trim());
+    }
+
+    @Test
+    public void testShortCircuit() {
+        var result = TestUtils.backend(SpecsIo.getResource("fixtures/public/ShortCircuit.jmm"));
+        TestUtils.noErrors(result.getReports());
+
+        String output = result.run();
+        assertEquals("3\n1\n0\n2\n2".replaceAll("\\n|\\r\\n",
+                System.getProperty("line.separator")), output.trim());
+    }
+
+    @Test
+    public void testLineNumbers() {
+        var result = TestUtils.backend(SpecsIo.getResource("fixtures/public/LineNumbers.jmm"));
+        TestUtils.noErrors(result.getReports());
+
+        String output = result.run();
+        assertTrue(output.contains("at LineNumbers.divide(LineNumbers.jmm:6)"));
+        assertTrue(output.contains("at LineNumbers.main(LineNumbers.jmm:20)"));
+    }
+
+    @Test
+    public void testTailRecursion() {
+        var result = TestUtils.backend(SpecsIo.getResource("fixtures/public/TailRecursion.jmm"));
+        TestUtils.noErrors(result.getReports());
+
+        String output = result.run();
+        assertEquals("500500\n21\n-5\n5".replaceAll("\\n|\\r\\n",
+                System.getProperty("line.separator")), output.trim());
+    }
+
+    @Test
+    public void testLoopUnrolling() {
+        var result = TestUtils.backend(SpecsIo.getResource("fixtures/public/LoopUnrolling.jmm"));
+        TestUtils.noErrors(result.getReports());
+
+        String output = result.run();
+        assertEquals("0\n5\n55\n204\n32".replaceAll("\\n|\\r\\n",
+                System.getProperty("line.separator")), output.trim());
+    }
+
+    @Test
+    public void testInductionVariables() {
+        var result = TestUtils.backend(SpecsIo.getResource("fixtures/public/InductionVariables.jmm"));
+        TestUtils.noErrors(result.getReports());
+
+        String output = result.run();
+        assertEquals("23\n68\n315\n0".replaceAll("\\n|\\r\\n",
+                System.getProperty("line.separator")), output.trim());
+    }
+
+    @Test
+    public void testFieldPromotion() {
+        var result = TestUtils.backend(SpecsIo.getResource("fixtures/public/FieldPromotion.jmm"));
+        TestUtils.noErrors(result.getReports());
+
+        String output = result.run();
+        assertEquals("6307\n6307\n63\n63\n64\n67\n67\n68\n69\n69".replaceAll("\\n|\\r\\n",
+                System.getProperty("line.separator")), output.trim());
+    }
+
+    @Test
+    public void testDeadCode() {
+        var result = TestUtils.backend(SpecsIo.getResource("fixtures/public/DeadCode.jmm"));
+        TestUtils.noErrors(result.getReports());
+
+        String output = result.run();
+        assertEquals("49\n1\n11".replaceAll("\\n|\\r\\n",
+                System.getProperty("line.separator")), output.trim());
+    }
+
+    @Test
+    public void testPureMethods() {
+        var result = TestUtils.backend(SpecsIo.getResource("fixtures/public/PureMethods.jmm"));
+        TestUtils.noErrors(result.getReports());
+
+        String output = result.run();
+        assertEquals("144\n832041\n55\n1\n9\n64".replaceAll("\\n|\\r\\n",
+                System.getProperty("line.separator")), output.trim());
+    }
+
+    @Test
+    public void testMemoization() {
+        var result = TestUtils.backend(SpecsIo.getResource("fixtures/public/Memoization.jmm"));
+        TestUtils.noErrors(result.getReports());
+
+        String output = result.run();
+        assertEquals("987\n2178309\n43758\n1\n0".replaceAll("\\n|\\r\\n",
+                System.getProperty("line.separator")), output.trim());
+    }
+
+    @Test
+    public void testRangeFolding() {
+        var result = TestUtils.backend(SpecsIo.getResource("fixtures/public/RangeFolding.jmm"));
+        TestUtils.noErrors(result.getReports());
+
+        String output = result.run();
+        assertEquals("140\n19\n30\n15\n15".replaceAll("\\n|\\r\\n",
+                System.getProperty("line.separator")), output.trim());
+    }
+
+    @Test
+    public void testAlgebraicSimplification() {
+        var result = TestUtils.backend(SpecsIo.getResource("fixtures/public/AlgebraicSimplification.jmm"));
+        TestUtils.noErrors(result.getReports());
+
+        String output = result.run();
+        assertEquals("42\n1\n0\n9630\n0".replaceAll("\\n|\\r\\n",
+                System.getProperty("line.separator")), output.trim());
+    }
+
+    @Test
+    public void testMethodSplitting() {
+        var result = TestUtils.backend(SpecsIo.getResource("fixtures/public/MethodSplitting.jmm"));
+        TestUtils.noErrors(result.getReports());
+
+        String output = result.run();
+        assertEquals("4\n14\n45\n139\n422\n272\n11240\n823\n477\n440\n330\n1\n15\n12255".replaceAll("\\n|\\r\\n",
+                System.getProperty("line.separator")), output.trim());
+    }
+
     @Test
     public void testMonteCarloPi() {
         var result = TestUtils.backend(SpecsIo.getResource("fixtures/public/MonteCarloPi.jmm"));
@@ -100,4 +259,14 @@ public class BackendTest {
 
         result.compile(new File("compiled"));
     }
+
+    @Test
+    public void testJasminCode() {
+        var result = TestUtils.backend(SpecsIo.getResource("fixtures/public/FibonacciAndFactorial.jmm"));
+        TestUtils.noErrors(result.getReports());
+
+        // The Jasmin code, assembled by Jasmin, behaves like the class file written by the backend
+        var jasminResult = new JasminResult(result.getClassName(), result.getJasminCode(), result.getReports());
+        assertEquals(result.run(), jasminResult.run());
+    }
 }
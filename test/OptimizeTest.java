@@ -12,6 +12,8 @@
  * specific language governing permissions and limitations under the License. under the License.
  */
 
+import static org.junit.Assert.*;
+
 import org.junit.Test;
 
 import pt.up.fe.comp.TestUtils;
@@ -24,4 +26,23 @@ public class OptimizeTest {
         var result = TestUtils.optimize(SpecsIo.getResource("fixtures/public/HelloWorld.jmm"));
         TestUtils.noErrors(result.getReports());
     }
+
+    @Test
+    public void testLoopRotation() {
+        var result = TestUtils.optimize(SpecsIo.getResource("fixtures/public/WhileAndIF.jmm"));
+        TestUtils.noErrors(result.getReports());
+
+        // The condition of the second loop is tested before it, to skip it, and after the body, to jump back to it
+        String ollirCode = result.getOllirCode();
+        int guard = ollirCode.indexOf("goto endloop2;"), body = ollirCode.indexOf("body2:");
+        int jumpBack = ollirCode.indexOf("goto body2;");
+        assertTrue(guard >= 0 && guard < body && body < jumpBack);
+        assertEquals(jumpBack, ollirCode.lastIndexOf("goto body2;"));
+        assertEquals(2, ollirCode.split("arraylength\\(d.array.i32\\)").length - 1);
+        assertFalse(ollirCode.contains("goto loop"));
+
+        String output = TestUtils.backend(result).run();
+        assertEquals("10\n10\n10\n10\n10\n10\n10\n10\n10\n10".replaceAll("\\n|\\r\\n",
+                System.getProperty("line.separator")), output.trim());
+    }
 }
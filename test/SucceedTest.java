@@ -4,18 +4,25 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.util.Properties;
+import java.io.File;
+import java.io.IOException;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 
 import pt.up.fe.comp.TestUtils;
 import pt.up.fe.comp.jmm.JmmParserResult;
 import pt.up.fe.comp.jmm.analysis.JmmSemanticsResult;
 import pt.up.fe.comp.jmm.jasmin.JasminResult;
 import pt.up.fe.comp.jmm.ollir.OllirResult;
+import pt.up.fe.comp.jmm.report.ReportType;
 import pt.up.fe.specs.util.SpecsIo;
 
 public class SucceedTest {
-    public void testSucceed(String path, CommandLineArgs args) {
-        String jmmCode = SpecsIo.getResource(path);
+    public JasminResult testSucceed(String path, CommandLineArgs args) {
+        return testSucceedCode(SpecsIo.getResource(path), args);
+    }
+
+    public JasminResult testSucceedCode(String jmmCode, CommandLineArgs args) {
         JmmParserResult result = TestUtils.parse(jmmCode);
         TestUtils.noErrors(result.getReports());
 
@@ -30,14 +37,33 @@ public class SucceedTest {
         OllirResult ollirResult = optimizationStage.toOllir(semanticsResult);
 
         BackendStage backendStage = new BackendStage();
+        backendStage.args = args;
         JasminResult jasminResult = backendStage.toJasmin(ollirResult);
 
         System.out.println(jasminResult.getJasminCode());
         jasminResult.run();
+        return jasminResult;
+    }
+
+    private static void assertOutput(String expected, JasminResult result) {
+        assertEquals(expected.replaceAll("\\n|\\r\\n", System.getProperty("line.separator")), result.run().trim());
+    }
+
+    /**
+     * @return the Jasmin code of the method with the name, from its .method directive to its .end method
+     */
+    private static String getMethodCode(String jasminCode, String methodName) {
+        int start = jasminCode.indexOf(" " + methodName + "(", jasminCode.indexOf(".method"));
+        while (start >= 0 && !jasminCode.substring(jasminCode.lastIndexOf("\n", start) + 1).startsWith(".method")) {
+            start = jasminCode.indexOf(" " + methodName + "(", start + 1);
+        }
+        assertTrue("No method " + methodName, start >= 0);
+
+        return jasminCode.substring(start, jasminCode.indexOf(".end method", start));
     }
 
-    public void testSucceed(String path) {
-        testSucceed(path, new CommandLineArgs(null, false, null));
+    public JasminResult testSucceed(String path) {
+        return testSucceed(path, new CommandLineArgs(null, false, null));
     }
 
     @Test
@@ -102,4 +128,291 @@ public class SucceedTest {
     public void testConstantPropagation() {
         testSucceed("fixtures/public/ConstantPropagation.jmm", new CommandLineArgs(null, true, null));
     }
+
+    @Test
+    public void testRegisterAllocationSpill() {
+        JasminResult result = testSucceed("fixtures/public/FibonacciAndFactorial.jmm",
+                new CommandLineArgs(null, false, 1));
+        assertOutput("0\n1\n5\n1\n720\n24", result);
+
+        // fibonacci has 3 variables live at the same time, so it needs more registers than requested
+        assertTrue(result.getReports().stream().anyMatch(report -> report.getType() == ReportType.WARNING
+                && report.getMessage().equals("Method fibonacci needs 3 register(s), 2 more than the requested 1")));
+        assertTrue(getMethodCode(result.getJasminCode(), "fibonacci").contains(".limit locals 5"));
+    }
+
+    @Test
+    public void testMinimalRegisterAllocation() {
+        JasminResult result = testSucceed("fixtures/public/QuickSort.jmm", new CommandLineArgs(null, false, 0));
+        assertOutput("1\n2\n3\n4\n5\n6\n7\n8\n9\n10", result);
+        assertEquals(0, TestUtils.getNumReports(result.getReports(), ReportType.WARNING));
+
+        // partition needs 4 registers besides this and its 3 parameters, and can't do with 3
+        assertTrue(getMethodCode(result.getJasminCode(), "partition").contains(".limit locals 8"));
+        result = testSucceed("fixtures/public/QuickSort.jmm", new CommandLineArgs(null, false, 3));
+        assertTrue(result.getReports().stream().anyMatch(report -> report.getType() == ReportType.WARNING
+                && report.getMessage().startsWith("Method partition needs 4 register(s)")));
+    }
+
+    @Test
+    public void testLinearScanAllocation() {
+        CommandLineArgs args = new CommandLineArgs(null, false, 2);
+        args.allocator = CommandLineArgs.Allocator.LINEAR_SCAN;
+        JasminResult result = testSucceed("fixtures/public/QuickSort.jmm", args);
+
+        args.allocator = CommandLineArgs.Allocator.GRAPH_COLORING;
+        assertEquals(testSucceed("fixtures/public/QuickSort.jmm", args).run(), result.run());
+    }
+
+    @Test
+    public void testLinearScanAboveThreshold() {
+        // A main with 8 instructions in each iteration of the loop below, more than LINEAR_SCAN_THRESHOLD in total
+        StringBuilder jmmCode = new StringBuilder("import io;\nclass LargeMethod {\n")
+                .append("public static void main(String[] args) {\nint a;\nint b;\nint c;\nint d;\n")
+                .append("a = 1;\nb = 2;\nc = 3;\nd = 0;\n");
+        for (int i = 0; i < OptimizationStage.LINEAR_SCAN_THRESHOLD / 8; ++i) {
+            jmmCode.append("d = a * ").append(i % 7 + 2).append(" + b - c;\na = b + d / 3;\nb = c - a * 2;\n")
+                    .append("c = d + ").append(i).append(";\n");
+        }
+        jmmCode.append("io.println(a);\nio.println(b);\nio.println(c);\nio.println(d);\n}\n}\n");
+
+        // Without choosing an allocator, the method is allocated with linear scan
+        CommandLineArgs args = new CommandLineArgs(null, false, 2);
+        JasminResult result = testSucceedCode(jmmCode.toString(), args);
+
+        args.allocator = CommandLineArgs.Allocator.LINEAR_SCAN;
+        JasminResult linearScanResult = testSucceedCode(jmmCode.toString(), args);
+        args.allocator = CommandLineArgs.Allocator.GRAPH_COLORING;
+        JasminResult graphColoringResult = testSucceedCode(jmmCode.toString(), args);
+
+        assertEquals(linearScanResult.getJasminCode(), result.getJasminCode());
+        assertNotEquals(graphColoringResult.getJasminCode(), result.getJasminCode());
+        assertEquals(graphColoringResult.run(), result.run());
+    }
+
+    @Test
+    public void testMethodSplitting() {
+        // Regions smaller than MethodSplitter.MIN_REGION_SIZE aren't outlined, so the limit must be larger than it
+        CommandLineArgs args = new CommandLineArgs(null, false, null);
+        args.methodSizeLimit = 100;
+        JasminResult result = testSucceed("fixtures/public/MethodSplitting.jmm", args);
+
+        // The helpers take the live variables and return the one that is live after them
+        String jasminCode = result.getJasminCode();
+        assertTrue(jasminCode.contains(".method private static main$split1()I"));
+        assertTrue(jasminCode.contains("invokestatic MethodSplitting/main$split2(II)I"));
+
+        JasminResult unsplitResult = testSucceed("fixtures/public/MethodSplitting.jmm");
+        assertFalse(unsplitResult.getJasminCode().contains("$split"));
+        assertEquals(unsplitResult.run(), result.run());
+    }
+
+    @Test
+    public void testClassVersionWithoutStackMaps() {
+        CommandLineArgs args = new CommandLineArgs(null, false, null);
+        args.classVersion = 49;
+        JasminResult result = testSucceed("fixtures/public/QuickSort.jmm", args);
+        assertOutput("1\n2\n3\n4\n5\n6\n7\n8\n9\n10", result);
+
+        // The major version follows the magic number and the minor version, the attribute names are in the constants
+        byte[] classFile = ((ClassFileResult) result).getClassFile();
+        assertEquals(49, ((classFile[6] & 0xFF) << 8) | (classFile[7] & 0xFF));
+        assertFalse(new String(classFile, StandardCharsets.ISO_8859_1).contains("StackMapTable"));
+
+        args.classVersion = ClassFileWriter.CLASS_VERSION;
+        classFile = ((ClassFileResult) testSucceed("fixtures/public/QuickSort.jmm", args)).getClassFile();
+        assertTrue(new String(classFile, StandardCharsets.ISO_8859_1).contains("StackMapTable"));
+    }
+
+    @Test
+    public void testInlining() {
+        JasminResult result = testSucceed("fixtures/public/ShortCircuit.jmm", new CommandLineArgs(null, true, null));
+        assertOutput("3\n1\n0\n2\n2", result);
+        // check writes a field, so its calls are only gone if they were inlined
+        assertFalse(result.getJasminCode().contains("invokevirtual ShortCircuit/check"));
+
+        result = testSucceed("fixtures/public/MaxOverloading.jmm", new CommandLineArgs(null, true, 2));
+        assertOutput("13\n20\n47", result);
+
+        // Calls inlined on another object access its fields, which must keep it alive when allocating registers
+        for (int maxRegisters : new int[]{0, 1, 3}) {
+            result = testSucceed("fixtures/public/PureMethods.jmm", new CommandLineArgs(null, true, maxRegisters));
+            assertOutput("144\n832041\n55\n1\n9\n64", result);
+        }
+    }
+
+    @Test
+    public void testLineNumbersWithOptimizations() {
+        JasminResult result = testSucceed("fixtures/public/LineNumbers.jmm", new CommandLineArgs(null, true, null));
+
+        // The calls of divide are inlined and the loop unrolled, their instructions keep the lines of their statements
+        String mainCode = getMethodCode(result.getJasminCode(), "main");
+        assertFalse(mainCode.contains("invokevirtual LineNumbers/divide"));
+        for (int line : new int[]{14, 15, 17, 18, 20}) {
+            assertTrue(mainCode.contains(".line " + line + "\n"));
+        }
+        assertTrue(result.run().contains("at LineNumbers.main(LineNumbers.jmm:20)"));
+    }
+
+    @Test
+    public void testTailCallElimination() {
+        JasminResult result = testSucceed("fixtures/public/TailRecursion.jmm", new CommandLineArgs(null, true, null));
+        assertOutput("500500\n21\n-5\n5", result);
+
+        // The recursive calls became jumps to the start of each method
+        for (String methodName : new String[]{"sumTo", "gcd", "swap"}) {
+            String methodCode = getMethodCode(result.getJasminCode(), methodName);
+            assertTrue(methodCode.contains("goto tailcall"));
+            assertFalse(methodCode.contains("invokevirtual TailRecursion/"));
+        }
+
+        testSucceed("fixtures/public/FibonacciAndFactorial.jmm", new CommandLineArgs(null, true, 1));
+    }
+
+    @Test
+    public void testLoopUnrolling() {
+        JasminResult result = testSucceed("fixtures/public/LoopUnrolling.jmm", new CommandLineArgs(null, true, null));
+        assertOutput("0\n5\n55\n204\n32", result);
+
+        // sum is unrolled with a loop for the remaining iterations, the 3 iterations of small have no loop left
+        String jasminCode = result.getJasminCode();
+        assertTrue(getMethodCode(jasminCode, "sum").contains("unroll1_rem:"));
+        String smallCode = getMethodCode(jasminCode, "small");
+        assertFalse(smallCode.contains("goto") || smallCode.contains("if"));
+        assertEquals(3, smallCode.split("iinc 1 1").length - 1);
+
+        CommandLineArgs args = new CommandLineArgs(null, true, 2);
+        args.unrollFactor = 3;
+        result = testSucceed("fixtures/public/WhileAndIF.jmm", args);
+        assertOutput("10\n10\n10\n10\n10\n10\n10\n10\n10\n10", result);
+        assertTrue(result.getJasminCode().contains("_rem:"));
+    }
+
+    @Test
+    public void testInductionVariableReduction() {
+        JasminResult result = testSucceed("fixtures/public/InductionVariables.jmm",
+                new CommandLineArgs(null, true, null));
+        assertOutput("23\n68\n315\n0", result);
+
+        // The products in the loops became additions, only w * h is left in grid
+        String jasminCode = result.getJasminCode();
+        assertEquals(1, getMethodCode(jasminCode, "grid").split("imul", -1).length - 1);
+        String sumOfMultiplesCode = getMethodCode(jasminCode, "sumOfMultiples");
+        assertFalse(sumOfMultiplesCode.contains("imul"));
+        // k was only used in the product
+        assertFalse(sumOfMultiplesCode.contains(" is k I"));
+    }
+
+    @Test
+    public void testFieldPromotion() {
+        JasminResult result = testSucceed("fixtures/public/FieldPromotion.jmm", new CommandLineArgs(null, true, null));
+        assertOutput("6307\n6307\n63\n63\n64\n67\n67\n68\n69\n69", result);
+
+        // The loop of accumulate only uses local variables, the one of logged calls report, which reads total
+        String jasminCode = result.getJasminCode();
+        String accumulateLoop = getLoopCode(getMethodCode(jasminCode, "accumulate"), "body1");
+        assertFalse(accumulateLoop.contains("getfield") || accumulateLoop.contains("putfield"));
+        String loggedLoop = getLoopCode(getMethodCode(jasminCode, "logged"), "body1");
+        assertTrue(loggedLoop.contains("putfield FieldPromotion/total I"));
+    }
+
+    /**
+     * @return the code from the label of a loop to the jump back to it
+     */
+    private static String getLoopCode(String methodCode, String label) {
+        int start = methodCode.indexOf(label + ":");
+        assertTrue("No loop " + label, start >= 0);
+        return methodCode.substring(start, methodCode.lastIndexOf(label));
+    }
+
+    @Test
+    public void testPureMethodEvaluation() {
+        String jasminCode = testSucceed("fixtures/public/PureMethods.jmm", new CommandLineArgs(null, true, null))
+                .getJasminCode();
+
+        // fib(30) + 1 is folded, count writes a field so it is still called
+        assertTrue(jasminCode.contains("832041"));
+        assertTrue(jasminCode.contains("invokevirtual PureMethods/countTwice(I)I"));
+    }
+
+    @Test
+    public void testMemoization() {
+        CommandLineArgs args = new CommandLineArgs(null, false, null);
+        args.memoize = true;
+        String jasminCode = testSucceed("fixtures/public/Memoization.jmm", args).getJasminCode();
+
+        // fib, paths and isOdd each have a table
+        assertTrue(jasminCode.contains(".field private memo$2 [I"));
+    }
+
+    @Test
+    public void testRangeFolding() {
+        String jasminCode = testSucceed("fixtures/public/RangeFolding.jmm", new CommandLineArgs(null, true, null))
+                .getJasminCode();
+
+        // The guards of sum always hold, so the values of the other branches are gone
+        assertFalse(jasminCode.contains("bipush -2"));
+    }
+
+    @Test
+    public void testAlgebraicSimplification() {
+        String jasminCode = testSucceed("fixtures/public/AlgebraicSimplification.jmm",
+                new CommandLineArgs(null, true, null)).getJasminCode();
+
+        // !!b is b, and total + 1 + 2 is an increment by 3
+        assertFalse(jasminCode.contains("ixor"));
+        assertTrue(jasminCode.contains("iinc 2 3"));
+    }
+
+    @Test
+    public void testShrinking() {
+        CommandLineArgs args = new CommandLineArgs(null, false, null);
+        args.shrink = true;
+        String jasminCode = testSucceed("fixtures/public/DeadCode.jmm", args).getJasminCode();
+
+        // cube is only called by unused, and last is only read by unused
+        assertFalse(jasminCode.contains("cube"));
+        assertFalse(jasminCode.contains("unused"));
+        assertFalse(jasminCode.contains("last"));
+        assertTrue(jasminCode.contains("square(Z)I"));
+    }
+
+    @Test
+    public void testProfileGuidedOptimization() throws IOException {
+        // The instrumented class writes its profile to the working directory when main returns
+        CommandLineArgs args = new CommandLineArgs(null, false, null);
+        args.instrument = true;
+        testSucceed("fixtures/public/ShortCircuit.jmm", args);
+
+        File profileFile = new File("ShortCircuit.profile");
+        Profile profile = Profile.load(profileFile.getPath());
+        profileFile.delete();
+
+        assertEquals(Long.valueOf(1), profile.getCount("main(String[])", Profile.ENTRY));
+        assertEquals(Long.valueOf(1), profile.getCount("run()", Profile.callSite("find", 2)));
+
+        args = new CommandLineArgs(null, false, 2);
+        args.profile = profile;
+        testSucceed("fixtures/public/ShortCircuit.jmm", args);
+
+        // The second call to twice in run never ran, so it is the only one that isn't inlined
+        args = new CommandLineArgs(null, true, null);
+        args.instrument = true;
+        testSucceed("fixtures/public/ProfileGuided.jmm", args);
+
+        profileFile = new File("ProfileGuided.profile");
+        profile = Profile.load(profileFile.getPath());
+        profileFile.delete();
+        assertEquals(Long.valueOf(0), profile.getCount("run(int)", Profile.callSite("twice", 2)));
+
+        args = new CommandLineArgs(null, true, null);
+        args.profile = profile;
+        JasminResult result = testSucceed("fixtures/public/ProfileGuided.jmm", args);
+        assertOutput("9900", result);
+        assertTrue(result.getJasminCode().contains("invokevirtual ProfileGuided/twice(I)I"));
+
+        String jasminCode = testSucceed("fixtures/public/ProfileGuided.jmm", new CommandLineArgs(null, true, null))
+                .getJasminCode();
+        assertFalse(jasminCode.contains("invokevirtual ProfileGuided/twice(I)I"));
+    }
 }